@@ -0,0 +1,185 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import uk.co.williamburns.punisher.base.PlayerPunishmentManager;
+import uk.co.williamburns.punisher.data.PunishmentDatabase;
+import uk.co.williamburns.punisher.data.SchemaManager;
+import uk.co.williamburns.punisher.util.ProfileCache;
+import uk.co.williamburns.punisher.util.data.InstrumentedDataSource;
+
+/**
+ * A punishment manager wired up to the {@link BenchmarkServer} and an in-memory H2 database in
+ * MySQL mode, with helpers for filling the database with punishments.
+ */
+public class BenchmarkFixture
+{
+	/**
+	 * The UUID of the staff member who issues every punishment.
+	 */
+	public static final UUID STAFF = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+	// h2 has no named locks, and only one fixture migrates each database anyway
+	private static final String[] CREATE_LOCK_FUNCTIONS = {
+			"CREATE ALIAS GET_LOCK FOR \"" + BenchmarkFixture.class.getName() + ".getLock\"",
+			"CREATE ALIAS RELEASE_LOCK FOR \"" + BenchmarkFixture.class.getName() + ".releaseLock\""
+	};
+
+	private static final String INSERT = "INSERT INTO punishments (uuid, punishedName, type, staff," +
+			" reason, timePunished, duration, removed) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static int databases;
+
+	private final InstrumentedDataSource dataSource;
+	private final BenchmarkPlugin plugin;
+	private final PlayerPunishmentManager manager;
+	private PunishmentDatabase database;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param cacheSize The maximum number of offline players the manager caches.
+	 * @throws IOException If the plugin's data folder can't be created.
+	 * @throws SQLException If the database can't be created.
+	 */
+	public BenchmarkFixture(long cacheSize) throws IOException, SQLException
+	{
+		File dataFolder = Files.createTempDirectory("punisher-benchmark").toFile();
+		Files.write(new File(dataFolder, "config.yml").toPath(), Arrays.asList(
+				"cache:",
+				"    max-size: " + cacheSize,
+				"    offline-ttl-minutes: 1440"
+		), StandardCharsets.UTF_8);
+
+		this.plugin = new BenchmarkPlugin(dataFolder);
+
+		// a fresh database per fixture, kept alive until the pool is closed
+		BasicDataSource bds = new BasicDataSource();
+		bds.setDriverClassName("org.h2.Driver");
+		bds.setUrl("jdbc:h2:mem:punisher" + nextDatabase() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+		bds.setMaxTotal(8);
+		this.dataSource = new InstrumentedDataSource(bds);
+
+		// the same schema as a real deployment, built by the same migrations
+		try (Connection connection = dataSource.getConnection();
+			 Statement statement = connection.createStatement())
+		{
+			for (String function : CREATE_LOCK_FUNCTIONS)
+			{
+				statement.execute(function);
+			}
+		}
+		new SchemaManager(dataSource, plugin.getLogger()).migrate();
+
+		// the staff member's name is always cached, so nothing goes to Mojang
+		ProfileCache profiles = new ProfileCache(plugin);
+		profiles.put(STAFF, "Staff", Long.MAX_VALUE);
+
+		this.manager = new PlayerPunishmentManager(plugin, profiles, m ->
+				database = new PunishmentDatabase(m, plugin, dataSource));
+	}
+
+	/**
+	 * Inserts punishments straight into the database.
+	 *
+	 * @param player The UUID of the punished player.
+	 * @param type The id of the punishment type.
+	 * @param count The number of punishments to insert.
+	 * @param active Whether or not the punishments are still in effect.
+	 * @throws SQLException If the punishments can't be inserted.
+	 */
+	public void insert(UUID player, String type, int count, boolean active) throws SQLException
+	{
+		long now = System.currentTimeMillis();
+
+		try (Connection connection = dataSource.getConnection();
+			 PreparedStatement statement = connection.prepareStatement(INSERT))
+		{
+			for (int i = 0; i < count; i++)
+			{
+				statement.setString(1, player.toString());
+				statement.setString(2, "Player");
+				statement.setString(3, type);
+				statement.setString(4, STAFF.toString());
+				statement.setString(5, "Benchmark punishment #" + i);
+				statement.setLong(6, active ? now : now - TimeUnit.DAYS.toMillis(30));
+				statement.setLong(7, active ? TimeUnit.DAYS.toMillis(7) : TimeUnit.HOURS.toMillis(1));
+				statement.setBoolean(8, false);
+				statement.addBatch();
+
+				if (i % 1000 == 999)
+				{
+					statement.executeBatch();
+				}
+			}
+
+			statement.executeBatch();
+		}
+	}
+
+	/**
+	 * @return The punishment manager.
+	 */
+	public PlayerPunishmentManager getManager()
+	{
+		return manager;
+	}
+
+	/**
+	 * @return The database the manager loads punishments from.
+	 */
+	public PunishmentDatabase getDatabase()
+	{
+		return database;
+	}
+
+	/**
+	 * Shuts the manager down and drops the database.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the executor.
+	 */
+	public void close() throws InterruptedException
+	{
+		manager.shutdown();
+		plugin.getExecutor().shutdown(10L, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stands in for MySQL's <code>GET_LOCK</code>, always taking the lock.
+	 *
+	 * @param name The name of the lock.
+	 * @param timeout The number of seconds to wait for the lock.
+	 * @return <code>1</code>, as the lock is taken.
+	 */
+	public static int getLock(String name, int timeout)
+	{
+		return 1;
+	}
+
+	/**
+	 * Stands in for MySQL's <code>RELEASE_LOCK</code>.
+	 *
+	 * @param name The name of the lock.
+	 * @return <code>1</code>, as the lock is released.
+	 */
+	public static int releaseLock(String name)
+	{
+		return 1;
+	}
+
+	private static synchronized int nextDatabase()
+	{
+		return databases++;
+	}
+}
@@ -0,0 +1,40 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.io.File;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.util.concurrent.PriorityExecutor;
+
+/**
+ * The Punisher plugin, set up to run against the {@link BenchmarkServer} without being enabled.
+ */
+public class BenchmarkPlugin extends Punisher
+{
+	private final PriorityExecutor executor;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param dataFolder The folder holding the plugin's config.yml.
+	 */
+	@SuppressWarnings("deprecation")
+	public BenchmarkPlugin(File dataFolder)
+	{
+		super(new JavaPluginLoader(BenchmarkServer.get()), new PluginDescriptionFile("Punisher",
+				"benchmark", Punisher.class.getName()), dataFolder, new File(dataFolder, "punisher.jar"));
+
+		this.executor = new PriorityExecutor("Punisher Benchmark", getLogger(), 4, new int[]
+				{
+						Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE
+				});
+	}
+
+	@Override
+	public PriorityExecutor getExecutor()
+	{
+		return executor;
+	}
+}
@@ -0,0 +1,176 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+/**
+ * A stand-in for the Bukkit server, built from dynamic proxies.
+ * <p>
+ * Only the handful of methods that Punisher calls do anything: players registered with
+ * {@link #addPlayer(UUID, String)} can be looked up, scheduled tasks run immediately on the
+ * calling thread, and everything else returns a default value.
+ */
+public final class BenchmarkServer
+{
+	private static final Logger LOGGER = Logger.getLogger("Benchmark");
+
+	private static final Map<UUID, Player> PLAYERS = new ConcurrentHashMap<>();
+
+	private static Server server;
+
+	private BenchmarkServer()
+	{
+	}
+
+	/**
+	 * Retrieves the stub server, registering it with {@link Bukkit} the first time.
+	 *
+	 * @return The stub server.
+	 */
+	public static synchronized Server get()
+	{
+		if (server == null)
+		{
+			PluginManager plugins = proxy(PluginManager.class, (p, m, args) -> defaultValue(m));
+			BukkitScheduler scheduler = proxy(BukkitScheduler.class, (p, m, args) ->
+			{
+				// run scheduled work straight away
+				for (Object arg : args)
+				{
+					if (arg instanceof Runnable)
+					{
+						((Runnable) arg).run();
+					}
+				}
+
+				return defaultValue(m);
+			});
+
+			server = proxy(Server.class, (p, m, args) ->
+			{
+				switch (m.getName())
+				{
+					case "getLogger":
+						return LOGGER;
+					case "getPluginManager":
+						return plugins;
+					case "getScheduler":
+						return scheduler;
+					case "getOnlinePlayers":
+						return Collections.unmodifiableCollection(PLAYERS.values());
+					case "getPlayer":
+						return args[0] instanceof UUID ? PLAYERS.get(args[0]) : null;
+					case "isPrimaryThread":
+						return true;
+					default:
+						return defaultValue(m);
+				}
+			});
+
+			Bukkit.setServer(server);
+		}
+
+		return server;
+	}
+
+	/**
+	 * Registers an online player whose messages and kicks are discarded.
+	 *
+	 * @param uuid The UUID of the player.
+	 * @param name The name of the player.
+	 * @return The player.
+	 */
+	public static Player addPlayer(UUID uuid, String name)
+	{
+		Player player = proxy(Player.class, (p, m, args) ->
+		{
+			switch (m.getName())
+			{
+				case "getUniqueId":
+					return uuid;
+				case "getName":
+				case "getDisplayName":
+					return name;
+				case "isOnline":
+					return true;
+				case "getAddress":
+					return new InetSocketAddress("127.0.0.1", 25565);
+				case "hashCode":
+					return uuid.hashCode();
+				case "equals":
+					return p == args[0];
+				default:
+					return defaultValue(m);
+			}
+		});
+
+		PLAYERS.put(uuid, player);
+		return player;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler)
+	{
+		return (T) Proxy.newProxyInstance(BenchmarkServer.class.getClassLoader(), new Class<?>[]{ type },
+				handler);
+	}
+
+	private static Object defaultValue(Method method)
+	{
+		Class<?> type = method.getReturnType();
+		if (!type.isPrimitive() || type == void.class)
+		{
+			return null;
+		}
+
+		if (type == boolean.class)
+		{
+			return false;
+		}
+
+		if (type == char.class)
+		{
+			return '\0';
+		}
+
+		if (type == long.class)
+		{
+			return 0L;
+		}
+
+		if (type == double.class)
+		{
+			return 0D;
+		}
+
+		if (type == float.class)
+		{
+			return 0F;
+		}
+
+		if (type == short.class)
+		{
+			return (short) 0;
+		}
+
+		if (type == byte.class)
+		{
+			return (byte) 0;
+		}
+
+		return 0;
+	}
+}
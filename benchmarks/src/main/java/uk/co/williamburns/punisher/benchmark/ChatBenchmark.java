@@ -0,0 +1,69 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.AsyncPlayerChatEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link uk.co.williamburns.punisher.base.PlayerPunishmentManager#onChat} for a player
+ * with no punishments, a single mute, and a long history ending in a mute.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChatBenchmark
+{
+	@Param({ "0", "1", "50" })
+	public int punishments;
+
+	private BenchmarkFixture fixture;
+	private AsyncPlayerChatEvent event;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		fixture = new BenchmarkFixture(1000L);
+
+		UUID uuid = UUID.randomUUID();
+		Player player = BenchmarkServer.addPlayer(uuid, "Player");
+
+		if (punishments > 0)
+		{
+			// expired kicks and bans, then the mute that is in effect
+			fixture.insert(uuid, "KICK", (punishments - 1) / 2, false);
+			fixture.insert(uuid, "BAN", punishments - 1 - (punishments - 1) / 2, false);
+			fixture.insert(uuid, "MUTE", 1, true);
+		}
+
+		fixture.getManager().loadPunishments(uuid).get();
+		event = new AsyncPlayerChatEvent(true, player, "hello", Collections.emptySet());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		fixture.close();
+	}
+
+	@Benchmark
+	public boolean chat()
+	{
+		event.setCancelled(false);
+		fixture.getManager().onChat(event);
+		return event.isCancelled();
+	}
+}
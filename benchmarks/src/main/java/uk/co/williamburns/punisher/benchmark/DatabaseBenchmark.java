@@ -0,0 +1,59 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.co.williamburns.punisher.api.Punishment;
+
+/**
+ * Measures {@link uk.co.williamburns.punisher.data.PunishmentDatabase#loadPunishments(UUID)},
+ * mostly the mapping of rows to punishments, against an embedded database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatabaseBenchmark
+{
+	@Param({ "1", "50", "1000" })
+	public int rows;
+
+	private BenchmarkFixture fixture;
+	private UUID player;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		fixture = new BenchmarkFixture(1000L);
+		player = UUID.randomUUID();
+		fixture.insert(player, "KICK", rows, false);
+
+		// other players' rows, so the index has something to skip over
+		for (int i = 0; i < 100; i++)
+		{
+			fixture.insert(UUID.randomUUID(), "KICK", 10, false);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		fixture.close();
+	}
+
+	@Benchmark
+	public Set<Punishment> loadPunishments()
+	{
+		return fixture.getDatabase().loadPunishments(player);
+	}
+}
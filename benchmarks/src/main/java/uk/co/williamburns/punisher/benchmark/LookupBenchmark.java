@@ -0,0 +1,72 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.co.williamburns.punisher.api.Punishment;
+
+/**
+ * Measures {@link uk.co.williamburns.punisher.api.PunishmentManager#getPunishment(int)} with
+ * between a thousand and a million punishments cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LookupBenchmark
+{
+	private static final int PUNISHMENTS_PER_PLAYER = 100;
+	private static final int LOOKUPS = 1 << 16;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int cached;
+
+	private BenchmarkFixture fixture;
+	private int[] ids;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		int players = Math.max(1, cached / PUNISHMENTS_PER_PLAYER);
+		fixture = new BenchmarkFixture(players);
+
+		// ids are generated from 1 upwards, so every id up to the total is cached
+		for (int i = 0; i < players; i++)
+		{
+			UUID uuid = UUID.randomUUID();
+			fixture.insert(uuid, "KICK", PUNISHMENTS_PER_PLAYER, false);
+			fixture.getManager().loadPunishments(uuid).get();
+		}
+
+		Random random = new Random(0L);
+		ids = new int[LOOKUPS];
+		for (int i = 0; i < ids.length; i++)
+		{
+			ids[i] = 1 + random.nextInt(players * PUNISHMENTS_PER_PLAYER);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		fixture.close();
+	}
+
+	@Benchmark
+	public Punishment getPunishment()
+	{
+		next = (next + 1) & (LOOKUPS - 1);
+		return fixture.getManager().getPunishment(ids[next]);
+	}
+}
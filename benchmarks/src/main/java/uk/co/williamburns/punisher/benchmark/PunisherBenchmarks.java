@@ -0,0 +1,32 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, which reports allocation per operation as
+ * well as collection counts and times.
+ * <p>
+ * Takes the same arguments as JMH's own runner, such as a regular expression of the benchmarks to
+ * run, or <code>-prof</code> to attach further profilers.
+ */
+public class PunisherBenchmarks
+{
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.forks(1)
+				.warmupIterations(5)
+				.measurementIterations(5)
+				.build()
+		).run();
+	}
+
+}
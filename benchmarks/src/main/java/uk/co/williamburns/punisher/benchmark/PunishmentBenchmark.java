@@ -0,0 +1,81 @@
+package uk.co.williamburns.punisher.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.base.PlayerPunishment;
+
+/**
+ * Measures {@link Punishment#isActive()} and
+ * {@link uk.co.williamburns.punisher.api.PunishmentManager#getPunishmentType(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PunishmentBenchmark
+{
+	@Param({ "PERMANENT", "TEMPORARY", "EXPIRED", "REMOVED" })
+	public String state;
+
+	private BenchmarkFixture fixture;
+	private Punishment punishment;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		fixture = new BenchmarkFixture(1000L);
+		PunishmentType type = fixture.getManager().getPunishmentType("BAN");
+
+		long now = System.currentTimeMillis();
+		long day = TimeUnit.DAYS.toMillis(1);
+		switch (state)
+		{
+			case "PERMANENT":
+				punishment = new PlayerPunishment(1, type, UUID.randomUUID(), "Player",
+						BenchmarkFixture.STAFF, "reason", now, -1L, false);
+				break;
+			case "TEMPORARY":
+				punishment = new PlayerPunishment(1, type, UUID.randomUUID(), "Player",
+						BenchmarkFixture.STAFF, "reason", now, day, false);
+				break;
+			case "EXPIRED":
+				punishment = new PlayerPunishment(1, type, UUID.randomUUID(), "Player",
+						BenchmarkFixture.STAFF, "reason", now - 2 * day, day, false);
+				break;
+			default:
+				punishment = new PlayerPunishment(1, type, UUID.randomUUID(), "Player",
+						BenchmarkFixture.STAFF, "reason", now, day, true);
+				break;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		fixture.close();
+	}
+
+	@Benchmark
+	public boolean isActive()
+	{
+		return punishment.isActive();
+	}
+
+	@Benchmark
+	public PunishmentType getPunishmentType()
+	{
+		return fixture.getManager().getPunishmentType("MUTE");
+	}
+}
@@ -1,20 +1,70 @@
 package uk.co.williamburns.punisher;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
-import uk.co.williamburns.punisher.api.PunishmentManager;
 import uk.co.williamburns.punisher.base.PlayerPunishmentManager;
 import uk.co.williamburns.punisher.cmd.BanCommand;
+import uk.co.williamburns.punisher.cmd.IpBanCommand;
 import uk.co.williamburns.punisher.cmd.KickCommand;
+import uk.co.williamburns.punisher.cmd.MassBanCommand;
 import uk.co.williamburns.punisher.cmd.MuteCommand;
 import uk.co.williamburns.punisher.cmd.PunishmentHistoryCommand;
 import uk.co.williamburns.punisher.cmd.PunishmentRemoveCommand;
+import uk.co.williamburns.punisher.cmd.StatsCommand;
+import uk.co.williamburns.punisher.util.MessageUtil;
+import uk.co.williamburns.punisher.util.ProfileCache;
+import uk.co.williamburns.punisher.util.concurrent.PriorityExecutor;
+import uk.co.williamburns.punisher.util.concurrent.TaskPriority;
+import uk.co.williamburns.punisher.util.metrics.Metrics;
 
 /**
  * The plugin bootstrap class for Punisher.
  */
 public class Punisher extends JavaPlugin
 {
+	private static final long PROFILE_SAVE_INTERVAL = 20L * 60 * 5; // ticks
+	private static final String METRICS_BEAN = "uk.co.williamburns.punisher:type=Metrics";
+
+	private final Metrics metrics = new Metrics();
+
+	private PriorityExecutor executor;
+	private ProfileCache profiles;
+	private PlayerPunishmentManager manager;
+
+	/**
+	 * Class constructor used by the server.
+	 */
+	public Punisher()
+	{
+		super();
+	}
+
+	/**
+	 * Class constructor for running outside of a server, such as in benchmarks.
+	 *
+	 * @param loader The plugin loader.
+	 * @param description The plugin description.
+	 * @param dataFolder The folder for the plugin's data.
+	 * @param file The plugin's jar file.
+	 */
+	protected Punisher(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder,
+					   File file)
+	{
+		super(loader, description, dataFolder, file);
+	}
 
 	@Override
 	public void onEnable()
@@ -22,15 +72,159 @@ public class Punisher extends JavaPlugin
 		// save default config file to data folder
 		saveDefaultConfig();
 
-		// instantiate punishment manager
-		PunishmentManager manager = new PlayerPunishmentManager(this);
+		// compile the message templates, saving the default messages file if there isn't one
+		MessageUtil.loadMessages(this);
+
+		// start the executor that runs database and web requests
+		ConfigurationSection cs = getConfig().getConfigurationSection("executor");
+		executor = new PriorityExecutor("Punisher I/O", getLogger(), cs.getInt("threads", 4), new int[]
+				{
+						cs.getInt("queue-size.login", 1000),
+						cs.getInt("queue-size.command", 200),
+						cs.getInt("queue-size.background", 100)
+				});
+		for (TaskPriority priority : TaskPriority.values())
+		{
+			String name = "punisher_executor_" + priority.name().toLowerCase(Locale.ROOT);
+			metrics.gauge(name + "_queued", "Tasks waiting to run at " + priority + " priority.",
+					() -> executor.getQueueDepth(priority));
+			metrics.counter(name + "_rejected_total", "Tasks refused at " + priority +
+					" priority because the queue was full.", () -> executor.getRejectedCount(priority));
+			metrics.register(name + "_wait_seconds", "Time tasks at " + priority + " priority " +
+					"waited in the queue before running.", executor.getWaitTimes(priority));
+		}
+
+		// load profile cache, seeded from the server's user cache and online players
+		profiles = new ProfileCache(this);
+		profiles.load();
+		profiles.seedUserCache();
+		profiles.seedOnlinePlayers();
+		getServer().getPluginManager().registerEvents(profiles, this);
+		getServer().getScheduler().runTaskTimer(this, executor.periodic(TaskPriority.BACKGROUND,
+				profiles::save), PROFILE_SAVE_INTERVAL, PROFILE_SAVE_INTERVAL);
+
+		// instantiate punishment manager; seed profiles with the names of recently punished players
+		manager = new PlayerPunishmentManager(this, profiles);
+		manager.seedProfiles(profiles);
+		manager.scheduleTasks();
 
 		// commands
-		getCommand("kick").setExecutor(new KickCommand(manager));
-		getCommand("ban").setExecutor(new BanCommand(manager));
-		getCommand("mute").setExecutor(new MuteCommand(manager));
-		getCommand("phistory").setExecutor(new PunishmentHistoryCommand(manager));
-		getCommand("premove").setExecutor(new PunishmentRemoveCommand(manager));
+		getCommand("kick").setExecutor(new KickCommand(this, manager));
+		getCommand("ban").setExecutor(new BanCommand(this, manager));
+		getCommand("ipban").setExecutor(new IpBanCommand(this, manager));
+		getCommand("massban").setExecutor(new MassBanCommand(this, manager));
+		getCommand("mute").setExecutor(new MuteCommand(this, manager));
+		getCommand("phistory").setExecutor(new PunishmentHistoryCommand(this, manager));
+		getCommand("premove").setExecutor(new PunishmentRemoveCommand(this, manager));
+		getCommand("pstats").setExecutor(new StatsCommand(this));
+
+		// expose metrics to monitoring; everything is registered by now
+		registerMetrics();
 	}
 
+	@Override
+	public void onDisable()
+	{
+		try
+		{
+			ObjectName name = new ObjectName(METRICS_BEAN);
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+		}
+		catch (JMException e)
+		{
+			getLogger().log(Level.WARNING, "Could not unregister metrics from JMX", e);
+		}
+
+		if (manager != null)
+		{
+			manager.shutdown();
+		}
+
+		if (profiles != null)
+		{
+			profiles.save();
+		}
+
+		if (executor != null)
+		{
+			try
+			{
+				// give queued work a chance to finish
+				if (!executor.shutdown(10L, TimeUnit.SECONDS))
+				{
+					getLogger().warning("Some queued tasks did not finish before shutting down.");
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return The executor that runs this plugin's blocking database and web requests.
+	 */
+	public PriorityExecutor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * @return The plugin's metrics, such as query and login check latencies.
+	 */
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * @return The cache of player profiles, which resolves names and UUIDs.
+	 */
+	public ProfileCache getProfiles()
+	{
+		return profiles;
+	}
+
+	/**
+	 * Registers the metrics with JMX, and starts writing them to a file for Prometheus if
+	 * configured to.
+	 */
+	private void registerMetrics()
+	{
+		try
+		{
+			ObjectName name = new ObjectName(METRICS_BEAN);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+			{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics.toMBean(), name);
+			}
+		}
+		catch (JMException e)
+		{
+			getLogger().log(Level.WARNING, "Could not register metrics with JMX", e);
+		}
+
+		ConfigurationSection cs = getConfig().getConfigurationSection("metrics.prometheus-file");
+		if (cs != null && cs.getBoolean("enabled", false))
+		{
+			File file = new File(getDataFolder(), cs.getString("path", "punisher.prom"));
+			long interval = Math.max(1L, cs.getLong("interval-seconds", 15L)) * 20L;
+			getServer().getScheduler().runTaskTimer(this, executor.periodic(TaskPriority
+					.BACKGROUND, () ->
+			{
+				try
+				{
+					metrics.writePrometheus(file);
+				}
+				catch (IOException e)
+				{
+					getLogger().log(Level.WARNING, "Could not write metrics to " + file, e);
+				}
+			}), interval, interval);
+		}
+	}
 }
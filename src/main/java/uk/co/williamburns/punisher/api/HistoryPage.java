@@ -0,0 +1,51 @@
+package uk.co.williamburns.punisher.api;
+
+import java.util.List;
+
+/**
+ * One page of a player's punishment history, newest first.
+ */
+public final class HistoryPage
+{
+	private final HistoryQuery query;
+	private final List<Punishment> punishments;
+	private final boolean more;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param query The query for this page.
+	 * @param punishments The punishments on this page, newest first.
+	 * @param more Whether or not there are more punishments after this page.
+	 */
+	public HistoryPage(HistoryQuery query, List<Punishment> punishments, boolean more)
+	{
+		this.query = query;
+		this.punishments = punishments;
+		this.more = more;
+	}
+
+	/**
+	 * @return The punishments on this page, newest first.
+	 */
+	public List<Punishment> getPunishments()
+	{
+		return punishments;
+	}
+
+	/**
+	 * @return Whether or not there are more punishments after this page.
+	 */
+	public boolean hasMore()
+	{
+		return more;
+	}
+
+	/**
+	 * @return The query for the next page, or <code>null</code> if this is the last.
+	 */
+	public HistoryQuery next()
+	{
+		return more ? query.after(punishments.get(punishments.size() - 1)) : null;
+	}
+}
@@ -0,0 +1,133 @@
+package uk.co.williamburns.punisher.api;
+
+import java.util.UUID;
+
+/**
+ * A query for one page of a player's punishment history, newest first.
+ * <p>
+ * Pages are found by keyset rather than by offset: each page starts just after the last
+ * punishment of the page before it, in order of time punished and then id. So every page costs
+ * the same to load, however far back it is.
+ * <p>
+ * Queries are immutable. The query for the first page is made with the constructor, and the
+ * query for each page after it with {@link #after(Punishment)}.
+ */
+public final class HistoryQuery
+{
+	private final UUID player;
+	private final String type;
+	private final boolean activeOnly;
+	private final int limit;
+
+	private final long beforeTime;
+	private final int beforeId;
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * The query is for the first page.
+	 *
+	 * @param player The UUID of the player.
+	 * @param type The id of the only punishment type to include, or <code>null</code> for all.
+	 * @param activeOnly Whether or not to only include punishments that are in effect.
+	 * @param limit The maximum number of punishments on the page.
+	 */
+	public HistoryQuery(UUID player, String type, boolean activeOnly, int limit)
+	{
+		this(player, type, activeOnly, limit, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	private HistoryQuery(UUID player, String type, boolean activeOnly, int limit, long beforeTime,
+						 int beforeId)
+	{
+		this.player = player;
+		this.type = type;
+		this.activeOnly = activeOnly;
+		this.limit = Math.max(1, limit);
+		this.beforeTime = beforeTime;
+		this.beforeId = beforeId;
+	}
+
+	/**
+	 * @param last The last punishment on this query's page.
+	 * @return The query for the page after this one.
+	 */
+	public HistoryQuery after(Punishment last)
+	{
+		return new HistoryQuery(player, type, activeOnly, limit, last.getTimePunished(), last
+				.getId());
+	}
+
+	/**
+	 * @return The UUID of the player.
+	 */
+	public UUID getPlayer()
+	{
+		return player;
+	}
+
+	/**
+	 * @return The id of the only punishment type to include, or <code>null</code> for all.
+	 */
+	public String getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return Whether or not to only include punishments that are in effect.
+	 */
+	public boolean isActiveOnly()
+	{
+		return activeOnly;
+	}
+
+	/**
+	 * @return The maximum number of punishments on the page.
+	 */
+	public int getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @return The page only includes punishments from before this time, or at this time with a
+	 *         lower id than {@link #getBeforeId()}, as an epoch timestamp.
+	 */
+	public long getBeforeTime()
+	{
+		return beforeTime;
+	}
+
+	/**
+	 * @return The page only includes punishments at {@link #getBeforeTime()} with a lower id than
+	 *         this.
+	 */
+	public int getBeforeId()
+	{
+		return beforeId;
+	}
+
+	/**
+	 * @param p A punishment of the player.
+	 * @param now The current time, as an epoch timestamp.
+	 * @return Whether or not the punishment matches this query's filters and comes after its
+	 *         keyset position.
+	 */
+	public boolean matches(Punishment p, long now)
+	{
+		if (type != null && !type.equals(p.getType().getId()))
+		{
+			return false;
+		}
+
+		if (activeOnly && (p.isRemoved() || p.getDuration() != -1L && p.getTimePunished() + p
+				.getDuration() <= now))
+		{
+			return false;
+		}
+
+		return p.getTimePunished() < beforeTime || p.getTimePunished() == beforeTime && p.getId() <
+				beforeId;
+	}
+}
@@ -1,5 +1,6 @@
 package uk.co.williamburns.punisher.api;
 
+import java.util.Collection;
 import java.util.Set;
 import java.util.UUID;
 
@@ -33,11 +34,28 @@ public interface PunishmentManager
 	 */
 	ListenableFuture<Set<Punishment>> loadPunishments(UUID player);
 
+	/**
+	 * Loads a page of a player's punishment history from the database, newest first.
+	 * <p>
+	 * Pages aren't cached, but punishments on them that are already cached locally are returned
+	 * as the cached instances.
+	 *
+	 * @param query The query for the page.
+	 * @return The page, as a future.
+	 */
+	ListenableFuture<HistoryPage> loadHistory(HistoryQuery query);
+
 	/**
 	 * Retrieves the cached punishments for a player.
 	 * <p>
 	 * The punishments must have been cached locally for this to return results, either when the
-	 * player logged in, or with a separate call to {@link #loadPunishments(UUID)} first.
+	 * player logged in, or with a separate call to {@link #loadPunishments(UUID)} first. Online
+	 * players' punishments stay cached while they are connected; offline players' punishments may
+	 * be evicted at any time.
+	 * <p>
+	 * Where logins are checked against punishments held in memory, only the punishments in effect
+	 * are cached when a player logs in, so nothing is returned for them until their punishments
+	 * are loaded.
 	 *
 	 * @param player The UUID of the target player.
 	 * @return A set of punishments cached locally for the player, or <code>null</code> if none.
@@ -68,6 +86,18 @@ public interface PunishmentManager
 	 */
 	ListenableFuture<Boolean> savePunishment(Punishment punishment);
 
+	/**
+	 * Saves several punishments to the database together, such as to ban many players at once.
+	 * <p>
+	 * Either every punishment is saved or none is. New punishments have their id fields updated
+	 * as with {@link #savePunishment(Punishment)}, and are then carried out a few at a time over
+	 * the following ticks, rather than all at once.
+	 *
+	 * @param punishments The punishments that are saved/updated in the database.
+	 * @return Whether or not the operation was successful, as a future.
+	 */
+	ListenableFuture<Boolean> savePunishments(Collection<Punishment> punishments);
+
 	/**
 	 * Retrieves a punishment type by id.
 	 *
@@ -84,4 +114,15 @@ public interface PunishmentManager
 	 */
 	Punishment getPunishment(int id);
 
+	/**
+	 * Retrieves a punishment by id, loading it from the database if it isn't cached locally.
+	 * <p>
+	 * Punishments loaded this way are not cached, unless the punished player's punishments
+	 * already are.
+	 *
+	 * @param id The id of the punishment.
+	 * @return The punishment with the supplied id, or <code>null</code> if none, as a future.
+	 */
+	ListenableFuture<Punishment> loadPunishment(int id);
+
 }
@@ -1,5 +1,7 @@
 package uk.co.williamburns.punisher.api;
 
+import org.bukkit.entity.Player;
+
 /**
  * A type of punishment.
  */
@@ -11,6 +13,20 @@ public interface PunishmentType
 	 */
 	String getId();
 
+	/**
+	 * Retrieves the capabilities that this punishment type takes away from a player while it is
+	 * active.
+	 * <p>
+	 * {@link #onJoin(Punishment)} and {@link #onChat(Punishment)} are only called for types with
+	 * the matching flag set. By default, both are.
+	 *
+	 * @return A bitmask of {@link Restriction} flags.
+	 */
+	default int getRestrictions()
+	{
+		return Restriction.JOIN | Restriction.CHAT;
+	}
+
 	/**
 	 * Called when a staff member punishes a player with this punishment type.
 	 *
@@ -18,6 +34,20 @@ public interface PunishmentType
 	 */
 	void onPunish(Punishment punishment);
 
+	/**
+	 * Called in the background when an active punishment with this punishment type is loaded
+	 * into memory, such as when the punished player logs in.
+	 * <p>
+	 * Anything needed to enforce the punishment later, such as names to show in messages, can be
+	 * resolved here, where it is safe to block. It may not have finished by the time the
+	 * punishment is first enforced.
+	 *
+	 * @param punishment The punishment that has this punishment type instance.
+	 */
+	default void onLoad(Punishment punishment)
+	{
+	}
+
 	/**
 	 * Called when a target player attempts to rejoin after being punished with this punishment
 	 * type.
@@ -41,4 +71,21 @@ public interface PunishmentType
 	 */
 	boolean onChat(Punishment punishment);
 
+	/**
+	 * Called when a target player attempts to chat after being punished with this punishment type,
+	 * with the player that is chatting.
+	 * <p>
+	 * This is called on the chat thread, which may not be the main thread, and therefore must not
+	 * block. By default, it calls {@link #onChat(Punishment)}.
+	 *
+	 * @param punishment The punishment that has this punishment type instance.
+	 * @param player The punished player.
+	 * @return If <code>false</code>, the target player's message will be blocked from public
+	 *         chat.
+	 */
+	default boolean onChat(Punishment punishment, Player player)
+	{
+		return onChat(punishment);
+	}
+
 }
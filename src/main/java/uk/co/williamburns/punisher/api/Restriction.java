@@ -0,0 +1,31 @@
+package uk.co.williamburns.punisher.api;
+
+/**
+ * Bit flags for the capabilities that a type of punishment takes away from a player while it is
+ * active.
+ *
+ * @see PunishmentType#getRestrictions()
+ */
+public final class Restriction
+{
+
+	/**
+	 * The player is not restricted at all.
+	 */
+	public static final int NONE = 0;
+
+	/**
+	 * The player may be disallowed from joining the server.
+	 */
+	public static final int JOIN = 1;
+
+	/**
+	 * The player may be blocked from public chat.
+	 */
+	public static final int CHAT = 1 << 1;
+
+	private Restriction()
+	{
+	}
+
+}
@@ -0,0 +1,312 @@
+package uk.co.williamburns.punisher.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.Restriction;
+import uk.co.williamburns.punisher.data.PunishmentStorage;
+
+/**
+ * An in-memory index of every punishment that is currently in effect, by player, so that login
+ * checks don't need to ask the database.
+ * <p>
+ * The index is loaded in full by streaming active punishments from storage into a
+ * {@link CompactPunishmentStore}, which holds them in a fraction of the memory that punishment
+ * objects would take. After that, it is kept up to date by punishments saved on this server,
+ * and by reading punishments newer than the last it saw from storage. Punishments removed by
+ * other servers are picked up from the change feed where it is enabled, and otherwise only by
+ * loading the index in full again, which is repeated every so often too. Punishments that run
+ * out are skipped by lookups, and dropped on the next full load.
+ * <p>
+ * Changes since the last full load are held as a small array of punishments for each player they
+ * touch, which replaces that player's punishments in the store. The arrays are replaced on every
+ * change, so that lookups can read them without locking.
+ */
+public class ActivePunishmentIndex
+{
+	// ids are handed out before their transactions commit, so re-read a few in case one
+	// committed after a higher id was seen
+	private static final int REFRESH_OVERLAP = 1000;
+
+	private static final Punishment[] NONE = new Punishment[0];
+
+	private final Logger logger;
+	private final long fullRefreshInterval;
+
+	private volatile Snapshot active; // null until loaded
+
+	// guarded by this object's monitor
+	private List<Punishment> missed; // updates made during a full load; null unless loading
+	private boolean refreshing;
+	private int cursor;
+	private long lastFullRefresh;
+	private long count;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param logger The logger that loads are reported to.
+	 * @param fullRefreshInterval The number of milliseconds between loading the index in full.
+	 */
+	public ActivePunishmentIndex(Logger logger, long fullRefreshInterval)
+	{
+		this.logger = logger;
+		this.fullRefreshInterval = fullRefreshInterval;
+	}
+
+	/**
+	 * @return Whether or not the index has been loaded yet.
+	 */
+	public boolean isLoaded()
+	{
+		return active != null;
+	}
+
+	/**
+	 * @param player The UUID of the player.
+	 * @return The punishments of the player that are in effect, or <code>null</code> if the index
+	 *         hasn't been loaded yet.
+	 */
+	public Set<Punishment> get(UUID player)
+	{
+		Snapshot index = active;
+		if (index == null)
+		{
+			return null;
+		}
+
+		Punishment[] puns = index.get(player);
+		Set<Punishment> result = new HashSet<>(puns.length * 2);
+		for (Punishment p : puns)
+		{
+			// may have run out since it was indexed
+			if (p.isActive())
+			{
+				result.add(p);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Adds a saved punishment to the index if it is in effect, or removes it if not. Punishments
+	 * of types that don't restrict players, such as kicks, are never held.
+	 *
+	 * @param punishment The punishment.
+	 */
+	public synchronized void update(Punishment punishment)
+	{
+		if (punishment.getType().getRestrictions() == Restriction.NONE)
+		{
+			return;
+		}
+
+		if (active != null)
+		{
+			count += active.update(punishment);
+		}
+
+		if (missed != null)
+		{
+			missed.add(punishment);
+		}
+	}
+
+	/**
+	 * @return The number of punishments in the index, including any that have run out since the
+	 *         last full load.
+	 */
+	public synchronized long size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return An estimate of the memory taken up by the index, in bytes.
+	 */
+	public long getEstimatedSize()
+	{
+		Snapshot index = active;
+		return index == null ? 0L : index.getEstimatedSize();
+	}
+
+	/**
+	 * Reads newly saved punishments from storage into the index, or loads it in full if it
+	 * hasn't been loaded yet or is due a full refresh.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param storage The storage that punishments are read from.
+	 */
+	public void refresh(PunishmentStorage storage)
+	{
+		long now = System.currentTimeMillis();
+		boolean full;
+		int from;
+		synchronized (this)
+		{
+			if (refreshing)
+			{
+				// the last refresh is still going, probably a full one
+				return;
+			}
+
+			refreshing = true;
+			full = active == null || now - lastFullRefresh >= fullRefreshInterval;
+			if (full)
+			{
+				from = 0;
+				missed = new ArrayList<>();
+			}
+			else
+			{
+				from = Math.max(0, cursor - REFRESH_OVERLAP);
+			}
+		}
+
+		CompactPunishmentStore.Builder builder = full ? new CompactPunishmentStore.Builder() :
+				null;
+		int last = -1;
+		try
+		{
+			last = storage.loadActivePunishments(from, now, full ? builder::add : this::update);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				refreshing = false;
+				if (last >= 0)
+				{
+					cursor = Math.max(cursor, last);
+				}
+
+				if (full)
+				{
+					List<Punishment> updates = missed;
+					missed = null;
+
+					// keep whatever we had if the load failed, and try again next time
+					if (last >= 0)
+					{
+						CompactPunishmentStore store = builder.build();
+						active = new Snapshot(store);
+						lastFullRefresh = now;
+						count = store.size();
+
+						// anything saved while loading may or may not have been read
+						updates.forEach(p -> count += active.update(p));
+					}
+				}
+			}
+		}
+
+		if (full && last >= 0)
+		{
+			logger.info("Loaded " + size() + " active punishments into memory, taking about " +
+					(getEstimatedSize() >> 20) + "MB");
+		}
+	}
+
+	/**
+	 * A full load of the index, and the players whose punishments have changed since.
+	 */
+	private static class Snapshot
+	{
+		private final CompactPunishmentStore store;
+		private final Map<UUID, Punishment[]> changed;
+
+		private Snapshot(CompactPunishmentStore store)
+		{
+			this.store = store;
+			this.changed = new ConcurrentHashMap<>();
+		}
+
+		private Punishment[] get(UUID player)
+		{
+			Punishment[] puns = changed.get(player);
+			return puns != null ? puns : store.get(player);
+		}
+
+		/**
+		 * Adds a punishment if it is in effect, or removes it if not. Only called under the
+		 * index's monitor.
+		 *
+		 * @return The change in the number of punishments: <code>1</code>, <code>0</code> or
+		 *         <code>-1</code>.
+		 */
+		private int update(Punishment punishment)
+		{
+			UUID player = punishment.getUuid();
+			boolean add = punishment.isActive();
+
+			Punishment[] current = changed.get(player);
+			if (current == null)
+			{
+				if (add && store.contains(player, punishment.getId()))
+				{
+					// already held as it is, such as when re-read after a refresh
+					return 0;
+				}
+
+				current = store.get(player);
+			}
+
+			for (int i = 0; i < current.length; i++)
+			{
+				if (current[i].getId() != punishment.getId())
+				{
+					continue;
+				}
+
+				if (add)
+				{
+					Punishment[] replaced = current.clone();
+					replaced[i] = punishment;
+					changed.put(player, replaced);
+					return 0;
+				}
+
+				// the store still holds it, so the player's entry stays even once it is empty
+				Punishment[] removed = new Punishment[current.length - 1];
+				System.arraycopy(current, 0, removed, 0, i);
+				System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+				changed.put(player, removed.length == 0 ? NONE : removed);
+				return -1;
+			}
+
+			if (!add)
+			{
+				return 0;
+			}
+
+			Punishment[] added = Arrays.copyOf(current, current.length + 1);
+			added[current.length] = punishment;
+			changed.put(player, added);
+			return 1;
+		}
+
+		private long getEstimatedSize()
+		{
+			// a map node, a table slot, a uuid and an array per changed player, and roughly a
+			// punishment object per slot
+			long bytes = store.getEstimatedSize();
+			for (Punishment[] puns : changed.values())
+			{
+				bytes += 32L + 8L + 32L + 16L + puns.length * 260L;
+			}
+
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,532 @@
+package uk.co.williamburns.punisher.base;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import uk.co.williamburns.punisher.data.PlayerAddress;
+import uk.co.williamburns.punisher.data.PunishmentStorage;
+import uk.co.williamburns.punisher.util.AddressRange;
+import uk.co.williamburns.punisher.util.LongPairIntMap;
+
+/**
+ * An in-memory index of which players have logged in from which addresses, so that the other
+ * accounts of a player logging in can be found without asking the database.
+ * <p>
+ * Players and addresses are each given an id, through a {@link LongPairIntMap} of their 128
+ * bits, and the links between them are held both ways as sorted arrays of ids, along with when
+ * each player last used each address. A player with a few addresses costs around a hundred
+ * bytes, so millions of logins fit in memory.
+ * <p>
+ * An address used by more than a set number of players, such as that of a proxy or a carrier's
+ * NAT, says nothing about who owns which account, so it stops linking anyone until it has gone
+ * unused for the maximum age. Links older than the maximum age are skipped by lookups, and
+ * dropped by {@link #prune(long)} along with any players and addresses left without a link.
+ * <p>
+ * Logins are recorded here at once, and queued to be saved to storage in batches. Addresses seen
+ * within the maximum age are loaded from storage on startup.
+ */
+public class AltAccountIndex
+{
+	// logins kept for saving while storage is down, beyond which they are only held in memory
+	private static final int MAX_PENDING = 10000;
+
+	private static final int[] NONE = new int[0];
+	private static final int[] SHARED = new int[0]; // players of an address over the limit
+	private static final long[] NO_TIMES = new long[0];
+
+	private final Logger logger;
+	private final long maxAge;
+	private final int maxPlayersPerAddress;
+
+	// guarded by this object's monitor
+	private LongPairIntMap playerIds = new LongPairIntMap();
+	private LongPairIntMap addressIds = new LongPairIntMap();
+	private long[] players = new long[64]; // the uuid of each player id, as two longs
+	private long[] addresses = new long[64]; // the bits of each address id, as two longs
+	private int[][] addressesOf = ensure(new int[0][], 0); // address ids by player id
+	private int[][] playersOf = ensure(new int[0][], 0); // player ids by address id
+	private long[][] seenAt = new long[0][]; // when each of playersOf last used the address
+	private long[] addressSeen = new long[0]; // when each address was last used by anyone
+	private List<PlayerAddress> pending = new ArrayList<>();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param logger The logger that failed loads and saves are reported to.
+	 * @param maxAge The number of milliseconds since a player last used an address after which it
+	 *               no longer links them to anyone.
+	 * @param maxPlayersPerAddress The most players an address may link together. Addresses used
+	 *                             by more than this link nobody.
+	 */
+	public AltAccountIndex(Logger logger, long maxAge, int maxPlayersPerAddress)
+	{
+		this.logger = logger;
+		this.maxAge = maxAge;
+		this.maxPlayersPerAddress = Math.max(2, maxPlayersPerAddress);
+	}
+
+	/**
+	 * Records a player logging in from an address, and queues it to be saved.
+	 *
+	 * @param player The UUID of the player.
+	 * @param address The address they logged in from.
+	 * @param time When they logged in, as an epoch timestamp.
+	 */
+	public void record(UUID player, InetAddress address, long time)
+	{
+		byte[] bytes = address.getAddress();
+		PlayerAddress login = new PlayerAddress(player, AddressRange.high(bytes), AddressRange.low(
+				bytes), time);
+
+		synchronized (this)
+		{
+			add(login);
+			if (pending.size() < MAX_PENDING)
+			{
+				pending.add(login);
+			}
+		}
+	}
+
+	/**
+	 * Finds the other players that have logged in from any address that a player has, where
+	 * both of them have used it within the maximum age.
+	 *
+	 * @param player The UUID of the player.
+	 * @param limit The most players to return.
+	 * @return The other players, if any, in no particular order.
+	 */
+	public synchronized Set<UUID> getLinked(UUID player, int limit)
+	{
+		int id = playerIds.get(player.getMostSignificantBits(), player.getLeastSignificantBits());
+		if (id < 0)
+		{
+			return new LinkedHashSet<>();
+		}
+
+		long cutoff = System.currentTimeMillis() - maxAge;
+		Set<UUID> linked = new LinkedHashSet<>();
+		for (int address : addressesOf[id])
+		{
+			int[] others = playersOf[address];
+			long[] times = seenAt[address];
+			int self = Arrays.binarySearch(others, id);
+			if (self < 0 || times[self] < cutoff)
+			{
+				continue;
+			}
+
+			for (int i = 0; i < others.length; i++)
+			{
+				if (others[i] == id || times[i] < cutoff)
+				{
+					continue;
+				}
+
+				if (linked.size() >= limit)
+				{
+					return linked;
+				}
+
+				linked.add(new UUID(players[others[i] * 2], players[others[i] * 2 + 1]));
+			}
+		}
+
+		return linked;
+	}
+
+	/**
+	 * Loads every address seen since the given time from storage, adding them to the index.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param storage The storage that addresses are loaded from.
+	 * @param since Only addresses last seen after this time, as an epoch timestamp, are loaded.
+	 */
+	public void load(PunishmentStorage storage, long since)
+	{
+		int count = storage.loadAddresses(since, a ->
+		{
+			synchronized (this)
+			{
+				add(a);
+			}
+		});
+
+		if (count < 0)
+		{
+			logger.warning("Could not load player addresses; only new logins will link accounts.");
+		}
+	}
+
+	/**
+	 * Saves every login recorded since the last flush to storage, in one batch. Logins that fail
+	 * to save are kept for the next flush.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param storage The storage that logins are saved to.
+	 */
+	public void flush(PunishmentStorage storage)
+	{
+		List<PlayerAddress> batch;
+		synchronized (this)
+		{
+			if (pending.isEmpty())
+			{
+				return;
+			}
+
+			batch = pending;
+			pending = new ArrayList<>();
+		}
+
+		if (storage.saveAddresses(batch))
+		{
+			return;
+		}
+
+		logger.warning("Could not save " + batch.size() + " player addresses; retrying later.");
+		synchronized (this)
+		{
+			if (pending.size() + batch.size() <= MAX_PENDING)
+			{
+				batch.addAll(pending);
+				pending = batch;
+			}
+		}
+	}
+
+	/**
+	 * Drops every link older than the maximum age, and lets addresses that were used by too many
+	 * players link them again once nobody has used them for the maximum age. Players and
+	 * addresses left without a link are forgotten, and the rest are given new ids.
+	 *
+	 * @param now The current time, as an epoch timestamp.
+	 */
+	public synchronized void prune(long now)
+	{
+		long cutoff = now - maxAge;
+		int playerCount = playerIds.size();
+		int addressCount = addressIds.size();
+		int dropped = 0;
+		for (int address = 0; address < addressCount; address++)
+		{
+			int[] current = playersOf[address];
+			if (current == SHARED)
+			{
+				continue;
+			}
+
+			long[] times = seenAt[address];
+			int kept = 0;
+			for (int i = 0; i < current.length; i++)
+			{
+				if (times[i] >= cutoff)
+				{
+					kept++;
+				}
+			}
+
+			if (kept == current.length)
+			{
+				continue;
+			}
+
+			int[] keptPlayers = new int[kept];
+			long[] keptTimes = new long[kept];
+			for (int i = 0, j = 0; i < current.length; i++)
+			{
+				if (times[i] >= cutoff)
+				{
+					keptPlayers[j] = current[i];
+					keptTimes[j++] = times[i];
+				}
+				else
+				{
+					addressesOf[current[i]] = delete(addressesOf[current[i]], address);
+				}
+			}
+
+			playersOf[address] = kept == 0 ? NONE : keptPlayers;
+			seenAt[address] = kept == 0 ? NO_TIMES : keptTimes;
+			dropped += current.length - kept;
+		}
+
+		if (dropped > 0)
+		{
+			logger.fine("Dropped " + dropped + " player addresses not used within the maximum " +
+					"age.");
+		}
+
+		// a player is kept while they have a link, and a shared address until it goes unused
+		int[] playerMap = new int[playerCount];
+		int keptPlayers = 0;
+		for (int player = 0; player < playerCount; player++)
+		{
+			playerMap[player] = addressesOf[player].length > 0 ? keptPlayers++ : -1;
+		}
+
+		int[] addressMap = new int[addressCount];
+		int keptAddresses = 0;
+		for (int address = 0; address < addressCount; address++)
+		{
+			boolean keep = playersOf[address] == SHARED ? addressSeen[address] >= cutoff
+					: playersOf[address].length > 0;
+			addressMap[address] = keep ? keptAddresses++ : -1;
+		}
+
+		if (keptPlayers == playerCount && keptAddresses == addressCount)
+		{
+			return;
+		}
+
+		// new ids are given out in the order of the old ones, so lists of ids stay sorted
+		LongPairIntMap newPlayerIds = new LongPairIntMap();
+		long[] newPlayers = new long[Math.max(64, keptPlayers * 2)];
+		int[][] newAddressesOf = lists(keptPlayers);
+		for (int player = 0; player < playerCount; player++)
+		{
+			int id = playerMap[player];
+			if (id < 0)
+			{
+				continue;
+			}
+
+			newPlayers[id * 2] = players[player * 2];
+			newPlayers[id * 2 + 1] = players[player * 2 + 1];
+			newPlayerIds.put(newPlayers[id * 2], newPlayers[id * 2 + 1], id);
+			newAddressesOf[id] = remap(addressesOf[player], addressMap);
+		}
+
+		LongPairIntMap newAddressIds = new LongPairIntMap();
+		long[] newAddresses = new long[Math.max(64, keptAddresses * 2)];
+		int[][] newPlayersOf = lists(keptAddresses);
+		long[][] newSeenAt = new long[newPlayersOf.length][];
+		Arrays.fill(newSeenAt, NO_TIMES);
+		long[] newAddressSeen = new long[newPlayersOf.length];
+		for (int address = 0; address < addressCount; address++)
+		{
+			int id = addressMap[address];
+			if (id < 0)
+			{
+				continue;
+			}
+
+			newAddresses[id * 2] = addresses[address * 2];
+			newAddresses[id * 2 + 1] = addresses[address * 2 + 1];
+			newAddressIds.put(newAddresses[id * 2], newAddresses[id * 2 + 1], id);
+
+			int[] current = playersOf[address];
+			newPlayersOf[id] = current == SHARED ? SHARED : remap(current, playerMap);
+			newSeenAt[id] = seenAt[address];
+			newAddressSeen[id] = addressSeen[address];
+		}
+
+		playerIds = newPlayerIds;
+		players = newPlayers;
+		addressesOf = newAddressesOf;
+		addressIds = newAddressIds;
+		addresses = newAddresses;
+		playersOf = newPlayersOf;
+		seenAt = newSeenAt;
+		addressSeen = newAddressSeen;
+		logger.fine("Forgot " + (playerCount - keptPlayers) + " players and " + (addressCount -
+				keptAddresses) + " addresses with no links left.");
+	}
+
+	/**
+	 * @return The number of players held.
+	 */
+	public synchronized int getPlayerCount()
+	{
+		return playerIds.size();
+	}
+
+	/**
+	 * @return The number of addresses held.
+	 */
+	public synchronized int getAddressCount()
+	{
+		return addressIds.size();
+	}
+
+	private void add(PlayerAddress login)
+	{
+		UUID uuid = login.getUuid();
+		int player = playerIds.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		if (player < 0)
+		{
+			player = playerIds.size();
+			playerIds.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), player);
+
+			if (player * 2 >= players.length)
+			{
+				players = Arrays.copyOf(players, players.length * 2);
+			}
+			players[player * 2] = uuid.getMostSignificantBits();
+			players[player * 2 + 1] = uuid.getLeastSignificantBits();
+
+			addressesOf = ensure(addressesOf, player);
+		}
+
+		int address = addressIds.get(login.getHigh(), login.getLow());
+		if (address < 0)
+		{
+			address = addressIds.size();
+			addressIds.put(login.getHigh(), login.getLow(), address);
+
+			if (address * 2 >= addresses.length)
+			{
+				addresses = Arrays.copyOf(addresses, addresses.length * 2);
+			}
+			addresses[address * 2] = login.getHigh();
+			addresses[address * 2 + 1] = login.getLow();
+
+			playersOf = ensure(playersOf, address);
+			if (address >= seenAt.length)
+			{
+				int length = playersOf.length;
+				seenAt = Arrays.copyOf(seenAt, length);
+				Arrays.fill(seenAt, address, length, NO_TIMES);
+				addressSeen = Arrays.copyOf(addressSeen, length);
+			}
+		}
+
+		long time = login.getLastSeen();
+		addressSeen[address] = Math.max(addressSeen[address], time);
+
+		int[] current = playersOf[address];
+		if (current == SHARED)
+		{
+			return;
+		}
+
+		int index = Arrays.binarySearch(current, player);
+		if (index >= 0)
+		{
+			// already linked, so there is nothing to copy
+			seenAt[address][index] = Math.max(seenAt[address][index], time);
+			return;
+		}
+
+		if (current.length >= maxPlayersPerAddress)
+		{
+			// too many players to say anything about who owns which account
+			for (int other : current)
+			{
+				addressesOf[other] = delete(addressesOf[other], address);
+			}
+
+			playersOf[address] = SHARED;
+			seenAt[address] = NO_TIMES;
+			return;
+		}
+
+		index = -index - 1;
+		playersOf[address] = insert(current, index, player);
+		seenAt[address] = insert(seenAt[address], index, time);
+
+		int[] addresses = addressesOf[player];
+		int at = Arrays.binarySearch(addresses, address);
+		if (at < 0)
+		{
+			addressesOf[player] = insert(addresses, -at - 1, address);
+		}
+	}
+
+	/**
+	 * Grows an array of id lists to hold an id, filling new slots with the empty list.
+	 */
+	private static int[][] ensure(int[][] lists, int id)
+	{
+		if (id < lists.length)
+		{
+			return lists;
+		}
+
+		int[][] grown = Arrays.copyOf(lists, Math.max(32, lists.length * 2));
+		Arrays.fill(grown, lists.length, grown.length, NONE);
+		return grown;
+	}
+
+	/**
+	 * Creates an array of empty id lists, with room for at least the given number of ids.
+	 */
+	private static int[][] lists(int count)
+	{
+		int[][] lists = new int[Math.max(32, count)][];
+		Arrays.fill(lists, NONE);
+		return lists;
+	}
+
+	/**
+	 * Maps a sorted list of ids to their new ids, which keeps it sorted as long as the new ids are
+	 * in the same order.
+	 */
+	private static int[] remap(int[] ids, int[] map)
+	{
+		if (ids.length == 0)
+		{
+			return NONE;
+		}
+
+		int[] mapped = new int[ids.length];
+		for (int i = 0; i < ids.length; i++)
+		{
+			mapped[i] = map[ids[i]];
+		}
+		return mapped;
+	}
+
+	/**
+	 * Adds an id to a sorted list of ids, at the index it belongs.
+	 */
+	private static int[] insert(int[] ids, int index, int id)
+	{
+		int[] inserted = new int[ids.length + 1];
+		System.arraycopy(ids, 0, inserted, 0, index);
+		inserted[index] = id;
+		System.arraycopy(ids, index, inserted, index + 1, ids.length - index);
+		return inserted;
+	}
+
+	private static long[] insert(long[] times, int index, long time)
+	{
+		long[] inserted = new long[times.length + 1];
+		System.arraycopy(times, 0, inserted, 0, index);
+		inserted[index] = time;
+		System.arraycopy(times, index, inserted, index + 1, times.length - index);
+		return inserted;
+	}
+
+	/**
+	 * Removes an id from a sorted list of ids, if it is there.
+	 */
+	private static int[] delete(int[] ids, int id)
+	{
+		int index = Arrays.binarySearch(ids, id);
+		if (index < 0)
+		{
+			return ids;
+		}
+
+		if (ids.length == 1)
+		{
+			return NONE;
+		}
+
+		int[] deleted = new int[ids.length - 1];
+		System.arraycopy(ids, 0, deleted, 0, index);
+		System.arraycopy(ids, index + 1, deleted, index, ids.length - index - 1);
+		return deleted;
+	}
+}
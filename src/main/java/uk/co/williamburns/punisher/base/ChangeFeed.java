@@ -0,0 +1,189 @@
+package uk.co.williamburns.punisher.base;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.data.PunishmentChange;
+import uk.co.williamburns.punisher.data.PunishmentStorage;
+
+/**
+ * Tails the change feed of a storage, passing on punishments added or updated by other servers
+ * sharing it, so that this server's caches can be kept in step without reloading anything.
+ * <p>
+ * Reading starts from wherever the feed ends when this server first polls it. After that, each
+ * poll reads the changes after the last one seen. Sequences are handed out before their
+ * transactions commit, so a change can become visible after a later one has been read; any
+ * sequence skipped over is remembered as a gap and read again on the following polls, until it
+ * turns up or is given up on.
+ */
+public class ChangeFeed
+{
+	private static final int BATCH_SIZE = 500;
+
+	// a skipped sequence that hasn't turned up by then was rolled back, or never will commit
+	private static final long GAP_TIMEOUT = 10000L;
+
+	// a bigger jump than this is taken as the sequence moving on, rather than as gaps
+	private static final int MAX_GAPS = 1000;
+
+	private final long retention;
+
+	// guarded by this object's monitor
+	private long cursor = -1L; // -1 until started
+	private final TreeMap<Long, Long> gaps = new TreeMap<>(); // sequence to time first skipped
+	private boolean polling;
+	private long lastPrune;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param retention The number of milliseconds changes are kept in storage before being
+	 *                  pruned.
+	 */
+	public ChangeFeed(long retention)
+	{
+		this.retention = retention;
+	}
+
+	/**
+	 * Reads the changes made by other servers since the last poll, pruning old changes from
+	 * storage every so often.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param storage The storage that changes are read from.
+	 * @param consumer Accepts each punishment changed by another server, as it is now, in the
+	 *                 order of the changes.
+	 */
+	public void poll(PunishmentStorage storage, Consumer<Punishment> consumer)
+	{
+		long now = System.currentTimeMillis();
+		long from;
+		synchronized (this)
+		{
+			if (polling)
+			{
+				return;
+			}
+
+			polling = true;
+			from = cursor;
+		}
+
+		try
+		{
+			if (from < 0L)
+			{
+				// nothing before now matters, as everything is loaded fresh anyway
+				long latest = storage.loadLatestChange();
+				synchronized (this)
+				{
+					cursor = latest;
+					lastPrune = now;
+				}
+				return;
+			}
+
+			// read forward in batches from the earliest gap, through to the end of the feed
+			long[] after = { start(now) };
+			int read;
+			do
+			{
+				List<Punishment> changed = new ArrayList<>();
+				read = storage.loadChanges(after[0], BATCH_SIZE, c ->
+				{
+					after[0] = c.getSequence();
+					if (accept(c.getSequence(), now) && !c.isLocal())
+					{
+						changed.add(c.getPunishment());
+					}
+				});
+
+				changed.forEach(consumer);
+			}
+			while (read == BATCH_SIZE);
+
+			if (now - lastPrune >= retention / 2)
+			{
+				storage.pruneChanges(now - retention);
+				lastPrune = now;
+			}
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				polling = false;
+			}
+		}
+	}
+
+	/**
+	 * Forgets about gaps that have been waited on for too long, and works out where to read from.
+	 *
+	 * @param now The current time, as an epoch timestamp.
+	 * @return The sequence that changes are read after.
+	 */
+	private synchronized long start(long now)
+	{
+		Iterator<Long> it = gaps.values().iterator();
+		while (it.hasNext())
+		{
+			if (now - it.next() >= GAP_TIMEOUT)
+			{
+				it.remove();
+			}
+		}
+
+		return gaps.isEmpty() ? cursor : Math.min(cursor, gaps.firstKey() - 1L);
+	}
+
+	/**
+	 * Moves the cursor past a change that has been read, recording any sequences it skips.
+	 *
+	 * @param sequence The sequence of the change.
+	 * @param now The current time, as an epoch timestamp.
+	 * @return Whether or not the change is new, rather than one read before.
+	 */
+	private synchronized boolean accept(long sequence, long now)
+	{
+		if (sequence <= cursor)
+		{
+			// only new if it fills a gap
+			return gaps.remove(sequence) != null;
+		}
+
+		if (sequence - cursor - 1L <= MAX_GAPS)
+		{
+			for (long s = cursor + 1L; s < sequence; s++)
+			{
+				gaps.put(s, now);
+			}
+		}
+
+		cursor = sequence;
+		return true;
+	}
+
+	/**
+	 * @return The number of skipped sequences still being waited on.
+	 */
+	public synchronized int getGapCount()
+	{
+		return gaps.size();
+	}
+
+	/**
+	 * @return The sequence of the last change read, or <code>-1</code> if the feed hasn't been
+	 *         polled yet.
+	 */
+	public synchronized long getCursor()
+	{
+		return cursor;
+	}
+}
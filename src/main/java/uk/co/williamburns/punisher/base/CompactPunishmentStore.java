@@ -0,0 +1,392 @@
+package uk.co.williamburns.punisher.base;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.PunishmentType;
+
+/**
+ * An immutable set of punishments laid out in columns of primitive arrays, sorted by player, for
+ * holding a very large number of punishments in as little memory as possible.
+ * <p>
+ * UUIDs are held as pairs of <code>long</code>s, types as byte ordinals, and staff members and
+ * reasons as indexes into tables of the distinct values, since a network has few of either. Names
+ * are packed into a single byte array, once per player. A punishment takes around 60 bytes this
+ * way, rather than the 250 or so of a {@link PlayerPunishment} with its own UUIDs and strings,
+ * plus the map entry of its player.
+ * <p>
+ * A player's punishments are found by binary search, and handed out as new
+ * {@link PlayerPunishment} objects. Every punishment is taken to be not removed.
+ */
+public final class CompactPunishmentStore
+{
+	/**
+	 * A store of no punishments.
+	 */
+	public static final CompactPunishmentStore EMPTY = new Builder().build();
+
+	private final long[] msb;
+	private final long[] lsb;
+	private final int[] ids;
+	private final long[] times;
+	private final long[] durations;
+	private final byte[] types;
+	private final int[] staff;
+	private final int[] reasons;
+	private final int[] names; // offsets into nameBytes, each a length byte then utf-8
+
+	private final PunishmentType[] typeTable;
+	private final long[] staffTable; // two longs per staff member
+	private final String[] reasonTable;
+	private final byte[] nameBytes;
+
+	private CompactPunishmentStore(Builder b, int[] order)
+	{
+		int size = order.length;
+		this.msb = new long[size];
+		this.lsb = new long[size];
+		this.ids = new int[size];
+		this.times = new long[size];
+		this.durations = new long[size];
+		this.types = new byte[size];
+		this.staff = new int[size];
+		this.reasons = new int[size];
+		this.names = new int[size];
+
+		// write names in sorted order, so that a player's punishments can share one copy
+		NameWriter nameWriter = new NameWriter(b.nameBytes.length);
+		for (int i = 0; i < size; i++)
+		{
+			int from = order[i];
+			msb[i] = b.msb[from];
+			lsb[i] = b.lsb[from];
+			ids[i] = b.ids[from];
+			times[i] = b.times[from];
+			durations[i] = b.durations[from];
+			types[i] = b.types[from];
+			staff[i] = b.staff[from];
+			reasons[i] = b.reasons[from];
+
+			boolean samePlayer = i > 0 && msb[i] == msb[i - 1] && lsb[i] == lsb[i - 1];
+			names[i] = samePlayer && equalNames(b.nameBytes, b.names[from], nameWriter.bytes,
+					names[i - 1]) ? names[i - 1] : nameWriter.write(b.nameBytes, b.names[from]);
+		}
+
+		this.typeTable = b.typeTable.toArray(new PunishmentType[0]);
+		this.staffTable = Arrays.copyOf(b.staffTable, b.staffIds.size() * 2);
+		this.reasonTable = b.reasonTable.toArray(new String[0]);
+		this.nameBytes = Arrays.copyOf(nameWriter.bytes, nameWriter.length);
+	}
+
+	/**
+	 * Retrieves the punishments of a player.
+	 *
+	 * @param player The UUID of the player.
+	 * @return The punishments of the player, in order of id, which is empty if there are none.
+	 */
+	public Punishment[] get(UUID player)
+	{
+		long high = player.getMostSignificantBits();
+		long low = player.getLeastSignificantBits();
+
+		// find the first of the player's punishments, if any
+		int from = 0;
+		int to = msb.length;
+		while (from < to)
+		{
+			int mid = (from + to) >>> 1;
+			if (compare(msb[mid], lsb[mid], high, low) < 0)
+			{
+				from = mid + 1;
+			}
+			else
+			{
+				to = mid;
+			}
+		}
+
+		int end = from;
+		while (end < msb.length && msb[end] == high && lsb[end] == low)
+		{
+			end++;
+		}
+
+		Punishment[] puns = new Punishment[end - from];
+		for (int i = from; i < end; i++)
+		{
+			puns[i - from] = toPunishment(i, player);
+		}
+
+		return puns;
+	}
+
+	/**
+	 * Checks whether a player has a punishment with the given id.
+	 *
+	 * @param player The UUID of the player.
+	 * @param id The id of the punishment.
+	 * @return Whether or not the punishment is held for the player.
+	 */
+	public boolean contains(UUID player, int id)
+	{
+		long high = player.getMostSignificantBits();
+		long low = player.getLeastSignificantBits();
+
+		int from = 0;
+		int to = msb.length - 1;
+		while (from <= to)
+		{
+			int mid = (from + to) >>> 1;
+			int c = compare(msb[mid], lsb[mid], high, low);
+			if (c == 0)
+			{
+				c = Integer.compare(ids[mid], id);
+			}
+
+			if (c == 0)
+			{
+				return true;
+			}
+			else if (c < 0)
+			{
+				from = mid + 1;
+			}
+			else
+			{
+				to = mid - 1;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The number of punishments held.
+	 */
+	public int size()
+	{
+		return ids.length;
+	}
+
+	/**
+	 * @return An estimate of the memory taken up by the store, in bytes, assuming compressed
+	 *         references.
+	 */
+	public long getEstimatedSize()
+	{
+		// four longs, four ints and a byte of columns per punishment
+		long bytes = ids.length * (4 * 8L + 4 * 4L + 1L) + nameBytes.length + staffTable.length *
+				8L;
+		for (String reason : reasonTable)
+		{
+			bytes += 4L + 24L + 16L + ((2L * reason.length() + 7L) & ~7L);
+		}
+
+		return bytes;
+	}
+
+	private Punishment toPunishment(int i, UUID player)
+	{
+		int name = names[i];
+		int s = staff[i] * 2;
+		return new PlayerPunishment(ids[i], typeTable[types[i]], player, new String(nameBytes, name
+				+ 1, nameBytes[name] & 0xFF, StandardCharsets.UTF_8), new UUID(staffTable[s],
+				staffTable[s + 1]), reasonTable[reasons[i]], times[i], durations[i], false);
+	}
+
+	private static int compare(long msb1, long lsb1, long msb2, long lsb2)
+	{
+		int c = Long.compare(msb1, msb2);
+		return c != 0 ? c : Long.compare(lsb1, lsb2);
+	}
+
+	private static boolean equalNames(byte[] a, int aOffset, byte[] b, int bOffset)
+	{
+		int length = a[aOffset] & 0xFF;
+		if ((b[bOffset] & 0xFF) != length)
+		{
+			return false;
+		}
+
+		for (int i = 1; i <= length; i++)
+		{
+			if (a[aOffset + i] != b[bOffset + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Collects punishments in any order, to be built into a store.
+	 * <p>
+	 * This class is not thread safe.
+	 */
+	public static final class Builder
+	{
+		private long[] msb = new long[16];
+		private long[] lsb = new long[16];
+		private int[] ids = new int[16];
+		private long[] times = new long[16];
+		private long[] durations = new long[16];
+		private byte[] types = new byte[16];
+		private int[] staff = new int[16];
+		private int[] reasons = new int[16];
+		private int[] names = new int[16];
+		private int size;
+
+		private final List<PunishmentType> typeTable = new ArrayList<>();
+		private final Map<UUID, Integer> staffIds = new HashMap<>();
+		private long[] staffTable = new long[16];
+		private final Map<String, Integer> reasonIds = new HashMap<>();
+		private final List<String> reasonTable = new ArrayList<>();
+		private byte[] nameBytes = new byte[256];
+		private int nameLength;
+
+		/**
+		 * Adds a punishment. Only the punishments in effect should be added, since the store
+		 * doesn't keep whether or not a punishment has been removed.
+		 *
+		 * @param p The punishment.
+		 * @throws IllegalStateException If the punishment is of the 129th distinct type added.
+		 */
+		public void add(Punishment p)
+		{
+			if (size == ids.length)
+			{
+				int capacity = size * 2;
+				msb = Arrays.copyOf(msb, capacity);
+				lsb = Arrays.copyOf(lsb, capacity);
+				ids = Arrays.copyOf(ids, capacity);
+				times = Arrays.copyOf(times, capacity);
+				durations = Arrays.copyOf(durations, capacity);
+				types = Arrays.copyOf(types, capacity);
+				staff = Arrays.copyOf(staff, capacity);
+				reasons = Arrays.copyOf(reasons, capacity);
+				names = Arrays.copyOf(names, capacity);
+			}
+
+			msb[size] = p.getUuid().getMostSignificantBits();
+			lsb[size] = p.getUuid().getLeastSignificantBits();
+			ids[size] = p.getId();
+			times[size] = p.getTimePunished();
+			durations[size] = p.getDuration();
+			types[size] = typeOrdinal(p.getType());
+			staff[size] = staffId(p.getStaffUuid());
+			reasons[size] = reasonTable.size();
+			Integer reason = reasonIds.putIfAbsent(p.getReason(), reasons[size]);
+			if (reason == null)
+			{
+				reasonTable.add(p.getReason());
+			}
+			else
+			{
+				reasons[size] = reason;
+			}
+			names[size] = writeName(p.getPunishedName());
+			size++;
+		}
+
+		/**
+		 * @return A store of every punishment added.
+		 */
+		public CompactPunishmentStore build()
+		{
+			// an index sort, so that every column is reordered the same way
+			int[] order = IntStream.range(0, size).boxed().sorted(Comparator.comparingLong((Integer
+					i) -> msb[i]).thenComparingLong(i -> lsb[i]).thenComparingInt(i -> ids[i]))
+					.mapToInt(Integer::intValue).toArray();
+			return new CompactPunishmentStore(this, order);
+		}
+
+		private byte typeOrdinal(PunishmentType type)
+		{
+			int ordinal = typeTable.indexOf(type);
+			if (ordinal < 0)
+			{
+				if (typeTable.size() > Byte.MAX_VALUE)
+				{
+					throw new IllegalStateException("Too many punishment types");
+				}
+
+				ordinal = typeTable.size();
+				typeTable.add(type);
+			}
+
+			return (byte) ordinal;
+		}
+
+		private int staffId(UUID uuid)
+		{
+			Integer id = staffIds.get(uuid);
+			if (id != null)
+			{
+				return id;
+			}
+
+			id = staffIds.size();
+			staffIds.put(uuid, id);
+			if (id * 2 >= staffTable.length)
+			{
+				staffTable = Arrays.copyOf(staffTable, staffTable.length * 2);
+			}
+			staffTable[id * 2] = uuid.getMostSignificantBits();
+			staffTable[id * 2 + 1] = uuid.getLeastSignificantBits();
+			return id;
+		}
+
+		private int writeName(String name)
+		{
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			int length = Math.min(bytes.length, 255);
+			if (nameLength + length + 1 > nameBytes.length)
+			{
+				nameBytes = Arrays.copyOf(nameBytes, Math.max(nameBytes.length * 2, nameLength +
+						length + 1));
+			}
+
+			int offset = nameLength;
+			nameBytes[offset] = (byte) length;
+			System.arraycopy(bytes, 0, nameBytes, offset + 1, length);
+			nameLength += length + 1;
+			return offset;
+		}
+	}
+
+	/**
+	 * Packs names into a growing byte array, each as a length byte then its bytes.
+	 */
+	private static final class NameWriter
+	{
+		private byte[] bytes;
+		private int length;
+
+		private NameWriter(int capacity)
+		{
+			this.bytes = new byte[Math.max(16, capacity)];
+		}
+
+		private int write(byte[] from, int offset)
+		{
+			int size = (from[offset] & 0xFF) + 1;
+			if (length + size > bytes.length)
+			{
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+			}
+
+			System.arraycopy(from, offset, bytes, length, size);
+			length += size;
+			return length - size;
+		}
+	}
+}
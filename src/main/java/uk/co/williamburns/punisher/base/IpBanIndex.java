@@ -0,0 +1,246 @@
+package uk.co.williamburns.punisher.base;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.data.PunishmentStorage;
+import uk.co.williamburns.punisher.util.AddressRange;
+import uk.co.williamburns.punisher.util.AddressTrie;
+import uk.co.williamburns.punisher.util.IntObjectMap;
+
+/**
+ * An in-memory index of the IP bans in effect, by address range, so that logins can be checked
+ * against every banned range without asking the database.
+ * <p>
+ * Ranges are held in an {@link AddressTrie}, so a check costs at most one step per bit of the
+ * address however many ranges are banned. The index is loaded in full from storage every so
+ * often, and kept up to date in between by bans saved on this server and picked up from the
+ * change feed. Bans that run out are skipped by lookups, and dropped on the next load.
+ * <p>
+ * Where several bans cover the same range, the trie holds whichever lasts the longest, and the
+ * others are kept aside so that one of them takes its place if it is removed.
+ */
+public class IpBanIndex
+{
+	private static final Predicate<Punishment> ACTIVE = Punishment::isActive;
+
+	private final Logger logger;
+	private final PunishmentType type;
+
+	// guarded by this object's monitor
+	private AddressTrie<IpPunishment> bans = new AddressTrie<>();
+	private IntObjectMap<IpPunishment> byId = new IntObjectMap<>();
+	private Map<AddressRange, List<IpPunishment>> byRange = new HashMap<>();
+	private List<Punishment> missed; // updates made while loading; null unless loading
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param logger The logger that failed loads are reported to.
+	 * @param type The punishment type of IP bans. Punishments of other types are ignored.
+	 */
+	public IpBanIndex(Logger logger, PunishmentType type)
+	{
+		this.logger = logger;
+		this.type = type;
+	}
+
+	/**
+	 * Finds the IP ban in effect on an address, if any.
+	 *
+	 * @param address The address.
+	 * @return The ban of the most specific banned range containing the address, or
+	 *         <code>null</code> if it isn't banned.
+	 */
+	public Punishment find(InetAddress address)
+	{
+		byte[] bytes = address.getAddress();
+		long high = AddressRange.high(bytes);
+		long low = AddressRange.low(bytes);
+
+		synchronized (this)
+		{
+			return bans.find(high, low, ACTIVE);
+		}
+	}
+
+	/**
+	 * Retrieves an IP ban held in the index.
+	 *
+	 * @param id The id of the ban.
+	 * @return The ban, with its range, or <code>null</code> if it isn't held.
+	 */
+	public synchronized IpPunishment get(int id)
+	{
+		return byId.get(id);
+	}
+
+	/**
+	 * Loads every IP ban in effect from storage, replacing the index.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param storage The storage that bans are loaded from.
+	 */
+	public void refresh(PunishmentStorage storage)
+	{
+		synchronized (this)
+		{
+			if (missed != null)
+			{
+				// already loading
+				return;
+			}
+
+			missed = new ArrayList<>();
+		}
+
+		AddressTrie<IpPunishment> trie = new AddressTrie<>();
+		IntObjectMap<IpPunishment> ids = new IntObjectMap<>();
+		Map<AddressRange, List<IpPunishment>> ranges = new HashMap<>();
+		int count = -1;
+		try
+		{
+			count = storage.loadIpBans(System.currentTimeMillis(), p -> add(trie, ids, ranges, p));
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				List<Punishment> updates = missed;
+				missed = null;
+
+				if (count >= 0)
+				{
+					bans = trie;
+					byId = ids;
+					byRange = ranges;
+
+					// anything saved while loading may or may not have been read
+					updates.forEach(this::apply);
+				}
+			}
+		}
+
+		if (count < 0)
+		{
+			logger.warning("Could not load IP bans; keeping the bans already loaded.");
+		}
+	}
+
+	/**
+	 * Updates the index with a punishment that was saved or changed.
+	 *
+	 * @param punishment The punishment, as it is now.
+	 * @return <code>false</code> if the punishment is an IP ban in effect whose range isn't
+	 *         known, so it can only be indexed by loading the index again; otherwise
+	 *         <code>true</code>.
+	 */
+	public synchronized boolean update(Punishment punishment)
+	{
+		if (punishment.getType() != type)
+		{
+			return true;
+		}
+
+		if (missed != null)
+		{
+			missed.add(punishment);
+		}
+
+		return apply(punishment);
+	}
+
+	/**
+	 * @return The number of banned ranges held, including any that have run out since the last
+	 *         load.
+	 */
+	public synchronized int size()
+	{
+		return bans.size();
+	}
+
+	private boolean apply(Punishment punishment)
+	{
+		IpPunishment known = byId.get(punishment.getId());
+		if (!punishment.isActive())
+		{
+			if (known != null)
+			{
+				remove(known);
+			}
+			return true;
+		}
+
+		if (punishment instanceof IpPunishment)
+		{
+			add(bans, byId, byRange, (IpPunishment) punishment);
+			return true;
+		}
+
+		// copies from other servers don't carry their range
+		return known != null;
+	}
+
+	/**
+	 * Removes a ban from the index, putting the longest lasting other ban of the same range in
+	 * its place if it was the one held in the trie.
+	 */
+	private void remove(IpPunishment ban)
+	{
+		byId.remove(ban.getId());
+
+		List<IpPunishment> same = byRange.get(ban.getRange());
+		if (same != null)
+		{
+			same.removeIf(p -> p.getId() == ban.getId());
+			if (same.isEmpty())
+			{
+				byRange.remove(ban.getRange());
+				same = null;
+			}
+		}
+
+		if (bans.remove(ban.getRange(), ban) && same != null)
+		{
+			same.stream().filter(Punishment::isActive).max(Comparator.comparingLong(
+					IpBanIndex::end)).ifPresent(next -> bans.put(next.getRange(), next));
+		}
+	}
+
+	/**
+	 * Adds a ban to an index, keeping whichever ban of the same range lasts the longest in the
+	 * trie.
+	 */
+	private static void add(AddressTrie<IpPunishment> trie, IntObjectMap<IpPunishment> ids,
+							Map<AddressRange, List<IpPunishment>> ranges, IpPunishment ban)
+	{
+		ids.put(ban.getId(), ban);
+
+		// replacing any earlier copy of the same ban
+		List<IpPunishment> same = ranges.computeIfAbsent(ban.getRange(), r -> new ArrayList<>(1));
+		same.removeIf(p -> p.getId() == ban.getId());
+		same.add(ban);
+
+		IpPunishment previous = trie.put(ban.getRange(), ban);
+		if (previous != null && previous != ban && previous.isActive() && end(previous) > end(ban))
+		{
+			trie.put(previous.getRange(), previous);
+		}
+	}
+
+	private static long end(Punishment punishment)
+	{
+		return punishment.getDuration() < 0L ? Long.MAX_VALUE : punishment.getTimePunished() +
+				punishment.getDuration();
+	}
+}
@@ -0,0 +1,106 @@
+package uk.co.williamburns.punisher.base;
+
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+
+import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.util.AddressRange;
+
+/**
+ * A punishment of a range of IP addresses, rather than only of a player.
+ * <p>
+ * It is stored as an ordinary punishment, so that it shows up in history and can be removed like
+ * any other, with its range stored alongside. The UUID is that of the player the range was
+ * taken from, or the nil UUID if the range was given directly.
+ */
+public class IpPunishment extends PlayerPunishment
+{
+	/**
+	 * The UUID of an IP punishment that wasn't issued against a player.
+	 */
+	public static final UUID NO_PLAYER = new UUID(0L, 0L);
+
+	/**
+	 * The punished name of an IP punishment that wasn't issued against a player.
+	 */
+	public static final String NO_PLAYER_NAME = "[IP range]";
+
+	private final AddressRange range;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param id The id of this punishment. <code>-1</code> if there is no auto-generated id
+	 *           assigned yet.
+	 * @param type The type of punishment.
+	 * @param uuid The UUID of the target player, or {@link #NO_PLAYER}.
+	 * @param punishedName The name of the target player at time of punishment.
+	 * @param staffUuid The UUID of the staff member.
+	 * @param reason The reason for this punishment.
+	 * @param timePunished The time this punishment was made.
+	 * @param duration The duration of this punishment. <code>-1L</code> if permanent.
+	 * @param removed Whether or not this punishment has been removed.
+	 * @param range The range of addresses punished.
+	 */
+	public IpPunishment(int id, PunishmentType type, UUID uuid, String punishedName, UUID staffUuid,
+						String reason, long timePunished, long duration, boolean removed,
+						AddressRange range)
+	{
+		super(id, type, uuid, punishedName, staffUuid, reason, timePunished, duration, removed);
+		this.range = range;
+	}
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Use when issuing new punishments that lack auto-generated ids.
+	 *
+	 * @param type The type of punishment.
+	 * @param uuid The UUID of the target player, or {@link #NO_PLAYER}.
+	 * @param punishedName The name of the target player at time of punishment.
+	 * @param staffUuid The UUID of the staff member.
+	 * @param reason The reason for this punishment.
+	 * @param timePunished The time this punishment was made.
+	 * @param duration The duration of this punishment. <code>-1L</code> if permanent.
+	 * @param range The range of addresses punished.
+	 */
+	public IpPunishment(PunishmentType type, UUID uuid, String punishedName, UUID staffUuid,
+						String reason, long timePunished, long duration, AddressRange range)
+	{
+		this(-1, type, uuid, punishedName, staffUuid, reason, timePunished, duration, false, range);
+	}
+
+	/**
+	 * @return The range of addresses punished.
+	 */
+	public AddressRange getRange()
+	{
+		return range;
+	}
+
+	/**
+	 * Checks whether an online player is covered by this punishment, either because they are
+	 * connected from the range or because it was issued against them.
+	 *
+	 * @param player The player.
+	 * @return Whether or not the player is covered.
+	 */
+	public boolean appliesTo(Player player)
+	{
+		if (player.getUniqueId().equals(getUuid()))
+		{
+			return true;
+		}
+
+		InetSocketAddress address = player.getAddress();
+		if (address == null || address.getAddress() == null)
+		{
+			return false;
+		}
+
+		byte[] bytes = address.getAddress().getAddress();
+		return range.contains(AddressRange.high(bytes), AddressRange.low(bytes));
+	}
+}
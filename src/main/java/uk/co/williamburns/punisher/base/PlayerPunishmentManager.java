@@ -1,129 +1,669 @@
 package uk.co.williamburns.punisher.base;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
-import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.scheduler.BukkitRunnable;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.api.HistoryPage;
+import uk.co.williamburns.punisher.api.HistoryQuery;
 import uk.co.williamburns.punisher.api.Punishment;
 import uk.co.williamburns.punisher.api.PunishmentManager;
 import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.api.Restriction;
+import uk.co.williamburns.punisher.data.FilePunishmentStorage;
 import uk.co.williamburns.punisher.data.PunishmentDatabase;
+import uk.co.williamburns.punisher.data.PunishmentStorage;
 import uk.co.williamburns.punisher.type.BanType;
+import uk.co.williamburns.punisher.type.IpBanType;
 import uk.co.williamburns.punisher.type.KickType;
 import uk.co.williamburns.punisher.type.MuteType;
+import uk.co.williamburns.punisher.util.IntObjectMap;
+import uk.co.williamburns.punisher.util.MessageUtil;
+import uk.co.williamburns.punisher.util.ProfileCache;
+import uk.co.williamburns.punisher.util.concurrent.TaskPriority;
+import uk.co.williamburns.punisher.util.concurrent.TimerWheel;
+import uk.co.williamburns.punisher.util.metrics.Histogram;
+import uk.co.williamburns.punisher.util.metrics.Metrics;
 
 /**
  * A basic implementation of {@link PunishmentManager} that loads and saves player punishments on
  * login and on punishment.
+ * <p>
+ * Logins are checked before the player is admitted, on the connection thread. If punishments
+ * can't be loaded within the configured deadline, the player is let in or refused depending on
+ * whether the manager is configured to fail open or closed.
  */
 public class PlayerPunishmentManager implements PunishmentManager, Listener
 {
+	// punishments expire to the second, on a wheel that turns about once an hour
+	private static final long EXPIRY_TICK = 1000L;
+	private static final int EXPIRY_SLOTS = 4096;
+
+	// staff with this permission are told when a player shares an address with a banned player
+	private static final String ALT_ALERT_PERMISSION = "punisher.alerts.alts";
+	private static final long ALT_PRUNE_INTERVAL = 20L * 60L * 60L; // ticks
+
 	private final Punisher plugin;
-	private final PunishmentDatabase database;
+	private final PunishmentStorage database;
 
 	private final List<PunishmentType> types;
 
-	private final Map<UUID, Set<Punishment>> punishments;
+	private final PunishmentCache punishments;
+	private final Map<UUID, PunishmentSummary> summaries; // only players that are restricted
+	private final Map<UUID, Set<Punishment>> activeOnly; // cached sets that aren't full histories
+	private final IntObjectMap<Punishment> ids; // cached punishments by id; guarded by itself
+	private final PunishedPlayerFilter filter; // null if disabled
+	private final long filterRefreshInterval;
+	private final ActivePunishmentIndex active; // null if disabled
+	private final long activeRefreshInterval;
+	private final IpBanIndex ipBans;
+	private final long ipBanRefreshInterval;
+	private final ChangeFeed changes; // null if disabled
+	private final long changePollInterval;
+	private final AltAccountIndex alts; // null if disabled
+	private final long altMaxAge;
+	private final int altMaxChecked;
+	private final boolean altBlock;
+	private final long altWriteInterval;
+
+	private final TimerWheel<Punishment> expiries;
+	private final IntObjectMap<TimerWheel.Timeout> expiryTimeouts; // by id; guarded by itself
+	private final boolean notifyUnmute;
+	private final int punishPerTick;
+
+	private final long loginDeadline;
+	private final int loginQueryTimeout;
+	private final boolean loginFailClosed;
+
+	private final Histogram loadTimes;
+	private final LongAdder loadErrors;
+	private final Histogram saveTimes;
+	private final LongAdder saveErrors;
+	private final Histogram loginTimes;
+	private final LongAdder loginFailures;
+	private final Histogram chatTimes;
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Punishments are stored wherever <code>storage.type</code> in the config says.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 * @param profiles The profile cache used to resolve player names.
+	 */
+	public PlayerPunishmentManager(Punisher plugin, ProfileCache profiles)
+	{
+		this(plugin, profiles, manager -> createStorage(manager, plugin));
+	}
 
 	/**
 	 * Class constructor.
 	 *
 	 * @param plugin The Punisher plugin instance.
+	 * @param profiles The profile cache used to resolve player names.
+	 * @param database Creates the storage that punishments are loaded from and saved to, given
+	 *                 this manager.
 	 */
-	public PlayerPunishmentManager(Punisher plugin)
+	public PlayerPunishmentManager(Punisher plugin, ProfileCache profiles,
+								   Function<PunishmentManager, PunishmentStorage> database)
 	{
 		this.plugin = plugin;
-		this.database = new PunishmentDatabase(this, plugin);
+		this.database = database.apply(this);
 
 		this.types = new ArrayList<>();
-		this.types.add(new BanType());
+		IpBanType ipBanType = new IpBanType(profiles);
+		this.types.add(new BanType(profiles));
+		this.types.add(ipBanType);
 		this.types.add(new KickType());
-		this.types.add(new MuteType());
+		this.types.add(new MuteType(profiles, TimeUnit.SECONDS.toMillis(plugin.getConfig()
+				.getLong("mute.notice-cooldown-seconds", 3L))));
 
-		this.punishments = new ConcurrentHashMap<>();
+		this.activeOnly = new ConcurrentHashMap<>();
+		ConfigurationSection cache = plugin.getConfig().getConfigurationSection("cache");
+		this.punishments = new PunishmentCache(cache.getLong("max-size", 10000L),
+				cache.getLong("offline-ttl-minutes", 10L), (uuid, puns) ->
+				{
+					// forget about evicted punishments everywhere else too
+					unindex(puns);
+					activeOnly.computeIfPresent(uuid, (u, set) -> set == puns ? null : set);
+					summarise(uuid);
+				});
+		this.summaries = new ConcurrentHashMap<>();
+		this.ids = new IntObjectMap<>();
+
+		// temporary punishments are expired as they run out, rather than checked on every use
+		this.expiries = new TimerWheel<>(EXPIRY_TICK, EXPIRY_SLOTS, System.currentTimeMillis());
+		this.expiryTimeouts = new IntObjectMap<>();
+		this.notifyUnmute = plugin.getConfig().getBoolean("expiry.notify-unmute", true);
+		this.punishPerTick = Math.max(1, plugin.getConfig().getInt("bulk.punish-per-tick", 10));
+
+		// login admission settings; the query timeout is in whole seconds, rounded up
+		ConfigurationSection login = plugin.getConfig().getConfigurationSection("login");
+		this.loginDeadline = login.getLong("deadline-ms", 3000L);
+		this.loginQueryTimeout = (int) Math.max(1L, (loginDeadline + 999L) / 1000L);
+		this.loginFailClosed = login.getBoolean("fail-closed", false);
+
+		// skip loading the punishments of players who have never been punished
+		ConfigurationSection fs = plugin.getConfig().getConfigurationSection("filter");
+		this.filter = fs.getBoolean("enabled", true) ? new PunishedPlayerFilter(plugin.getLogger(),
+				fs.getLong("expected-players", 1000000L), fs.getDouble("false-positive-rate", 0.01D))
+				: null;
+		this.filterRefreshInterval = fs.getLong("refresh-seconds", 30L) * 20L;
+
+		// check logins against punishments held in memory, rather than the database
+		ConfigurationSection ws = plugin.getConfig().getConfigurationSection("warm-load");
+		this.active = ws.getBoolean("enabled", false) ? new ActivePunishmentIndex(plugin.getLogger(),
+				TimeUnit.MINUTES.toMillis(ws.getLong("full-refresh-minutes", 60L))) : null;
+		this.activeRefreshInterval = ws.getLong("refresh-seconds", 30L) * 20L;
+
+		// check logins against every banned address range in memory
+		this.ipBans = new IpBanIndex(plugin.getLogger(), ipBanType);
+		this.ipBanRefreshInterval = Math.max(1L, plugin.getConfig().getLong(
+				"ip-bans.refresh-seconds", 60L)) * 20L;
+
+		// pick up punishments saved and removed by other servers sharing the database
+		ConfigurationSection ss = plugin.getConfig().getConfigurationSection("sync");
+		this.changes = ss.getBoolean("enabled", true) ? new ChangeFeed(TimeUnit.HOURS.toMillis(ss
+				.getLong("retention-hours", 24L))) : null;
+		this.changePollInterval = Math.max(1L, ss.getLong("poll-ms", 1000L) / 50L);
+
+		// link players by the addresses they log in from, to catch banned players on other accounts
+		ConfigurationSection as = plugin.getConfig().getConfigurationSection("alts");
+		this.altMaxAge = TimeUnit.DAYS.toMillis(as.getLong("max-age-days", 30L));
+		this.alts = as.getBoolean("enabled", true) ? new AltAccountIndex(plugin.getLogger(),
+				altMaxAge, as.getInt("max-players-per-address", 50)) : null;
+		this.altMaxChecked = as.getInt("max-checked", 20);
+		this.altBlock = as.getBoolean("block-banned", false);
+		this.altWriteInterval = Math.max(1L, as.getLong("write-interval-seconds", 5L)) * 20L;
+
+		// time everything that a player can end up waiting on
+		Metrics metrics = plugin.getMetrics();
+		this.loadTimes = metrics.histogram("punisher_storage_load_seconds",
+				"Time taken to load a player's punishments from storage.");
+		this.loadErrors = metrics.counter("punisher_storage_load_errors_total",
+				"Loads of a player's punishments from storage that failed or timed out.");
+		this.saveTimes = metrics.histogram("punisher_storage_save_seconds",
+				"Time from queueing a punishment to save until it is saved, or fails to be.");
+		this.saveErrors = metrics.counter("punisher_storage_save_errors_total",
+				"Punishments that failed to save.");
+		this.loginTimes = metrics.histogram("punisher_login_check_seconds",
+				"Time taken to check the punishments of a player logging in.");
+		this.loginFailures = metrics.counter("punisher_login_check_failures_total",
+				"Logins whose punishments could not be checked in time.");
+		this.chatTimes = metrics.histogram("punisher_chat_check_seconds",
+				"Time taken to check a chat message against the sender's punishments.");
+		metrics.gauge("punisher_cache_players", "Players with punishments cached.",
+				punishments::size);
+		metrics.counter("punisher_cache_hits_total", "Lookups of cached punishments that hit.",
+				punishments::getHitCount);
+		metrics.counter("punisher_cache_misses_total", "Lookups of cached punishments that missed.",
+				punishments::getMissCount);
+		metrics.counter("punisher_cache_evictions_total", "Players evicted from the cache.",
+				punishments::getEvictionCount);
+		if (active != null)
+		{
+			metrics.gauge("punisher_active_punishments", "Punishments in effect held in memory.",
+					active::size);
+		}
+		metrics.gauge("punisher_ip_bans", "Banned address ranges held in memory.", ipBans::size);
+		if (changes != null)
+		{
+			metrics.gauge("punisher_sync_gaps", "Skipped change feed sequences still waited on.",
+					changes::getGapCount);
+		}
+		if (alts != null)
+		{
+			metrics.gauge("punisher_alt_players", "Players whose login addresses are held in memory.",
+					alts::getPlayerCount);
+			metrics.gauge("punisher_alt_addresses", "Login addresses held in memory.",
+					alts::getAddressCount);
+		}
 
 		plugin.getServer().getPluginManager().registerEvents(this, plugin);
 	}
 
+	/**
+	 * Seeds a profile cache with the names of recently punished players, in the background.
+	 *
+	 * @param profiles The profile cache that is seeded.
+	 */
+	public void seedProfiles(ProfileCache profiles)
+	{
+		int limit = plugin.getConfig().getInt("profiles.cache-size", 10000);
+		plugin.getExecutor().execute(TaskPriority.BACKGROUND, () ->
+				database.loadPunishedNames(limit, profiles));
+	}
+
+	/**
+	 * Starts the manager's periodic tasks: expiring temporary punishments as they run out,
+	 * building the punished player filter and loading active punishments into memory in the
+	 * background, then keeping them up to date with punishments saved by other servers,
+	 * tailing the change feed for punishments other servers add or update, and loading and
+	 * saving the addresses players log in from.
+	 */
+	public void scheduleTasks()
+	{
+		plugin.getServer().getScheduler().runTaskTimer(plugin, () -> expiries.advance(System
+				.currentTimeMillis(), this::expire), 20L, 20L);
+
+		if (filter != null)
+		{
+			plugin.getServer().getScheduler().runTaskTimer(plugin, plugin.getExecutor().periodic(
+					TaskPriority.BACKGROUND, () -> filter.refresh(database)), 0L,
+					filterRefreshInterval);
+		}
+
+		if (active != null)
+		{
+			plugin.getServer().getScheduler().runTaskTimer(plugin, plugin.getExecutor().periodic(
+					TaskPriority.BACKGROUND, () -> active.refresh(database)), 0L,
+					activeRefreshInterval);
+		}
+
+		plugin.getServer().getScheduler().runTaskTimer(plugin, plugin.getExecutor().periodic(
+				TaskPriority.BACKGROUND, () -> ipBans.refresh(database)), 0L, ipBanRefreshInterval);
+
+		if (changes != null)
+		{
+			plugin.getServer().getScheduler().runTaskTimer(plugin, plugin.getExecutor().periodic(
+					TaskPriority.BACKGROUND, () -> changes.poll(database, this::applyChange)), 0L,
+					changePollInterval);
+		}
+
+		if (alts != null)
+		{
+			plugin.getExecutor().execute(TaskPriority.BACKGROUND, () -> alts.load(database, System
+					.currentTimeMillis() - altMaxAge));
+			plugin.getServer().getScheduler().runTaskTimer(plugin, plugin.getExecutor().periodic(
+					TaskPriority.BACKGROUND, () -> alts.flush(database)), altWriteInterval,
+					altWriteInterval);
+			plugin.getServer().getScheduler().runTaskTimer(plugin, plugin.getExecutor().periodic(
+					TaskPriority.BACKGROUND, () -> alts.prune(System.currentTimeMillis())),
+					ALT_PRUNE_INTERVAL, ALT_PRUNE_INTERVAL);
+		}
+	}
+
 	@EventHandler
-	public void onLogin(PlayerLoginEvent event)
+	public void onPreLogin(AsyncPlayerPreLoginEvent event)
 	{
-		ListenableFuture<Set<Punishment>> fut = loadPunishments(event.getPlayer().getUniqueId());
-		fut.addListener(() ->
+		if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
 		{
-			try
+			// already refused by something else
+			return;
+		}
+
+		long start = System.nanoTime();
+		try
+		{
+			admit(event);
+		}
+		finally
+		{
+			loginTimes.recordSince(start);
+		}
+	}
+
+	/**
+	 * Refuses a player logging in if their punishments stop them from joining, or if they can't
+	 * be checked in time and logins fail closed.
+	 *
+	 * @param event The pre-login event of the player.
+	 */
+	private void admit(AsyncPlayerPreLoginEvent event)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(loginDeadline);
+
+		// recorded whether or not they get in, so that a banned player's new address is linked too
+		if (alts != null)
+		{
+			alts.record(event.getUniqueId(), event.getAddress(), System.currentTimeMillis());
+		}
+
+		// address bans are all held in memory, so they are checked before anything is loaded
+		Punishment ipBan = ipBans.find(event.getAddress());
+		if (ipBan != null)
+		{
+			String r = ipBan.getType().onJoin(ipBan);
+			if (r != null)
+			{
+				event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, r);
+				return;
+			}
+		}
+
+		// this runs on the connection thread, so it is safe to wait for the database here
+		Set<Punishment> puns;
+		try
+		{
+			// load punishments; they are cached locally also
+			puns = loadPunishments(event.getUniqueId(), TaskPriority.LOGIN, loginQueryTimeout)
+					.get(loginDeadline, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException | ExecutionException | TimeoutException e)
+		{
+			loginFailures.increment();
+			plugin.getLogger().warning("Could not check punishments of " + event.getName() + " (" +
+					event.getUniqueId() + ") in time: " + e);
+
+			if (loginFailClosed)
 			{
-				// load punishments; they are cached locally also
-				Set<Punishment> puns = fut.get();
+				event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, MessageUtil
+						.getTemplate("login.unavailable").render());
+			}
+			return;
+		}
 
-				// for each punishment, call the join event and disallow login if necessary
-				puns.stream().filter(Punishment::isActive).forEach(p ->
-				{
-					String r = p.getType().onJoin(p);
-					if (r != null)
-					{
-						event.disallow(PlayerLoginEvent.Result.KICK_OTHER, r);
-					}
-				});
+		// call the join event of the punishment in effect and disallow login if necessary
+		PunishmentSummary summary = summaries.get(event.getUniqueId());
+		if (summary != null && summary.restricts(Restriction.JOIN))
+		{
+			Punishment p = summary.getJoinPunishment();
+			String r = p.getType().onJoin(p);
+			if (r != null)
+			{
+				event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, r);
+				return;
+			}
+		}
+
+		if (alts != null)
+		{
+			checkAlts(event, deadline);
+		}
+	}
+
+	/**
+	 * Checks whether any other account that has logged in from the same addresses as a player is
+	 * banned, alerting staff if so, and refusing the player if the manager is configured to.
+	 * <p>
+	 * The other accounts are found in memory, and their punishments loaded the same way as the
+	 * player's own, so those never punished are skipped without a query. Accounts that can't be
+	 * checked before the deadline are let through.
+	 *
+	 * @param event The pre-login event of the player.
+	 * @param deadline When the login check must finish by, in {@link System#nanoTime()} terms.
+	 */
+	private void checkAlts(AsyncPlayerPreLoginEvent event, long deadline)
+	{
+		Set<UUID> linked = alts.getLinked(event.getUniqueId(), altMaxChecked);
+		if (linked.isEmpty())
+		{
+			return;
+		}
+
+		List<ListenableFuture<Set<Punishment>>> loads = new ArrayList<>(linked.size());
+		linked.forEach(alt -> loads.add(loadPunishments(alt, TaskPriority.LOGIN, loginQueryTimeout)));
+		try
+		{
+			Futures.successfulAsList(loads).get(Math.max(0L, deadline - System.nanoTime()),
+					TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException | ExecutionException | TimeoutException e)
+		{
+			// only whatever was loaded in time is checked
+			plugin.getLogger().fine("Could not check every account linked to " + event.getName() +
+					" in time: " + e);
+		}
+
+		for (UUID alt : linked)
+		{
+			PunishmentSummary summary = summaries.get(alt);
+			if (summary == null || !summary.restricts(Restriction.JOIN))
+			{
+				continue;
 			}
-			catch (InterruptedException | ExecutionException e)
+
+			Punishment ban = summary.getJoinPunishment();
+			String alert = MessageUtil.getTemplate("alts.alert")
+					.with("player", event.getName())
+					.with("alt", ban.getPunishedName())
+					.render("reason", ban.getReason());
+			plugin.getServer().getScheduler().runTask(plugin, () -> plugin.getServer()
+					.getOnlinePlayers().stream().filter(p -> p.hasPermission(ALT_ALERT_PERMISSION))
+					.forEach(p -> p.sendMessage(alert)));
+
+			if (altBlock)
+			{
+				event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, MessageUtil
+						.getTemplate("alts.screen")
+						.with("alt", ban.getPunishedName())
+						.render("reason", ban.getReason()));
+			}
+
+			// one alert per login is enough
+			return;
+		}
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onJoin(PlayerJoinEvent event)
+	{
+		// pinned only once they have joined, as anything after the pre-login check may still
+		// refuse them, and then nothing would unpin them
+		UUID player = event.getPlayer().getUniqueId();
+		if (punishments.pin(player))
+		{
+			return;
+		}
+
+		// the pre-login check failed open or was evicted since, so load punishments now and pin
+		// them once loaded
+		ListenableFuture<Set<Punishment>> fut = loadPunishments(player, TaskPriority.LOGIN, 0);
+		fut.addListener(() ->
+		{
+			if (plugin.getServer().getPlayer(player) != null)
 			{
-				e.printStackTrace();
+				punishments.pin(player);
 			}
 		}, r -> plugin.getServer().getScheduler().runTask(plugin, r));
 	}
 
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onQuit(PlayerQuitEvent event)
+	{
+		punishments.unpin(event.getPlayer().getUniqueId());
+	}
+
 	@EventHandler
 	public void onChat(AsyncPlayerChatEvent event)
 	{
-		if (!punishments.containsKey(event.getPlayer().getUniqueId()))
+		long start = System.nanoTime();
+		try
+		{
+			check(event);
+		}
+		finally
+		{
+			chatTimes.recordSince(start);
+		}
+	}
+
+	/**
+	 * Cancels a chat message if the sender's punishments stop them from chatting.
+	 *
+	 * @param event The chat event of the message.
+	 */
+	private void check(AsyncPlayerChatEvent event)
+	{
+		// most players aren't punished, so this is usually the only lookup; summaries are rebuilt
+		// as punishments expire, so there's no need to check the time
+		PunishmentSummary summary = summaries.get(event.getPlayer().getUniqueId());
+		if (summary == null || !summary.restricts(Restriction.CHAT))
 		{
 			return;
 		}
 
-		punishments.get(event.getPlayer().getUniqueId()).stream().filter(Punishment::isActive)
-				.forEach(p ->
-				{
-					// cancel the chat if punishment type chat even returns false
-					event.setCancelled(event.isCancelled() || !p.getType().onChat(p));
-				});
+		// cancel the chat if punishment type chat event returns false
+		Punishment p = summary.getChatPunishment();
+		event.setCancelled(event.isCancelled() || !p.getType().onChat(p, event.getPlayer()));
 	}
 
 	@Override
 	public ListenableFuture<Set<Punishment>> loadPunishments(UUID player)
 	{
-		SettableFuture<Set<Punishment>> fut = SettableFuture.create();
+		return loadPunishments(player, TaskPriority.COMMAND, 0);
+	}
+
+	/**
+	 * Loads a player's punishments from the database, giving up if the query takes too long.
+	 *
+	 * @param player The UUID of the target player.
+	 * @param priority The priority of the load on the plugin's executor.
+	 * @param timeout The number of seconds the query may run for. <code>0</code> if unlimited.
+	 * @return A set of punishments that the player has, if any, as a future.
+	 */
+	private ListenableFuture<Set<Punishment>> loadPunishments(UUID player, TaskPriority priority,
+															  int timeout)
+	{
+		if (filter != null && !filter.mightContain(player))
+		{
+			// never punished, so there's nothing to load
+			return Futures.immediateFuture(cache(player, Collections.emptySet(), true));
+		}
 
-		plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () ->
+		if (priority == TaskPriority.LOGIN && active != null)
 		{
-			// load from database; cache locally
-			Set<Punishment> puns = database.loadPunishments(player);
-			punishments.put(player, puns);
+			// only what's in effect matters for logging in, and that's all in memory
+			Set<Punishment> puns = active.get(player);
+			if (puns != null)
+			{
+				return Futures.immediateFuture(cache(player, puns, false));
+			}
+		}
 
-			// complete future
-			fut.set(puns);
+		return plugin.getExecutor().submit(priority, () ->
+		{
+			// load from database
+			long start = System.nanoTime();
+			Set<Punishment> puns = database.loadPunishments(player, timeout);
+			loadTimes.recordSince(start);
+			if (puns == null)
+			{
+				loadErrors.increment();
+				throw new SQLException("Could not load punishments of " + player);
+			}
+
+			return cache(player, puns, true);
 		});
+	}
 
-		return fut;
+	/**
+	 * Caches a player's punishments locally, replacing any that were cached before.
+	 *
+	 * @param player The UUID of the player.
+	 * @param puns The punishments of the player.
+	 * @param complete Whether the punishments are the player's whole history, rather than only
+	 *                 those in effect.
+	 * @return The cached set of punishments.
+	 */
+	private Set<Punishment> cache(UUID player, Set<Punishment> puns, boolean complete)
+	{
+		Set<Punishment> cached = ConcurrentHashMap.newKeySet();
+		cached.addAll(puns);
+		if (complete)
+		{
+			activeOnly.remove(player);
+		}
+		else
+		{
+			// enough to enforce, but not to hand out as the player's history
+			activeOnly.put(player, cached);
+		}
+
+		Set<Punishment> replaced = punishments.put(player, cached);
+		unindex(replaced);
+		index(cached);
+		summarise(player);
+		prepare(cached);
+		return cached;
+	}
+
+	/**
+	 * Lets the types of active, restricting punishments prepare to enforce them, in the
+	 * background.
+	 *
+	 * @param puns The punishments.
+	 */
+	private void prepare(Collection<Punishment> puns)
+	{
+		for (Punishment p : puns)
+		{
+			if (!p.isActive() || p.getType().getRestrictions() == Restriction.NONE)
+			{
+				continue;
+			}
+
+			try
+			{
+				plugin.getExecutor().execute(TaskPriority.BACKGROUND, () -> p.getType().onLoad(p));
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the type prepares what it needs when the punishment is first enforced instead
+			}
+		}
+	}
+
+	@Override
+	public ListenableFuture<HistoryPage> loadHistory(HistoryQuery query)
+	{
+		return plugin.getExecutor().submit(TaskPriority.COMMAND, () ->
+		{
+			// one extra row says whether there's another page
+			List<Punishment> puns = database.loadHistory(query, query.getLimit() + 1);
+			if (puns == null)
+			{
+				throw new SQLException("Could not load history of " + query.getPlayer());
+			}
+
+			boolean more = puns.size() > query.getLimit();
+			List<Punishment> page = new ArrayList<>(query.getLimit());
+			for (Punishment p : more ? puns.subList(0, query.getLimit()) : puns)
+			{
+				Punishment cached = getPunishment(p.getId());
+				page.add(cached != null ? cached : p);
+			}
+
+			return new HistoryPage(query, page, more);
+		});
 	}
 
 	@Override
 	public Set<Punishment> getCachedPunishments(UUID player)
 	{
-		return punishments.get(player);
+		Set<Punishment> cached = punishments.get(player);
+		return cached == null || activeOnly.get(player) == cached ? null : cached;
 	}
 
 	@Override
@@ -137,19 +677,166 @@ public class PlayerPunishmentManager implements PunishmentManager, Listener
 	{
 		SettableFuture<Boolean> fut = SettableFuture.create();
 
-		plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () ->
+		// queue for saving in database
+		boolean isNew = punishment.getId() == -1;
+		if (filter != null)
 		{
-			// save in database
-			fut.set(database.savePunishment(punishment));
+			filter.put(punishment.getUuid());
+		}
 
-			// call punishment received event
-			plugin.getServer().getScheduler().runTask(plugin, () ->
-					punishment.getType().onPunish(punishment));
-		});
+		long start = System.nanoTime();
+		ListenableFuture<Boolean> write = database.savePunishment(punishment);
+		write.addListener(() ->
+		{
+			boolean saved = Futures.getUnchecked(write);
+			saveTimes.recordSince(start);
+			if (!saved)
+			{
+				saveErrors.increment();
+			}
+
+			if (saved)
+			{
+				applySaved(punishment);
+			}
+
+			fut.set(saved);
+
+			// call punishment received event for new punishments
+			if (saved && isNew)
+			{
+				plugin.getServer().getScheduler().runTask(plugin, () ->
+						punishment.getType().onPunish(punishment));
+			}
+		}, MoreExecutors.directExecutor());
 
 		return fut;
 	}
 
+	@Override
+	public ListenableFuture<Boolean> savePunishments(Collection<Punishment> puns)
+	{
+		List<Punishment> batch = new ArrayList<>(puns);
+		List<Punishment> added = new ArrayList<>();
+		for (Punishment p : batch)
+		{
+			if (p.getId() == -1)
+			{
+				added.add(p);
+			}
+
+			if (filter != null)
+			{
+				filter.put(p.getUuid());
+			}
+		}
+
+		long start = System.nanoTime();
+		return Futures.transform(database.savePunishments(batch), saved ->
+		{
+			saveTimes.recordSince(start);
+			if (!saved)
+			{
+				saveErrors.add(batch.size());
+				return false;
+			}
+
+			batch.forEach(this::applySaved);
+			punishOverTicks(added);
+			return true;
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * Brings everything held in memory in step with a punishment that was just saved.
+	 *
+	 * @param punishment The punishment.
+	 */
+	private void applySaved(Punishment punishment)
+	{
+		if (active != null)
+		{
+			active.update(punishment);
+		}
+
+		ipBans.update(punishment);
+
+		// keep the local cache in step, if the player has one
+		Set<Punishment> cached = punishments.get(punishment.getUuid());
+		if (cached != null)
+		{
+			cached.add(punishment);
+			index(Collections.singleton(punishment));
+			summarise(punishment.getUuid());
+			prepare(Collections.singleton(punishment));
+		}
+	}
+
+	/**
+	 * Calls the punishment received event of new punishments on the main thread, a few each
+	 * tick, so that kicking hundreds of players at once doesn't stall the server.
+	 *
+	 * @param puns The new punishments.
+	 */
+	private void punishOverTicks(List<Punishment> puns)
+	{
+		if (puns.isEmpty())
+		{
+			return;
+		}
+
+		Iterator<Punishment> remaining = puns.iterator();
+		new BukkitRunnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < punishPerTick && remaining.hasNext(); i++)
+				{
+					Punishment p = remaining.next();
+					p.getType().onPunish(p);
+				}
+
+				if (!remaining.hasNext())
+				{
+					cancel();
+				}
+			}
+		}.runTaskTimer(plugin, 0L, 1L);
+	}
+
+	/**
+	 * @return The cache of players' punishments, for its statistics.
+	 */
+	public PunishmentCache getCache()
+	{
+		return punishments;
+	}
+
+	/**
+	 * @return The index of punishments in effect, for its size, or <code>null</code> if they
+	 *         aren't loaded into memory.
+	 */
+	public ActivePunishmentIndex getActiveIndex()
+	{
+		return active;
+	}
+
+	/**
+	 * Saves anything still queued for the database and releases resources.
+	 * <p>
+	 * Called when the plugin is disabled.
+	 */
+	public void shutdown()
+	{
+		if (alts != null)
+		{
+			alts.flush(database);
+		}
+
+		database.shutdown();
+	}
+
 	@Override
 	public PunishmentType getPunishmentType(String id)
 	{
@@ -165,7 +852,270 @@ public class PlayerPunishmentManager implements PunishmentManager, Listener
 			return null;
 		}
 
-		return punishments.values().stream().flatMap(Collection::stream).filter(p -> p.getId() == id)
-				.findFirst().orElse(null);
+		synchronized (ids)
+		{
+			return ids.get(id);
+		}
+	}
+
+	@Override
+	public ListenableFuture<Punishment> loadPunishment(int id)
+	{
+		Punishment cached = getPunishment(id);
+		if (cached != null || id < 0)
+		{
+			return Futures.immediateFuture(cached);
+		}
+
+		return plugin.getExecutor().submit(TaskPriority.COMMAND, () ->
+		{
+			// prefer the cached instance, in case the player was cached in the meantime
+			Punishment loaded = database.loadPunishment(id);
+			Punishment existing = getPunishment(id);
+			return existing != null ? existing : loaded;
+		});
+	}
+
+	/**
+	 * Opens the storage configured in <code>storage.type</code>: either a MySQL database
+	 * (<code>mysql</code>) or a local file (<code>file</code>).
+	 *
+	 * @param manager The punishment manager instance.
+	 * @param plugin The Punisher plugin instance.
+	 * @return The storage.
+	 */
+	private static PunishmentStorage createStorage(PunishmentManager manager, Punisher plugin)
+	{
+		ConfigurationSection cs = plugin.getConfig().getConfigurationSection("storage");
+		String type = cs.getString("type", "mysql");
+
+		switch (type.toLowerCase())
+		{
+			case "mysql":
+				return new PunishmentDatabase(manager, plugin);
+			case "file":
+				File file = new File(plugin.getDataFolder(), cs.getString("file", "punishments.log"));
+				try
+				{
+					return new FilePunishmentStorage(manager, file, plugin.getLogger());
+				}
+				catch (IOException e)
+				{
+					throw new IllegalStateException("Could not open " + file, e);
+				}
+			default:
+				throw new IllegalArgumentException("Unknown storage type: " + type);
+		}
+	}
+
+	/**
+	 * Adds punishments to the id index, once they have an id.
+	 *
+	 * @param puns The punishments to index.
+	 */
+	private void index(Collection<Punishment> puns)
+	{
+		synchronized (ids)
+		{
+			puns.stream().filter(p -> p.getId() >= 0).forEach(p -> ids.put(p.getId(), p));
+		}
+
+		puns.forEach(this::scheduleExpiry);
+	}
+
+	/**
+	 * Schedules a temporary punishment to be expired when it runs out, replacing any earlier
+	 * schedule for the same punishment.
+	 *
+	 * @param p The punishment.
+	 */
+	private void scheduleExpiry(Punishment p)
+	{
+		if (p.getId() < 0 || p.getDuration() == -1L || !p.isActive())
+		{
+			return;
+		}
+
+		synchronized (expiryTimeouts)
+		{
+			TimerWheel.Timeout previous = expiryTimeouts.put(p.getId(), expiries.schedule(p
+					.getTimePunished() + p.getDuration(), p));
+			if (previous != null)
+			{
+				previous.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Handles a temporary punishment running out: it is dropped from the active index, and the
+	 * player's summary is rebuilt, letting them know if they can now chat.
+	 *
+	 * @param p The punishment.
+	 */
+	private void expire(Punishment p)
+	{
+		synchronized (expiryTimeouts)
+		{
+			expiryTimeouts.remove(p.getId());
+		}
+
+		if (active != null)
+		{
+			active.update(p);
+		}
+
+		PunishmentSummary before = summaries.get(p.getUuid());
+		if (before == null)
+		{
+			return;
+		}
+
+		PunishmentSummary after = summarise(p.getUuid());
+		if (notifyUnmute && before.restricts(Restriction.CHAT) && (after == null || !after
+				.restricts(Restriction.CHAT)))
+		{
+			Player player = plugin.getServer().getPlayer(p.getUuid());
+			if (player != null && player.isOnline())
+			{
+				player.sendMessage(MessageUtil.getTemplate("mute.unmuted").render());
+			}
+		}
+	}
+
+	/**
+	 * Applies a punishment added or updated by another server: it is noted in the filter and the
+	 * active index, replaces any cached copy, and is enforced on the punished player if they are
+	 * online here.
+	 *
+	 * @param p The punishment, as it is now.
+	 */
+	private void applyChange(Punishment p)
+	{
+		if (filter != null)
+		{
+			filter.put(p.getUuid());
+		}
+
+		if (active != null)
+		{
+			active.update(p);
+		}
+
+		if (!ipBans.update(p))
+		{
+			// copies from the feed don't carry their range, so load it; this is off the main thread
+			ipBans.refresh(database);
+		}
+
+		IpPunishment ipBan = p.isActive() ? ipBans.get(p.getId()) : null;
+		if (ipBan != null)
+		{
+			// kick everyone it covers, with the ban screen worked out here rather than on the main
+			// thread
+			String message = ipBan.getType().onJoin(ipBan);
+			plugin.getServer().getScheduler().runTask(plugin, () -> plugin.getServer()
+					.getOnlinePlayers().stream().filter(ipBan::appliesTo).forEach(online -> online
+							.kickPlayer(message)));
+		}
+
+		UUID player = p.getUuid();
+		Set<Punishment> cached = punishments.get(player);
+		if (cached == null)
+		{
+			// loaded fresh from storage whenever they are needed
+			return;
+		}
+
+		// swap in the new copy, dropping whatever was scheduled for the old one
+		List<Punishment> replaced = new ArrayList<>(1);
+		cached.removeIf(c -> c.getId() == p.getId() && replaced.add(c));
+		cached.add(p);
+		unindex(replaced);
+
+		PunishmentSummary before = summaries.get(player);
+		index(Collections.singleton(p));
+		PunishmentSummary after = summarise(player);
+		prepare(Collections.singleton(p));
+
+		// work out any ban screen here, where resolving names can't hold up the main thread
+		Punishment ban = after != null && after.restricts(Restriction.JOIN) ? after
+				.getJoinPunishment() : null;
+		String kickMessage = ban == null ? null : ban.getType().onJoin(ban);
+		boolean unmuted = before != null && before.restricts(Restriction.CHAT) && (after == null ||
+				!after.restricts(Restriction.CHAT));
+
+		plugin.getServer().getScheduler().runTask(plugin, () ->
+		{
+			Player online = plugin.getServer().getPlayer(player);
+			if (online == null || !online.isOnline())
+			{
+				return;
+			}
+
+			if (kickMessage != null)
+			{
+				online.kickPlayer(kickMessage);
+			}
+			else if (unmuted && notifyUnmute)
+			{
+				online.sendMessage(MessageUtil.getTemplate("mute.unmuted").render());
+			}
+		});
+	}
+
+	/**
+	 * Removes punishments from the id index, and cancels their expiry, unless they have been
+	 * replaced by other instances.
+	 *
+	 * @param puns The punishments to remove, or <code>null</code> if none.
+	 */
+	private void unindex(Collection<Punishment> puns)
+	{
+		if (puns == null)
+		{
+			return;
+		}
+
+		synchronized (ids)
+		{
+			for (Punishment p : puns)
+			{
+				// a replacement instance schedules its own expiry once it is indexed
+				if (!ids.remove(p.getId(), p))
+				{
+					continue;
+				}
+
+				synchronized (expiryTimeouts)
+				{
+					TimerWheel.Timeout timeout = expiryTimeouts.remove(p.getId());
+					if (timeout != null)
+					{
+						timeout.cancel();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the restriction summary of a player from their cached punishments.
+	 *
+	 * @param player The UUID of the target player.
+	 * @return The new summary, or <code>null</code> if the player isn't restricted.
+	 */
+	private PunishmentSummary summarise(UUID player)
+	{
+		// built inside compute so that concurrent rebuilds for a player can't race
+		PunishmentSummary summary = summaries.compute(player, (uuid, old) ->
+		{
+			Set<Punishment> cached = punishments.get(uuid);
+			return cached == null ? null : PunishmentSummary.of(cached);
+		});
+
+		// reading the cache may have evicted others, whose summaries can only be rebuilt now
+		punishments.cleanUp();
+		return summary;
 	}
 }
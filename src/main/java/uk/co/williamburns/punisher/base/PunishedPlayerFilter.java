@@ -0,0 +1,188 @@
+package uk.co.williamburns.punisher.base;
+
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import uk.co.williamburns.punisher.data.PunishmentStorage;
+
+/**
+ * A Bloom filter of every player who has ever been punished, so that players who never have
+ * been can be let in without asking the database.
+ * <p>
+ * The filter can say that a player might have been punished when they haven't, but never the
+ * other way around. Until it has been built, it says that every player might have been punished.
+ * <p>
+ * Punishments saved by this server are added straight away. Punishments saved by other servers
+ * sharing the database are picked up by the next {@link #refresh(PunishmentStorage)}, which only
+ * reads punishments newer than the last it saw.
+ */
+public class PunishedPlayerFilter
+{
+	private static final Funnel<UUID> FUNNEL = (uuid, into) -> into
+			.putLong(uuid.getMostSignificantBits())
+			.putLong(uuid.getLeastSignificantBits());
+
+	// ids are handed out before their transactions commit, so re-read a few in case one
+	// committed after a higher id was seen
+	private static final int REFRESH_OVERLAP = 1000;
+
+	private final Logger logger;
+	private final long expectedPlayers;
+	private final double falsePositiveRate;
+
+	// guarded by this object's monitor
+	private BloomFilter<UUID> filter;
+	private BloomFilter<UUID> building;
+	private boolean refreshing;
+	private long capacity;
+	private long added; // punishments added since built, an upper bound on players
+	private int cursor;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param logger The logger that rebuilds are reported to.
+	 * @param expectedPlayers The number of punished players the filter is first sized for.
+	 * @param falsePositiveRate The chance of a player being wrongly reported as punished.
+	 */
+	public PunishedPlayerFilter(Logger logger, long expectedPlayers, double falsePositiveRate)
+	{
+		this.logger = logger;
+		this.expectedPlayers = Math.max(1000L, expectedPlayers);
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	/**
+	 * @param player The UUID of the player.
+	 * @return <code>false</code> if the player has definitely never been punished, otherwise
+	 *         <code>true</code>.
+	 */
+	public synchronized boolean mightContain(UUID player)
+	{
+		return filter == null || filter.mightContain(player);
+	}
+
+	/**
+	 * Adds a punished player to the filter.
+	 * <p>
+	 * This must happen before the punishment is saved, so that the player can't be let in
+	 * unchecked in between.
+	 *
+	 * @param player The UUID of the player.
+	 */
+	public synchronized void put(UUID player)
+	{
+		if (filter != null)
+		{
+			filter.put(player);
+			added++;
+		}
+
+		if (building != null)
+		{
+			building.put(player);
+		}
+	}
+
+	/**
+	 * Reads newly punished players from storage into the filter, or builds the filter from
+	 * scratch if it hasn't been built yet or has outgrown its size. Does nothing if the last
+	 * refresh is still going, as two builds at once would each lose players put in the other.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param storage The storage that punishments are read from.
+	 */
+	public void refresh(PunishmentStorage storage)
+	{
+		BloomFilter<UUID> rebuilt;
+		long size;
+		int from;
+		synchronized (this)
+		{
+			if (refreshing)
+			{
+				// the last refresh is still going, probably a full one
+				return;
+			}
+
+			refreshing = true;
+			if (filter != null && added <= capacity)
+			{
+				from = Math.max(0, cursor - REFRESH_OVERLAP);
+				rebuilt = null;
+				size = capacity;
+			}
+			else
+			{
+				// leave room to grow before the next rebuild
+				from = 0;
+				size = Math.max(expectedPlayers, added * 2L);
+				rebuilt = BloomFilter.create(FUNNEL, size, falsePositiveRate);
+				building = rebuilt;
+			}
+		}
+
+		long[] count = new long[1];
+		int last = -1;
+		try
+		{
+			last = storage.loadPunishedPlayers(from, uuid ->
+			{
+				synchronized (this)
+				{
+					(rebuilt != null ? rebuilt : filter).put(uuid);
+				}
+
+				count[0]++;
+			});
+		}
+		finally
+		{
+			// all at once, so that no put can land between the old filter and the new one
+			synchronized (this)
+			{
+				refreshing = false;
+				if (rebuilt == null)
+				{
+					// don't count the overlap, which was seen before
+					if (last > cursor)
+					{
+						added += last - cursor;
+						cursor = last;
+					}
+				}
+				else
+				{
+					building = null;
+
+					// on failure, keep whatever we had; better than a filter that's missing players
+					if (last >= 0)
+					{
+						filter = rebuilt;
+						capacity = size;
+						added = count[0];
+						cursor = last;
+					}
+				}
+			}
+		}
+
+		if (rebuilt == null || last < 0)
+		{
+			return;
+		}
+
+		logger.info("Built punished player filter from " + count[0] + " punishments, sized for " +
+				size + " players");
+
+		if (count[0] > size)
+		{
+			// outgrown already, so build it again at the right size
+			refresh(storage);
+		}
+	}
+}
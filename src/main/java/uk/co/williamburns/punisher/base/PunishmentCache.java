@@ -0,0 +1,202 @@
+package uk.co.williamburns.punisher.base;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import uk.co.williamburns.punisher.api.Punishment;
+
+/**
+ * A cache of players' punishments, in two tiers.
+ * <p>
+ * Players who are online are pinned: their punishments stay cached for as long as they are
+ * connected, as every chat message and command needs them. Everyone else's punishments, such as
+ * those loaded for a history lookup or left behind when a player quits, are kept in a bounded
+ * cache that evicts the least recently used entries and expires entries after a fixed time.
+ * <p>
+ * Guava may evict entries during any read, including one made inside a map computation, so
+ * evictions are queued and only handed to the eviction callback by {@link #cleanUp()}, which the
+ * cache calls after its own writes.
+ */
+public class PunishmentCache
+{
+	private final Map<UUID, Set<Punishment>> pinned;
+	private final Cache<UUID, Set<Punishment>> offline;
+	private final BiConsumer<UUID, Set<Punishment>> onEvict;
+	private final Queue<RemovalNotification<UUID, Set<Punishment>>> evicted;
+	private final AtomicBoolean cleaning = new AtomicBoolean();
+
+	private final LongAdder pinnedHits = new LongAdder();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param maxSize The maximum number of players cached while offline.
+	 * @param ttl The number of minutes an offline player's punishments stay cached for.
+	 * @param onEvict Called with the player and their punishments after an offline entry is
+	 *                evicted, from {@link #cleanUp()}.
+	 */
+	public PunishmentCache(long maxSize, long ttl, BiConsumer<UUID, Set<Punishment>> onEvict)
+	{
+		this.pinned = new ConcurrentHashMap<>();
+		this.onEvict = onEvict;
+		this.evicted = new ConcurrentLinkedQueue<>();
+		this.offline = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl, TimeUnit.MINUTES)
+				.recordStats()
+				.<UUID, Set<Punishment>>removalListener(n ->
+				{
+					// entries that are replaced or moved to the pinned tier aren't gone
+					if (n.wasEvicted())
+					{
+						evicted.add(n);
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * @param player The UUID of the player.
+	 * @return The cached punishments of the player, or <code>null</code> if not cached.
+	 */
+	public Set<Punishment> get(UUID player)
+	{
+		Set<Punishment> puns = pinned.get(player);
+		if (puns != null)
+		{
+			pinnedHits.increment();
+			return puns;
+		}
+
+		return offline.getIfPresent(player);
+	}
+
+	/**
+	 * Caches the punishments of a player, in whichever tier the player is currently in.
+	 *
+	 * @param player The UUID of the player.
+	 * @param puns The punishments of the player.
+	 * @return The punishments that were previously cached, or <code>null</code> if none.
+	 */
+	public Set<Punishment> put(UUID player, Set<Punishment> puns)
+	{
+		Set<Punishment> previous = pinned.replace(player, puns);
+		if (previous == null)
+		{
+			previous = offline.asMap().put(player, puns);
+		}
+
+		cleanUp();
+		return previous;
+	}
+
+	/**
+	 * Pins a player's cached punishments, so that they can't be evicted.
+	 *
+	 * @param player The UUID of the player.
+	 * @return Whether or not the player is now pinned. <code>false</code> if they had no
+	 *         punishments cached to pin.
+	 */
+	public boolean pin(UUID player)
+	{
+		if (pinned.containsKey(player))
+		{
+			return true;
+		}
+
+		Set<Punishment> puns = offline.asMap().remove(player);
+		if (puns != null)
+		{
+			pinned.put(player, puns);
+		}
+
+		cleanUp();
+		return puns != null;
+	}
+
+	/**
+	 * Unpins a player's cached punishments, moving them to the offline tier where they may be
+	 * evicted.
+	 *
+	 * @param player The UUID of the player.
+	 */
+	public void unpin(UUID player)
+	{
+		Set<Punishment> puns = pinned.remove(player);
+		if (puns != null)
+		{
+			offline.asMap().putIfAbsent(player, puns);
+		}
+
+		cleanUp();
+	}
+
+	/**
+	 * Hands every eviction queued since the last call to the eviction callback.
+	 * <p>
+	 * This must not be called from inside a computation on a map that the callback may also
+	 * compute on. If another thread is handing evictions over already, this returns straight
+	 * away and that thread hands over these too.
+	 */
+	public void cleanUp()
+	{
+		while (!evicted.isEmpty() && cleaning.compareAndSet(false, true))
+		{
+			try
+			{
+				RemovalNotification<UUID, Set<Punishment>> n;
+				while ((n = evicted.poll()) != null)
+				{
+					onEvict.accept(n.getKey(), n.getValue());
+				}
+			}
+			finally
+			{
+				cleaning.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of players cached, online and offline.
+	 */
+	public long size()
+	{
+		return pinned.size() + offline.size();
+	}
+
+	/**
+	 * @return The number of lookups that found cached punishments.
+	 */
+	public long getHitCount()
+	{
+		return pinnedHits.sum() + offline.stats().hitCount();
+	}
+
+	/**
+	 * @return The number of lookups that found nothing cached.
+	 */
+	public long getMissCount()
+	{
+		return offline.stats().missCount();
+	}
+
+	/**
+	 * @return The number of offline entries evicted for size or age.
+	 */
+	public long getEvictionCount()
+	{
+		return offline.stats().evictionCount();
+	}
+}
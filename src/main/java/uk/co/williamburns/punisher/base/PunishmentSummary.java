@@ -0,0 +1,106 @@
+package uk.co.williamburns.punisher.base;
+
+import java.util.Collection;
+
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.Restriction;
+
+/**
+ * An immutable summary of the restrictions that a player's active punishments place on them.
+ * <p>
+ * Summaries are built whenever a player's punishments change, so that checks on hot paths such as
+ * chat don't have to go through every punishment the player has. The manager rebuilds a summary
+ * when one of its punishments expires.
+ */
+public final class PunishmentSummary
+{
+	private final int restrictions;
+
+	private final Punishment joinPunishment;
+	private final Punishment chatPunishment;
+
+	private PunishmentSummary(int restrictions, Punishment joinPunishment,
+							  Punishment chatPunishment)
+	{
+		this.restrictions = restrictions;
+		this.joinPunishment = joinPunishment;
+		this.chatPunishment = chatPunishment;
+	}
+
+	/**
+	 * Builds a summary of a player's punishments.
+	 *
+	 * @param punishments The punishments of the player.
+	 * @return A summary of the active punishments, or <code>null</code> if none of them restrict
+	 *         the player.
+	 */
+	public static PunishmentSummary of(Collection<Punishment> punishments)
+	{
+		int restrictions = Restriction.NONE;
+		Punishment join = null;
+		Punishment chat = null;
+
+		for (Punishment p : punishments)
+		{
+			int r = p.getType().getRestrictions();
+			if (r == Restriction.NONE || !p.isActive())
+			{
+				continue;
+			}
+
+			restrictions |= r;
+
+			// keep whichever punishment lasts the longest, as that is the one in effect
+			if ((r & Restriction.JOIN) != 0 && (join == null || expiryOf(p) > expiryOf(join)))
+			{
+				join = p;
+			}
+
+			if ((r & Restriction.CHAT) != 0 && (chat == null || expiryOf(p) > expiryOf(chat)))
+			{
+				chat = p;
+			}
+		}
+
+		return restrictions == Restriction.NONE ? null : new PunishmentSummary(restrictions, join,
+				chat);
+	}
+
+	/**
+	 * @param restriction A {@link Restriction} flag.
+	 * @return Whether or not the player is restricted by the supplied flag.
+	 */
+	public boolean restricts(int restriction)
+	{
+		return (restrictions & restriction) != 0;
+	}
+
+	/**
+	 * @return A bitmask of the {@link Restriction} flags placed on the player.
+	 */
+	public int getRestrictions()
+	{
+		return restrictions;
+	}
+
+	/**
+	 * @return The longest lasting active punishment that restricts joining, if any.
+	 */
+	public Punishment getJoinPunishment()
+	{
+		return joinPunishment;
+	}
+
+	/**
+	 * @return The longest lasting active punishment that restricts chat, if any.
+	 */
+	public Punishment getChatPunishment()
+	{
+		return chatPunishment;
+	}
+
+	private static long expiryOf(Punishment p)
+	{
+		return p.getDuration() == -1L ? Long.MAX_VALUE : p.getTimePunished() + p.getDuration();
+	}
+}
@@ -0,0 +1,282 @@
+package uk.co.williamburns.punisher.cmd;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.util.MessageUtil;
+import uk.co.williamburns.punisher.util.ProfileCache;
+import uk.co.williamburns.punisher.util.concurrent.TaskPriority;
+
+/**
+ * A command whose work happens off the main thread.
+ * <p>
+ * The permission of the sender is checked on the main thread, then
+ * {@link #execute(CommandSender, String[])} validates the arguments and returns the rest of the
+ * command as a future. Blocking steps, such as resolving players from Mojang, run on the
+ * plugin's executor via {@link #async(Callable)}, and steps that touch Bukkit state are chained
+ * back onto the main thread with {@link #mainThread()}.
+ * <p>
+ * Each sender may only have a few commands running at once, so that a staff member can't queue
+ * up work faster than it completes. Failures of the returned future are logged and reported to
+ * the sender.
+ */
+public abstract class AsyncCommand implements CommandExecutor
+{
+	protected final Punisher plugin;
+	private final String permission;
+	private final boolean playersOnly;
+	private final int maxInFlight;
+	private final Executor mainThread;
+
+	// number of commands running for each sender, by name
+	private final ConcurrentHashMap<String, Integer> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 * @param permission The permission needed to use the command.
+	 * @param playersOnly Whether or not only players may use the command.
+	 */
+	protected AsyncCommand(Punisher plugin, String permission, boolean playersOnly)
+	{
+		this.plugin = plugin;
+		this.permission = permission;
+		this.playersOnly = playersOnly;
+		this.maxInFlight = Math.max(1, plugin.getConfig().getInt("commands.max-in-flight", 3));
+		this.mainThread = r ->
+		{
+			if (plugin.getServer().isPrimaryThread())
+			{
+				r.run();
+			}
+			else
+			{
+				plugin.getServer().getScheduler().runTask(plugin, r);
+			}
+		};
+	}
+
+	@Override
+	public final boolean onCommand(CommandSender sender, Command cmd, String label, String[] args)
+	{
+		if (playersOnly && !(sender instanceof Player))
+		{
+			// block console
+			sender.sendMessage(MessageUtil.error("Only players can use this command."));
+			return false;
+		}
+
+		if (!sender.hasPermission(permission))
+		{
+			sender.sendMessage(MessageUtil.error("You do not have permission to use this command."));
+			return false;
+		}
+
+		String key = sender.getName();
+		if (!acquire(key))
+		{
+			sender.sendMessage(MessageUtil.error("Please wait for your other commands to finish."));
+			return false;
+		}
+
+		ListenableFuture<?> future;
+		try
+		{
+			future = execute(sender, args);
+		}
+		catch (RuntimeException e)
+		{
+			release(key);
+			throw e;
+		}
+
+		if (future == null)
+		{
+			// finished on the main thread
+			release(key);
+			return false;
+		}
+
+		future.addListener(() -> release(key), MoreExecutors.directExecutor());
+		future.addListener(() ->
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				plugin.getLogger().log(Level.SEVERE, "Could not run /" + label + " for " + key, e);
+				sender.sendMessage(MessageUtil.error(
+						"An error occurred whilst running that command."
+				));
+			}
+		}, mainThread);
+
+		return false;
+	}
+
+	/**
+	 * Validates the arguments of the command and starts running it.
+	 * <p>
+	 * This is called on the main thread, once the sender has been checked.
+	 *
+	 * @param sender The sender of the command.
+	 * @param args The arguments of the command.
+	 * @return The rest of the command as a future, or <code>null</code> if it has finished
+	 *         already, such as because the arguments were invalid.
+	 */
+	protected abstract ListenableFuture<?> execute(CommandSender sender, String[] args);
+
+	/**
+	 * @return An executor that runs tasks on the main thread, straight away if already on it.
+	 */
+	protected Executor mainThread()
+	{
+		return mainThread;
+	}
+
+	/**
+	 * Runs a blocking task on the plugin's executor.
+	 *
+	 * @param task The task.
+	 * @param <V> The type of the result of the task.
+	 * @return The result of the task, as a future.
+	 */
+	protected <V> ListenableFuture<V> async(Callable<V> task)
+	{
+		return plugin.getExecutor().submit(TaskPriority.COMMAND, task);
+	}
+
+	/**
+	 * Finds a player online or offline by name.
+	 * <p>
+	 * Online players are found straight away. Offline players are resolved through the profile
+	 * cache on the plugin's executor, as that may need to ask Mojang.
+	 *
+	 * @param name The name of the player, in any case.
+	 * @return The player, or <code>null</code> if they can't be found, as a future.
+	 */
+	protected ListenableFuture<Target> resolve(String name)
+	{
+		Player online = plugin.getServer().getPlayerExact(name);
+		if (online != null && online.isOnline())
+		{
+			return Futures.immediateFuture(new Target(online.getUniqueId(), online.getName()));
+		}
+
+		ProfileCache profiles = plugin.getProfiles();
+		return async(() ->
+		{
+			UUID uuid = profiles.getUuid(name);
+			if (uuid == null)
+			{
+				return null;
+			}
+
+			String resolved = profiles.getName(uuid);
+			return new Target(uuid, resolved == null ? name : resolved);
+		});
+	}
+
+	/**
+	 * Reads the length of a punishment, given in whole hours, telling the sender if it isn't
+	 * valid.
+	 *
+	 * @param sender The sender of the command.
+	 * @param hours The number of hours, at least one, or <code>-1</code> for permanent.
+	 * @return The length in milliseconds, <code>-1</code> if permanent, or <code>null</code> if
+	 *         it isn't valid.
+	 */
+	protected static Long parseDuration(CommandSender sender, String hours)
+	{
+		int num;
+		try
+		{
+			num = Integer.parseInt(hours);
+		}
+		catch (NumberFormatException e)
+		{
+			num = -2;
+		}
+
+		// anything else below zero would be permanent to the types but expired to the database,
+		// and zero would already have expired
+		if (num != -1 && num <= 0)
+		{
+			sender.sendMessage(MessageUtil.error("That is not a valid number of hours, or -1 for " +
+					"permanent."));
+			return null;
+		}
+
+		return num == -1 ? -1L : num * 60L * 60L * 1000L;
+	}
+
+	private boolean acquire(String key)
+	{
+		boolean[] acquired = new boolean[1];
+		inFlight.compute(key, (k, count) ->
+		{
+			int current = count == null ? 0 : count;
+			if (current >= maxInFlight)
+			{
+				return count;
+			}
+
+			acquired[0] = true;
+			return current + 1;
+		});
+
+		return acquired[0];
+	}
+
+	private void release(String key)
+	{
+		inFlight.computeIfPresent(key, (k, count) -> count <= 1 ? null : count - 1);
+	}
+
+	/**
+	 * A player that a command targets, as resolved by {@link #resolve(String)}.
+	 */
+	protected static class Target
+	{
+		private final UUID uuid;
+		private final String name;
+
+		private Target(UUID uuid, String name)
+		{
+			this.uuid = uuid;
+			this.name = name;
+		}
+
+		/**
+		 * @return The UUID of the player.
+		 */
+		public UUID getUuid()
+		{
+			return uuid;
+		}
+
+		/**
+		 * @return The current name of the player, in its proper case.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+	}
+}
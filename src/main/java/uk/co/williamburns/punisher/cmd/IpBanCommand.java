@@ -0,0 +1,112 @@
+package uk.co.williamburns.punisher.cmd;
+
+import java.net.InetSocketAddress;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ListenableFuture;
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.api.PunishmentManager;
+import uk.co.williamburns.punisher.base.IpPunishment;
+import uk.co.williamburns.punisher.util.AddressRange;
+import uk.co.williamburns.punisher.util.MessageUtil;
+
+/**
+ * A command that a staff member can use to ban an IP address or range of addresses.
+ * <p>
+ * The target is either an address or range in CIDR notation, or the name of an online player,
+ * whose current address is banned along with their account. A player's name can be followed by
+ * a prefix length too, such as <code>SomePlayer/24</code>, to ban the range around them.
+ */
+public class IpBanCommand extends AsyncCommand
+{
+	private final PunishmentManager manager;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 * @param manager The punishment manager instance.
+	 */
+	public IpBanCommand(Punisher plugin, PunishmentManager manager)
+	{
+		super(plugin, "punisher.command.ipban", true);
+		this.manager = manager;
+	}
+
+	@Override
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
+	{
+		Player staff = (Player) sender;
+
+		if (args.length < 3)
+		{
+			staff.sendMessage(MessageUtil.error(
+					"Incorrect Usage: " + ChatColor.WHITE + "/ipban <player | address[/prefix]> " +
+							"<hours | -1 (permanent)> <reason>"
+			));
+			return null;
+		}
+
+		// time length of punishment
+		Long duration = parseDuration(staff, args[1]);
+		if (duration == null)
+		{
+			return null;
+		}
+
+		// build reason
+		StringBuilder sb = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+		{
+			sb.append(args[i]).append(" ");
+		}
+		String reason = sb.toString().trim();
+
+		// an address is banned as it is; a player is banned by their current address
+		int slash = args[0].indexOf('/');
+		String target = slash < 0 ? args[0] : args[0].substring(0, slash);
+		String prefix = slash < 0 ? "" : args[0].substring(slash);
+		Player player = null;
+		if (!InetAddresses.isInetAddress(target))
+		{
+			player = plugin.getServer().getPlayerExact(target);
+			InetSocketAddress address = player == null ? null : player.getAddress();
+			if (address == null || address.getAddress() == null)
+			{
+				// addresses are only known while players are online
+				staff.sendMessage(MessageUtil.error("That is not an address, or a player who is " +
+						"online."));
+				return null;
+			}
+
+			target = InetAddresses.toAddrString(address.getAddress());
+		}
+
+		AddressRange range;
+		try
+		{
+			range = AddressRange.parse(target + prefix);
+		}
+		catch (IllegalArgumentException e)
+		{
+			staff.sendMessage(MessageUtil.error("That is not a valid address or range."));
+			return null;
+		}
+
+		// punish the range, and the player if there is one
+		return manager.savePunishment(new IpPunishment(
+				manager.getPunishmentType("IPBAN"),
+				player == null ? IpPunishment.NO_PLAYER : player.getUniqueId(),
+				player == null ? IpPunishment.NO_PLAYER_NAME : player.getName(),
+				staff.getUniqueId(),
+				reason,
+				System.currentTimeMillis(),
+				duration,
+				range
+		));
+	}
+}
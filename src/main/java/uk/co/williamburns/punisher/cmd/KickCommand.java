@@ -1,12 +1,11 @@
 package uk.co.williamburns.punisher.cmd;
 
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import uk.co.williamburns.punisher.Punisher;
 import uk.co.williamburns.punisher.api.PunishmentManager;
 import uk.co.williamburns.punisher.base.PlayerPunishment;
 import uk.co.williamburns.punisher.util.MessageUtil;
@@ -14,51 +13,41 @@ import uk.co.williamburns.punisher.util.MessageUtil;
 /**
  * A command that a staff member can use to issue a kick punishment.
  */
-public class KickCommand implements CommandExecutor
+public class KickCommand extends AsyncCommand
 {
 	private final PunishmentManager manager;
 
 	/**
 	 * Class constructor.
 	 *
+	 * @param plugin The Punisher plugin instance.
 	 * @param manager The punishment manager instance.
 	 */
-	public KickCommand(PunishmentManager manager)
+	public KickCommand(Punisher plugin, PunishmentManager manager)
 	{
+		super(plugin, "punisher.command.kick", true);
 		this.manager = manager;
 	}
 
 	@Override
-	public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args)
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
 	{
-		if (!(sender instanceof Player))
-		{
-			// block console
-			sender.sendMessage(MessageUtil.error("Only players can use this command."));
-			return false;
-		}
-
 		Player staff = (Player) sender;
 
-		if (!staff.hasPermission("punisher.command.kick"))
-		{
-			sender.sendMessage(MessageUtil.error("You do not have permission to use this command."));
-		}
-
 		if (args.length < 2)
 		{
 			staff.sendMessage(MessageUtil.error(
 					"Incorrect Usage: " + ChatColor.WHITE + "/kick <player> <reason>"
 			));
-			return false;
+			return null;
 		}
 
-		Player target = Bukkit.getPlayerExact(args[0]); // target player by name
+		Player target = plugin.getServer().getPlayerExact(args[0]); // target player by name
 		if (target == null || !target.isOnline())
 		{
 			// player not found
 			staff.sendMessage(MessageUtil.error("That player can't be found."));
-			return false;
+			return null;
 		}
 
 		// build reason
@@ -70,7 +59,7 @@ public class KickCommand implements CommandExecutor
 		String reason = sb.toString().trim();
 
 		// punish player
-		manager.savePunishment(new PlayerPunishment(
+		return manager.savePunishment(new PlayerPunishment(
 				manager.getPunishmentType("KICK"),
 				target.getUniqueId(),
 				target.getName(),
@@ -80,7 +69,5 @@ public class KickCommand implements CommandExecutor
 				-1L,
 				false
 		));
-
-		return false;
 	}
 }
@@ -0,0 +1,222 @@
+package uk.co.williamburns.punisher.cmd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.PunishmentManager;
+import uk.co.williamburns.punisher.base.PlayerPunishment;
+import uk.co.williamburns.punisher.util.MessageUtil;
+
+/**
+ * A command that a staff member can use to ban many players at once, such as the accounts of a
+ * bot raid.
+ * <p>
+ * Players are given as a comma-separated list of names, or as a file of names, one per line, in
+ * the plugin's folder. Names are resolved in batches and every ban is saved in one go, off the
+ * main thread; the banned players are then kicked over the following ticks.
+ */
+public class MassBanCommand extends AsyncCommand
+{
+	private static final String FILE_PREFIX = "file:";
+
+	// anything else would make mojang refuse the whole batch the name is sent in
+	private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_]{1,16}");
+
+	private final PunishmentManager manager;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 * @param manager The punishment manager instance.
+	 */
+	public MassBanCommand(Punisher plugin, PunishmentManager manager)
+	{
+		super(plugin, "punisher.command.massban", true);
+		this.manager = manager;
+	}
+
+	@Override
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
+	{
+		Player staff = (Player) sender;
+
+		if (args.length < 3)
+		{
+			staff.sendMessage(MessageUtil.error(
+					"Incorrect Usage: " + ChatColor.WHITE + "/massban <name,name,... | file:<file>> " +
+					"<hours | -1 (permanent)> <reason>"
+			));
+			return null;
+		}
+
+		// time length of punishment
+		Long duration = parseDuration(staff, args[1]);
+		if (duration == null)
+		{
+			return null;
+		}
+
+		// build reason
+		StringBuilder sb = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+		{
+			sb.append(args[i]).append(" ");
+		}
+		String reason = sb.toString().trim();
+
+		UUID staffUuid = staff.getUniqueId();
+		return Futures.transformAsync(async(() -> readNames(args[0])), names ->
+		{
+			if (names == null)
+			{
+				staff.sendMessage(MessageUtil.error("That file can't be read from the plugin's " +
+						"folder."));
+				return Futures.immediateFuture(false);
+			}
+
+			List<String> invalid = new ArrayList<>();
+			names.removeIf(name -> !VALID_NAME.matcher(name).matches() && invalid.add(name));
+			if (!invalid.isEmpty())
+			{
+				staff.sendMessage(MessageUtil.error("Skipping invalid names: " + String.join(", ",
+						invalid)));
+			}
+
+			if (names.isEmpty())
+			{
+				staff.sendMessage(MessageUtil.error("There are no players to ban."));
+				return Futures.immediateFuture(false);
+			}
+
+			staff.sendMessage(MessageUtil.format("Resolving " + ChatColor.YELLOW + names.size() +
+					ChatColor.GRAY + " players..."));
+
+			// resolve every name, then ban them all back on the main thread
+			return Futures.transformAsync(async(() -> plugin.getProfiles().getUuids(names)), uuids ->
+			{
+				Set<String> found = new HashSet<>();
+				List<Punishment> bans = new ArrayList<>(uuids.size());
+				long now = System.currentTimeMillis();
+				for (Map.Entry<String, UUID> target : uuids.entrySet())
+				{
+					found.add(target.getKey().toLowerCase(Locale.ROOT));
+					if (target.getValue().equals(staffUuid))
+					{
+						continue;
+					}
+
+					bans.add(new PlayerPunishment(
+							manager.getPunishmentType("BAN"),
+							target.getValue(),
+							target.getKey(),
+							staffUuid,
+							reason,
+							now,
+							duration,
+							false
+					));
+				}
+
+				List<String> missing = new ArrayList<>();
+				names.stream().filter(n -> !found.contains(n.toLowerCase(Locale.ROOT))).forEach(
+						missing::add);
+				if (!missing.isEmpty())
+				{
+					staff.sendMessage(MessageUtil.error("These players can't be found: " + String
+							.join(", ", missing)));
+				}
+
+				if (bans.isEmpty())
+				{
+					return Futures.immediateFuture(false);
+				}
+
+				return Futures.transform(manager.savePunishments(bans), saved ->
+				{
+					if (saved)
+					{
+						staff.sendMessage(MessageUtil.format("Banned " + ChatColor.YELLOW + bans
+								.size() + ChatColor.GRAY + " players."));
+					}
+					else
+					{
+						staff.sendMessage(MessageUtil.error("There was an error saving the bans; no " +
+								"players were banned."));
+					}
+
+					return saved;
+				}, mainThread());
+			}, mainThread());
+		}, mainThread());
+	}
+
+	/**
+	 * Reads the names a mass ban is given, either straight from the argument or from a file in
+	 * the plugin's folder.
+	 *
+	 * @param arg The argument: names separated by commas, or <code>file:</code> and the path of
+	 *            a file of names, one per line. Blank lines and lines starting with
+	 *            <code>#</code> are skipped.
+	 * @return The names, without repeats, or <code>null</code> if the file can't be read or is
+	 *         outside the plugin's folder.
+	 */
+	private List<String> readNames(String arg)
+	{
+		List<String> lines;
+		if (arg.regionMatches(true, 0, FILE_PREFIX, 0, FILE_PREFIX.length()))
+		{
+			try
+			{
+				File folder = plugin.getDataFolder().getCanonicalFile();
+				File file = new File(folder, arg.substring(FILE_PREFIX.length())).getCanonicalFile();
+				if (!file.toPath().startsWith(folder.toPath()) || !file.isFile())
+				{
+					return null;
+				}
+
+				lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+		else
+		{
+			lines = Arrays.asList(arg.split(","));
+		}
+
+		List<String> names = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		for (String line : lines)
+		{
+			String name = line.trim();
+			if (!name.isEmpty() && !name.startsWith("#") && seen.add(name.toLowerCase(Locale.ROOT)))
+			{
+				names.add(name);
+			}
+		}
+
+		return names;
+	}
+}
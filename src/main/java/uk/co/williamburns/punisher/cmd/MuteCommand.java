@@ -1,93 +1,55 @@
 package uk.co.williamburns.punisher.cmd;
 
-import java.util.UUID;
-
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
-import org.apache.commons.lang.math.NumberUtils;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import uk.co.williamburns.punisher.Punisher;
 import uk.co.williamburns.punisher.api.PunishmentManager;
 import uk.co.williamburns.punisher.base.PlayerPunishment;
 import uk.co.williamburns.punisher.util.MessageUtil;
-import uk.co.williamburns.punisher.util.NameFetcher;
-import uk.co.williamburns.punisher.util.UUIDFetcher;
 
 /**
  * A command that a staff member can use to issue a mute punishment.
+ * <p>
+ * Offline targets are resolved off the main thread, and the punishment is issued back on it.
  */
-public class MuteCommand implements CommandExecutor
+public class MuteCommand extends AsyncCommand
 {
 	private final PunishmentManager manager;
 
 	/**
 	 * Class constructor.
 	 *
+	 * @param plugin The Punisher plugin instance.
 	 * @param manager The punishment manager instance.
 	 */
-	public MuteCommand(PunishmentManager manager)
+	public MuteCommand(Punisher plugin, PunishmentManager manager)
 	{
+		super(plugin, "punisher.command.mute", true);
 		this.manager = manager;
 	}
 
 	@Override
-	public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args)
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
 	{
-		if (!(sender instanceof Player))
-		{
-			// block console
-			sender.sendMessage(MessageUtil.error("Only players can use this command."));
-			return false;
-		}
-
 		Player staff = (Player) sender;
 
-		if (!staff.hasPermission("punisher.command.mute"))
-		{
-			sender.sendMessage(MessageUtil.error("You do not have permission to use this command."));
-		}
-
 		if (args.length < 3)
 		{
 			staff.sendMessage(MessageUtil.error(
 					"Incorrect Usage: " + ChatColor.WHITE + "/mute <player> <hours | -1 (permanent)> <reason>"
 			));
-			return false;
-		}
-
-		// find target player online or offline
-		Player targetPlayer = Bukkit.getPlayerExact(args[0]);
-		UUID targetUuid = targetPlayer != null && targetPlayer.isOnline() ? targetPlayer
-				.getUniqueId() : UUIDFetcher.getUUIDOf(args[0]);
-		if (targetUuid == null)
-		{
-			staff.sendMessage(MessageUtil.error("That player can't be found online or offline."));
-			return false;
+			return null;
 		}
 
-		String targetName = targetPlayer != null && targetPlayer.isOnline() ? targetPlayer
-				.getName() : NameFetcher.getNameOf(targetUuid);
-
 		// time length of punishment
-		if (!NumberUtils.isNumber(args[1]))
+		Long duration = parseDuration(staff, args[1]);
+		if (duration == null)
 		{
-			staff.sendMessage(MessageUtil.error("That is not a valid number of hours, or -1 for " +
-					"permanent."));
-			return false;
-		}
-
-		long duration;
-		int num = Integer.parseInt(args[1]);
-		if (num == -1)
-		{
-			duration = -1L;
-		}
-		else
-		{
-			duration = num * 60 * 60 * 1000;
+			return null;
 		}
 
 		// build reason
@@ -98,18 +60,25 @@ public class MuteCommand implements CommandExecutor
 		}
 		String reason = sb.toString().trim();
 
-		// punish player
-		manager.savePunishment(new PlayerPunishment(
-				manager.getPunishmentType("MUTE"),
-				targetUuid,
-				targetName,
-				staff.getUniqueId(),
-				reason,
-				System.currentTimeMillis(),
-				duration,
-				false
-		));
-
-		return false;
+		// find target player online or offline, then punish them back on the main thread
+		return Futures.transformAsync(resolve(args[0]), target ->
+		{
+			if (target == null)
+			{
+				staff.sendMessage(MessageUtil.error("That player can't be found online or offline."));
+				return Futures.immediateFuture(false);
+			}
+
+			return manager.savePunishment(new PlayerPunishment(
+					manager.getPunishmentType("MUTE"),
+					target.getUuid(),
+					target.getName(),
+					staff.getUniqueId(),
+					reason,
+					System.currentTimeMillis(),
+					duration,
+					false
+			));
+		}, mainThread());
 	}
 }
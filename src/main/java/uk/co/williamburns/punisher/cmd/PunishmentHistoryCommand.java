@@ -1,114 +1,253 @@
 package uk.co.williamburns.punisher.cmd;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.Player;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import org.joda.time.Duration;
-import org.joda.time.format.PeriodFormat;
-import uk.co.williamburns.punisher.api.Punishment;
+import com.google.common.util.concurrent.MoreExecutors;
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.api.HistoryPage;
+import uk.co.williamburns.punisher.api.HistoryQuery;
 import uk.co.williamburns.punisher.api.PunishmentManager;
 import uk.co.williamburns.punisher.util.MessageUtil;
-import uk.co.williamburns.punisher.util.NameFetcher;
-import uk.co.williamburns.punisher.util.UUIDFetcher;
+import uk.co.williamburns.punisher.util.ProfileCache;
 
 /**
- * A command that lets a staff member view the punishment history of a target player.
+ * A command that lets a staff member view the punishment history of a target player, a page at a
+ * time, newest first.
+ * <p>
+ * The query for each page a staff member has seen is remembered for a while, so that the next
+ * page can start from where the last one ended rather than loading every page before it.
+ * <p>
+ * The target, the page and the names of the staff members on it are all loaded off the main
+ * thread, and the page is only shown once everything is ready.
  */
-public class PunishmentHistoryCommand implements CommandExecutor
+public class PunishmentHistoryCommand extends AsyncCommand
 {
+	private static final int PAGE_SIZE = 10;
+
+	// how many pages past the furthest one seen a single command may walk, one query each
+	private static final int MAX_PAGE_STEP = 5;
+
 	private final PunishmentManager manager;
+	private final ProfileCache profiles;
+
+	// queries for the pages each sender has seen of each player, by page number - 1
+	private final Cache<String, List<HistoryQuery>> pages = CacheBuilder.newBuilder()
+			.expireAfterAccess(10L, TimeUnit.MINUTES)
+			.maximumSize(1000L)
+			.build();
 
 	/**
 	 * Class constructor.
 	 *
+	 * @param plugin The Punisher plugin instance.
 	 * @param manager The punishment manager instance.
 	 */
-	public PunishmentHistoryCommand(PunishmentManager manager)
+	public PunishmentHistoryCommand(Punisher plugin, PunishmentManager manager)
 	{
+		super(plugin, "punisher.command.history", false);
 		this.manager = manager;
+		this.profiles = plugin.getProfiles();
 	}
 
 	@Override
-	public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args)
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
 	{
-		if (!sender.hasPermission("punisher.command.history"))
-		{
-			sender.sendMessage(MessageUtil.error("You do not have permission to use this command."));
-		}
-
-		if (args.length != 1)
+		if (args.length != 1 && args.length != 2)
 		{
 			sender.sendMessage(MessageUtil.error(
-					"Incorrect Usage: " + ChatColor.WHITE + "/phistory <player>"
+					"Incorrect Usage: " + ChatColor.WHITE + "/phistory <player> [page]"
 			));
-			return false;
+			return null;
 		}
 
-		Player targetPlayer = Bukkit.getPlayerExact(args[0]);
-		UUID targetUuid = targetPlayer != null && targetPlayer.isOnline() ? targetPlayer
-				.getUniqueId() : UUIDFetcher.getUUIDOf(args[0]);
-		if (targetUuid == null)
+		int page = 1;
+		if (args.length == 2)
 		{
-			sender.sendMessage(MessageUtil.error("That player can't be found online or offline."));
+			try
+			{
+				page = Integer.parseInt(args[1]);
+			}
+			catch (NumberFormatException e)
+			{
+				page = 0;
+			}
+
+			if (page < 1)
+			{
+				sender.sendMessage(MessageUtil.error("The page must be a number from 1 upwards."));
+				return null;
+			}
 		}
 
-		String targetName = targetPlayer != null && targetPlayer.isOnline() ? targetPlayer
-				.getName() : NameFetcher.getNameOf(targetUuid);
+		int number = page;
+		return Futures.transformAsync(resolve(args[0]), target ->
+		{
+			if (target == null)
+			{
+				sender.sendMessage(MessageUtil.error("That player can't be found online or offline."));
+				return Futures.immediateFuture(null);
+			}
+
+			sender.sendMessage(MessageUtil.format(
+					"Loading " + ChatColor.YELLOW + target.getName() + ChatColor.GRAY + "'s history..."
+			));
+
+			// load the page from the database, starting from the nearest page already seen
+			List<HistoryQuery> known = pages.asMap().computeIfAbsent(sender.getName() + ":" +
+					target.getUuid(), k ->
+			{
+				List<HistoryQuery> first = new ArrayList<>();
+				first.add(new HistoryQuery(target.getUuid(), null, false, PAGE_SIZE));
+				return first;
+			});
+
+			int capped;
+			synchronized (known)
+			{
+				capped = Math.min(number, known.size() + MAX_PAGE_STEP);
+			}
+
+			if (capped < number)
+			{
+				sender.sendMessage(MessageUtil.error("Pages can only be skipped " + MAX_PAGE_STEP +
+						" at a time, so showing page " + capped + " instead."));
+			}
+
+			ListenableFuture<HistoryPage> future = loadPage(known, capped);
+
+			// resolve each staff member on the page once, all together, before rendering any of it
+			ListenableFuture<Map<UUID, String>> staffNames = Futures.transformAsync(future, result ->
+			{
+				if (result == null)
+				{
+					return Futures.immediateFuture(Collections.emptyMap());
+				}
+
+				Set<UUID> staff = new HashSet<>();
+				result.getPunishments().forEach(p -> staff.add(p.getStaffUuid()));
+				return profiles.loadNames(staff);
+			}, MoreExecutors.directExecutor());
+
+			return Futures.transform(staffNames, names ->
+			{
+				render(sender, target.getName(), capped, Futures.getUnchecked(future), names);
+				return null;
+			}, mainThread());
+		}, mainThread());
+	}
+
+	/**
+	 * Shows a page of history to a staff member.
+	 *
+	 * @param sender The staff member.
+	 * @param targetName The name of the player whose history it is.
+	 * @param number The page number.
+	 * @param result The page, or <code>null</code> if the history has fewer pages.
+	 * @param names The names of the staff members on the page, by UUID.
+	 */
+	private static void render(CommandSender sender, String targetName, int number, HistoryPage
+			result, Map<UUID, String> names)
+	{
+		if (result == null || result.getPunishments().isEmpty())
+		{
+			// no punishments to show
+			sender.sendMessage(MessageUtil.error(number == 1 ? "That player has no " +
+					"punishments." : "That player's history doesn't have that many pages."));
+			return;
+		}
 
 		sender.sendMessage(MessageUtil.format(
-				"Loading " + ChatColor.YELLOW + targetName + ChatColor.GRAY + "'s history..."
+				ChatColor.YELLOW + targetName + ChatColor.GRAY + "'s history, page " +
+				ChatColor.YELLOW + number + ChatColor.GRAY + ":"
 		));
 
-		// load punishment history from database ignoring local cache
-		ListenableFuture<Set<Punishment>> future = manager.loadPunishments(targetUuid);
-		future.addListener(() ->
+		result.getPunishments().forEach(p ->
 		{
-			try
+			String duration = p.getDuration() == -1 ? "Permanent" : MessageUtil.formatDuration(p
+					.getDuration());
+			String date = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss")
+					.format(new Date(p.getTimePunished()));
+
+			sender.sendMessage(
+					ChatColor.DARK_GRAY + "- #" + p.getId() + " " + ChatColor.YELLOW
+					+ p.getType().getId() + ChatColor.GRAY + "(" + duration + ") by "
+					+ ChatColor.YELLOW + names.getOrDefault(p.getStaffUuid(), p
+					.getStaffUuid().toString())
+					+ ChatColor.GRAY + " at " + ChatColor.YELLOW + date + ChatColor.GRAY
+					+ " with reason: " + ChatColor.WHITE + p.getReason()
+			);
+		});
+
+		if (result.hasMore())
+		{
+			sender.sendMessage(MessageUtil.format(
+					"Type " + ChatColor.WHITE + "/phistory " + targetName + " " + (number + 1)
+					+ ChatColor.GRAY + " for more."
+			));
+		}
+	}
+
+	/**
+	 * Loads a page of history, walking forward from the furthest page already seen if need be.
+	 *
+	 * @param known The queries for the pages already seen, by page number - 1.
+	 * @param page The page number.
+	 * @return The page, or <code>null</code> if the history has fewer pages, as a future.
+	 */
+	private ListenableFuture<HistoryPage> loadPage(List<HistoryQuery> known, int page)
+	{
+		int index;
+		HistoryQuery query;
+		synchronized (known)
+		{
+			index = Math.min(page, known.size());
+			query = known.get(index - 1);
+		}
+
+		return walk(known, index, query, page);
+	}
+
+	private ListenableFuture<HistoryPage> walk(List<HistoryQuery> known, int index, HistoryQuery
+			query, int page)
+	{
+		ListenableFuture<HistoryPage> future = manager.loadHistory(query);
+		return Futures.transformAsync(future, result ->
+		{
+			HistoryQuery next = result.next();
+			if (next != null)
 			{
-				Set<Punishment> puns = future.get();
-				if (puns.isEmpty())
+				// remember where the next page starts
+				synchronized (known)
 				{
-					// no punishments to show
-					sender.sendMessage(MessageUtil.error("That player has no punishments."));
-					return;
+					if (known.size() == index)
+					{
+						known.add(next);
+					}
 				}
-
-				puns.forEach(p ->
-				{
-					String duration = p.getDuration() == -1 ? "Permanent" : PeriodFormat
-							.getDefault().print(new Duration(p.getDuration()).toPeriod());
-					String date = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss")
-							.format(new Date(p.getTimePunished()));
-
-					sender.sendMessage(
-							ChatColor.DARK_GRAY + "- #" + p.getId() + " " + ChatColor.YELLOW
-							+ p.getType().getId() + ChatColor.GRAY + "(" + duration + ") by "
-							+ ChatColor.YELLOW + NameFetcher.getNameOf(p.getStaffUuid())
-							+ ChatColor.GRAY + " at " + ChatColor.YELLOW + date + ChatColor.GRAY
-							+ " with reason: " + ChatColor.WHITE + p.getReason()
-					);
-				});
 			}
-			catch (InterruptedException | ExecutionException e)
+
+			if (index == page)
 			{
-				e.printStackTrace();
-				sender.sendMessage(MessageUtil.error(
-						"An error occurred whilst attempting to load that player's history."
-				));
+				return Futures.immediateFuture(result);
 			}
-		}, Runnable::run);
 
-		return false;
+			return next == null ? Futures.immediateFuture(null) : walk(known, index + 1, next, page);
+		}, MoreExecutors.directExecutor());
 	}
 }
@@ -1,46 +1,39 @@
 package uk.co.williamburns.punisher.cmd;
 
-import java.util.concurrent.ExecutionException;
-
 import org.bukkit.ChatColor;
-import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import org.apache.commons.lang.math.NumberUtils;
-import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.Punisher;
 import uk.co.williamburns.punisher.api.PunishmentManager;
 import uk.co.williamburns.punisher.util.MessageUtil;
 
 /**
  * A command that allows staff members to remove specific punishments from players.
  * <p>
- * The punishment that is to be removed must already be locally cached, through the use of the
- * <code>/phistory</code> command.
+ * The punishment that is to be removed is loaded from the database if it isn't already locally
+ * cached.
  */
-public class PunishmentRemoveCommand implements CommandExecutor
+public class PunishmentRemoveCommand extends AsyncCommand
 {
 	private final PunishmentManager manager;
 
 	/**
 	 * Class constructor.
 	 *
+	 * @param plugin The Punisher plugin instance.
 	 * @param manager The punishment manager instance.
 	 */
-	public PunishmentRemoveCommand(PunishmentManager manager)
+	public PunishmentRemoveCommand(Punisher plugin, PunishmentManager manager)
 	{
+		super(plugin, "punisher.command.remove", false);
 		this.manager = manager;
 	}
 
 	@Override
-	public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args)
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
 	{
-		if (!sender.hasPermission("punisher.command.remove"))
-		{
-			sender.sendMessage(MessageUtil.error("You do not have permission to use this command."));
-		}
-
 		if (args.length != 1)
 		{
 			sender.sendMessage(MessageUtil.format(
@@ -50,35 +43,36 @@ public class PunishmentRemoveCommand implements CommandExecutor
 					"Use " + ChatColor.YELLOW + "/phistory <player> "
 					+ ChatColor.GRAY + "to show ids of punishments."
 			));
-			return false;
+			return null;
 		}
 
-		if (!NumberUtils.isNumber(args[0]))
+		int id;
+		try
+		{
+			id = Integer.parseInt(args[0]);
+		}
+		catch (NumberFormatException e)
 		{
 			sender.sendMessage(MessageUtil.error("That is not a valid punishment id."));
-			return false;
+			return null;
 		}
 
-		int id = Integer.parseInt(args[0]);
-		Punishment punishment = manager.getPunishment(id);
-
-		if (punishment == null)
+		return Futures.transformAsync(manager.loadPunishment(id), punishment ->
 		{
-			sender.sendMessage(MessageUtil.error(
-					"That punishment can't be found. Did you use "
-					+ ChatColor.WHITE + "/phistory <player> " + ChatColor.RED + "to load it first?"
-			));
-		}
+			if (punishment == null)
+			{
+				sender.sendMessage(MessageUtil.error("That punishment can't be found."));
+				return Futures.immediateFuture(false);
+			}
 
-		// remove punishment
-		punishment.setRemoved(true);
+			// remove punishment; this may be the cached instance, so it is put back if the save
+			// fails
+			boolean wasRemoved = punishment.isRemoved();
+			punishment.setRemoved(true);
 
-		ListenableFuture<Boolean> future = manager.savePunishment(punishment);
-		future.addListener(() ->
-		{
-			try
+			return Futures.transform(manager.savePunishment(punishment), saved ->
 			{
-				if (future.get())
+				if (saved)
 				{
 					sender.sendMessage(MessageUtil.format(
 							"Successfully removed punishment " + ChatColor.YELLOW + "#"
@@ -87,20 +81,14 @@ public class PunishmentRemoveCommand implements CommandExecutor
 				}
 				else
 				{
+					punishment.setRemoved(wasRemoved);
 					sender.sendMessage(MessageUtil.error(
 							"There was an error removing that punishment."
 					));
 				}
-			}
-			catch (InterruptedException | ExecutionException e)
-			{
-				e.printStackTrace();
-				sender.sendMessage(MessageUtil.error(
-						"There was an error removing that punishment."
-				));
-			}
-		}, Runnable::run);
 
-		return false;
+				return saved;
+			}, mainThread());
+		}, mainThread());
 	}
 }
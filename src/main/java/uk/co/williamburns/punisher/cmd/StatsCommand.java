@@ -0,0 +1,47 @@
+package uk.co.williamburns.punisher.cmd;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.util.MessageUtil;
+
+/**
+ * A command that a staff member can use to see the plugin's metrics, such as how long database
+ * queries and login checks are taking.
+ * <p>
+ * Usage: <code>/pstats [filter]</code>, where the filter only shows metrics whose names contain
+ * it.
+ */
+public class StatsCommand extends AsyncCommand
+{
+	/**
+	 * Class constructor.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 */
+	public StatsCommand(Punisher plugin)
+	{
+		super(plugin, "punisher.command.stats", false);
+	}
+
+	@Override
+	protected ListenableFuture<?> execute(CommandSender sender, String[] args)
+	{
+		String filter = args.length > 0 ? args[0] : "";
+
+		// metrics are read straight from memory, so there's nothing to wait on
+		sender.sendMessage(MessageUtil.format("Metrics since startup" + (filter.isEmpty() ? "" :
+				" matching " + ChatColor.WHITE + filter) + ChatColor.GRAY + ":"));
+		for (String line : plugin.getMetrics().summarise())
+		{
+			if (line.contains(filter))
+			{
+				sender.sendMessage(ChatColor.GRAY + " " + line);
+			}
+		}
+
+		return null;
+	}
+}
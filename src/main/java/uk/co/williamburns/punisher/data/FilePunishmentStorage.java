@@ -0,0 +1,1054 @@
+package uk.co.williamburns.punisher.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import uk.co.williamburns.punisher.api.HistoryQuery;
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.api.PunishmentManager;
+import uk.co.williamburns.punisher.base.IpPunishment;
+import uk.co.williamburns.punisher.base.PlayerPunishment;
+import uk.co.williamburns.punisher.util.AddressRange;
+import uk.co.williamburns.punisher.util.IntObjectMap;
+import uk.co.williamburns.punisher.util.ProfileCache;
+
+/**
+ * Stores punishments in a local file, for servers that don't have a database to share.
+ * <p>
+ * The file is an append-only log: every save appends the whole punishment as a record, and a
+ * later record for the same id replaces an earlier one. The log is read into memory when the
+ * storage is opened, so loads never touch the disk.
+ * <p>
+ * Saves are appended by a single writer thread. Everything queued while a write is in progress
+ * goes into the next write, and each write is synced to disk before its futures complete.
+ * Each record carries a checksum, so that a record left half-written by a crash is discarded
+ * rather than read back wrong. Anything that can't be read is moved aside to a file next to the
+ * log before it is cut off, so that a record damaged partway through the log doesn't silently
+ * take every later record with it.
+ * <p>
+ * Once most records in the log have been replaced by later ones, the log is compacted: the
+ * latest record of every punishment is written to a new file, which then replaces the log.
+ * <p>
+ * The range of an IP ban is appended to the end of its record. Records of other punishments are
+ * written as they always were, so older logs are read unchanged.
+ * <p>
+ * Punishments saved together are written as one batch: their records are wrapped in a single
+ * frame under one checksum, so after a crash either all of them are read back or none is.
+ * Batches were added in version 2 of the log; logs of version 1 are read as they are, and
+ * marked as version 2 once opened, so that older versions of the plugin refuse them rather than
+ * discard the batches as damage.
+ */
+public class FilePunishmentStorage implements PunishmentStorage
+{
+	private static final int MAGIC = 0x50554E4C; // "PUNL"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 1 << 20;
+	private static final int MAX_BATCH_SIZE = 1 << 26;
+
+	// the most bytes writeUTF can write for one string
+	private static final int MAX_STRING_SIZE = 65535;
+
+	// compact once there are this many records, and at least twice as many as punishments
+	private static final int COMPACT_MIN_RECORDS = 10000;
+
+	private final PunishmentManager manager;
+	private final Logger logger;
+	private final File file;
+	private final ExecutorService writer;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final IntObjectMap<Entry> byId; // guarded by lock
+	private final Map<UUID, List<Entry>> byPlayer; // guarded by lock
+
+	private final Object writeLock = new Object();
+	private FileChannel channel; // guarded by writeLock, after the constructor
+	private int nextId; // guarded by writeLock
+	private int records; // guarded by writeLock
+
+	// guarded by this object's monitor
+	private Map<Punishment, List<SettableFuture<Boolean>>> pending;
+	private List<Batch> pendingBatches;
+	private boolean writeQueued;
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Reads the whole log into memory, creating it if it doesn't exist.
+	 *
+	 * @param manager The punishment manager instance.
+	 * @param file The log file.
+	 * @param logger The logger that failed writes are reported to.
+	 * @throws IOException If the log can't be opened or read.
+	 */
+	public FilePunishmentStorage(PunishmentManager manager, File file, Logger logger) throws
+			IOException
+	{
+		this.manager = manager;
+		this.logger = logger;
+		this.file = file;
+		this.byId = new IntObjectMap<>();
+		this.byPlayer = new HashMap<>();
+		this.pending = new IdentityHashMap<>();
+		this.pendingBatches = new ArrayList<>();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+		{
+			throw new IOException("Could not create " + parent);
+		}
+
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try
+		{
+			replay();
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Punisher Storage Writer").setDaemon(true).build());
+	}
+
+	@Override
+	public synchronized ListenableFuture<Boolean> savePunishment(Punishment punishment)
+	{
+		SettableFuture<Boolean> fut = SettableFuture.create();
+
+		// coalesce with a save of the same punishment that is already queued
+		pending.computeIfAbsent(punishment, p -> new ArrayList<>(1)).add(fut);
+		queueWrite();
+		return fut;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The punishments are written as one batch, which is read back whole or not at all.
+	 */
+	@Override
+	public synchronized ListenableFuture<Boolean> savePunishments(Collection<Punishment>
+			punishments)
+	{
+		for (Punishment p : punishments)
+		{
+			if (!fits(p))
+			{
+				logger.severe("Could not save batch of " + punishments.size() + " punishments: " +
+						"the punishment of " + p.getUuid() + " has a name, type or reason too long " +
+						"to store");
+				return Futures.immediateFuture(false);
+			}
+		}
+
+		Batch batch = new Batch(new ArrayList<>(punishments));
+		pendingBatches.add(batch);
+		queueWrite();
+		return batch.future;
+	}
+
+	private void queueWrite()
+	{
+		if (!writeQueued)
+		{
+			writeQueued = true;
+			writer.execute(this::flush);
+		}
+	}
+
+	@Override
+	public Set<Punishment> loadPunishments(UUID uuid, int timeout)
+	{
+		lock.readLock().lock();
+		try
+		{
+			List<Entry> entries = byPlayer.get(uuid);
+			Set<Punishment> puns = new HashSet<>();
+			if (entries != null)
+			{
+				entries.forEach(e -> puns.add(e.toPunishment(manager)));
+			}
+
+			return puns;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Punishment> loadHistory(HistoryQuery query, int limit)
+	{
+		long now = System.currentTimeMillis();
+		List<Punishment> history = new ArrayList<>();
+
+		lock.readLock().lock();
+		try
+		{
+			List<Entry> entries = byPlayer.get(query.getPlayer());
+			if (entries != null)
+			{
+				entries.forEach(e -> history.add(e.toPunishment(manager)));
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		history.removeIf(p -> !query.matches(p, now));
+		history.sort(Comparator.comparingLong(Punishment::getTimePunished).thenComparingInt
+				(Punishment::getId).reversed());
+		return history.size() > limit ? new ArrayList<>(history.subList(0, limit)) : history;
+	}
+
+	@Override
+	public Punishment loadPunishment(int id)
+	{
+		lock.readLock().lock();
+		try
+		{
+			Entry entry = byId.get(id);
+			return entry == null ? null : entry.toPunishment(manager);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void loadPunishedNames(int limit, ProfileCache profiles)
+	{
+		List<Entry> latest = new ArrayList<>();
+
+		lock.readLock().lock();
+		try
+		{
+			byPlayer.values().forEach(latest::addAll);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		// newest first, so keep the first name seen for each player
+		LinkedHashMap<UUID, Map.Entry<String, Long>> names = new LinkedHashMap<>();
+		latest.sort(Comparator.comparingLong((Entry e) -> e.timePunished).reversed());
+		latest.stream().limit(limit).forEach(e -> names.putIfAbsent(e.uuid, Maps.immutableEntry(e
+				.punishedName, e.timePunished)));
+		profiles.seed(names);
+	}
+
+	@Override
+	public int loadPunishedPlayers(int afterId, Consumer<UUID> consumer)
+	{
+		List<UUID> players = new ArrayList<>();
+		int last = afterId;
+
+		lock.readLock().lock();
+		try
+		{
+			for (List<Entry> entries : byPlayer.values())
+			{
+				for (Entry e : entries)
+				{
+					if (e.id > afterId)
+					{
+						players.add(e.uuid);
+						last = Math.max(last, e.id);
+					}
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		players.forEach(consumer);
+		return last;
+	}
+
+	@Override
+	public int loadActivePunishments(int afterId, long now, Consumer<Punishment> consumer)
+	{
+		List<Entry> active = new ArrayList<>();
+		int last = afterId;
+
+		lock.readLock().lock();
+		try
+		{
+			for (List<Entry> entries : byPlayer.values())
+			{
+				for (Entry e : entries)
+				{
+					// kicks are saved as permanent, but never restrict anyone
+					if (e.id > afterId && !e.removed && (e.duration == -1L || e.timePunished +
+							e.duration > now) && !"KICK".equals(e.type))
+					{
+						active.add(e);
+						last = Math.max(last, e.id);
+					}
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		active.forEach(e -> consumer.accept(e.toPunishment(manager)));
+		return last;
+	}
+
+	@Override
+	public int loadIpBans(long now, Consumer<IpPunishment> consumer)
+	{
+		List<Entry> active = new ArrayList<>();
+
+		lock.readLock().lock();
+		try
+		{
+			for (List<Entry> entries : byPlayer.values())
+			{
+				for (Entry e : entries)
+				{
+					if (e.range != null && !e.removed && (e.duration == -1L || e.timePunished +
+							e.duration > now))
+					{
+						active.add(e);
+					}
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		active.forEach(e -> consumer.accept((IpPunishment) e.toPunishment(manager)));
+		return active.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A log is only ever written by the one server that has it open, so there are never changes
+	 * from other servers to read.
+	 */
+	@Override
+	public long loadLatestChange()
+	{
+		return 0L;
+	}
+
+	@Override
+	public int loadChanges(long afterSequence, int limit, Consumer<PunishmentChange> consumer)
+	{
+		return 0;
+	}
+
+	@Override
+	public void pruneChanges(long before)
+	{
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The log only holds punishments, so addresses aren't kept, and players are only linked by
+	 * the addresses they log in from while the server is up.
+	 */
+	@Override
+	public boolean saveAddresses(Collection<PlayerAddress> addresses)
+	{
+		return true;
+	}
+
+	@Override
+	public int loadAddresses(long since, Consumer<PlayerAddress> consumer)
+	{
+		return 0;
+	}
+
+	/**
+	 * Writes anything still queued, stops the writer thread and closes the log.
+	 */
+	@Override
+	public void shutdown()
+	{
+		writer.shutdown();
+		try
+		{
+			writer.awaitTermination(10L, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+
+		synchronized (writeLock)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Appends every queued punishment to the log.
+	 * <p>
+	 * This operation writes to disk on the calling thread, and therefore is not safe to run from
+	 * any active gameplay threads.
+	 */
+	private void flush()
+	{
+		Map<Punishment, List<SettableFuture<Boolean>>> batch;
+		List<Batch> batches;
+		synchronized (this)
+		{
+			writeQueued = false;
+			if (pending.isEmpty() && pendingBatches.isEmpty())
+			{
+				return;
+			}
+
+			batch = pending;
+			batches = pendingBatches;
+			pending = new IdentityHashMap<>();
+			pendingBatches = new ArrayList<>();
+		}
+
+		Set<Punishment> saved;
+		synchronized (writeLock)
+		{
+			saved = write(batch.keySet(), batches);
+			if (!saved.isEmpty() && records >= COMPACT_MIN_RECORDS && records >= byId.size() * 2)
+			{
+				// only this thread changes the index, so it is safe to read its size here
+				compact();
+			}
+		}
+
+		batch.forEach((p, futs) -> futs.forEach(f -> f.set(saved.contains(p))));
+		batches.forEach(b -> b.future.set(saved.containsAll(b.punishments)));
+	}
+
+	/**
+	 * Appends punishments to the log and syncs it, then updates the in-memory index.
+	 * <p>
+	 * Single punishments with strings too long to store are left out, and the rest are written.
+	 *
+	 * @param singles The punishments to write as records of their own.
+	 * @param batches The punishments to write as batches, which have been checked to fit.
+	 * @return The punishments that were written, which is empty if the write failed. If it did,
+	 *         the log is left as it was.
+	 */
+	private Set<Punishment> write(Set<Punishment> singles, List<Batch> batches)
+	{
+		int size = singles.size();
+		for (Batch b : batches)
+		{
+			size += b.punishments.size();
+		}
+
+		List<Punishment> puns = new ArrayList<>(size);
+		List<Entry> entries = new ArrayList<>(size);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int id = nextId;
+
+		long position = -1L;
+		try
+		{
+			for (Punishment p : singles)
+			{
+				if (!fits(p))
+				{
+					logger.severe("Could not save punishment of " + p.getUuid() + ": its name, " +
+							"type or reason is too long to store");
+					continue;
+				}
+
+				Entry entry = toEntry(p, p.getId() == -1 ? id++ : p.getId());
+				puns.add(p);
+				entries.add(entry);
+				writeRecord(out, entry);
+			}
+
+			for (Batch b : batches)
+			{
+				ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(b.punishments.size() *
+						128);
+				DataOutputStream batch = new DataOutputStream(batchBytes);
+				batch.writeInt(b.punishments.size());
+				for (Punishment p : b.punishments)
+				{
+					Entry entry = toEntry(p, p.getId() == -1 ? id++ : p.getId());
+					puns.add(p);
+					entries.add(entry);
+					writeRecord(batch, entry);
+				}
+
+				if (batchBytes.size() > MAX_BATCH_SIZE)
+				{
+					throw new IOException("Batch of " + b.punishments.size() + " punishments is " +
+							"too large to store");
+				}
+
+				writeFrame(out, batchBytes, true);
+			}
+
+			if (puns.isEmpty())
+			{
+				return Collections.emptySet();
+			}
+
+			position = channel.size();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer, position + buffer.position());
+			}
+
+			channel.force(false);
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.SEVERE, "Could not save " + puns.size() + " punishments", e);
+
+			// cut off anything that was half-written
+			if (position >= 0L)
+			{
+				try
+				{
+					channel.truncate(position);
+				}
+				catch (IOException ex)
+				{
+					logger.log(Level.SEVERE, "Could not truncate punishment log", ex);
+				}
+			}
+
+			return Collections.emptySet();
+		}
+
+		nextId = id;
+		records += entries.size();
+
+		lock.writeLock().lock();
+		try
+		{
+			entries.forEach(this::index);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		// only hand out ids once they are on disk
+		Set<Punishment> written = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int i = 0; i < puns.size(); i++)
+		{
+			puns.get(i).setId(entries.get(i).id);
+			written.add(puns.get(i));
+		}
+
+		return written;
+	}
+
+	/**
+	 * Builds the entry that a punishment is written as.
+	 *
+	 * @param p The punishment.
+	 * @param id The id it is written under.
+	 * @return The entry.
+	 */
+	private Entry toEntry(Punishment p, int id)
+	{
+		Entry entry = new Entry(p, id);
+		if (entry.range == null && byId.get(id) != null)
+		{
+			// copies loaded without their range keep the one they were saved with; only the
+			// writer thread changes the index, so it is safe to read here
+			entry = entry.withRange(byId.get(id).range);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Rewrites the log with only the latest record of each punishment, replacing the old log
+	 * once the new one is on disk. If anything fails, the old log is kept as it is.
+	 */
+	private void compact()
+	{
+		List<Entry> entries = new ArrayList<>();
+		lock.readLock().lock();
+		try
+		{
+			byPlayer.values().forEach(entries::addAll);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		entries.sort(Comparator.comparingInt(e -> e.id));
+
+		File compacted = new File(file.getPath() + ".compact");
+		FileChannel out = null;
+		try
+		{
+			out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			for (Entry entry : entries)
+			{
+				writeRecord(data, entry);
+				if (bytes.size() >= 1 << 16)
+				{
+					writeFully(out, bytes);
+				}
+			}
+
+			writeFully(out, bytes);
+			out.force(true);
+
+			// the open channel follows the file as it is renamed over the log
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Could not compact punishment log", e);
+			closeQuietly(out);
+			compacted.delete();
+			return;
+		}
+
+		closeQuietly(channel);
+		channel = out;
+		logger.info("Compacted punishment log from " + records + " records to " + entries.size());
+		records = entries.size();
+	}
+
+	private static void writeFully(FileChannel channel, ByteArrayOutputStream bytes) throws
+			IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, channel.size());
+		}
+
+		bytes.reset();
+	}
+
+	private void closeQuietly(FileChannel channel)
+	{
+		if (channel == null)
+		{
+			return;
+		}
+
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Could not close punishment log", e);
+		}
+	}
+
+	/**
+	 * Reads the log into the index, discarding anything after the last complete record.
+	 *
+	 * @throws IOException If the log can't be read, or isn't a punishment log.
+	 */
+	private void replay() throws IOException
+	{
+		if (channel.size() == 0L)
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			channel.write(header, 0L);
+			channel.force(true);
+			nextId = 1;
+			return;
+		}
+
+		channel.position(0L);
+		InputStream stream = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+		DataInputStream in = new DataInputStream(stream);
+
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("Not a punishment log");
+		}
+
+		int version = in.readInt();
+		if (version < 1 || version > VERSION)
+		{
+			throw new IOException("Unsupported punishment log version " + version);
+		}
+
+		long valid = HEADER_SIZE;
+		int maxId = 0;
+		boolean damaged = false; // a whole record that can't be read, rather than a torn write
+		CRC32 crc = new CRC32();
+		while (true)
+		{
+			List<Entry> entries;
+			try
+			{
+				// batches are framed with a negative length
+				int length = in.readInt();
+				int checksum = in.readInt();
+				boolean batch = length < 0 && version >= 2;
+				if (batch ? length < -MAX_BATCH_SIZE : length <= 0 || length > MAX_RECORD_SIZE)
+				{
+					damaged = true;
+					break;
+				}
+
+				byte[] frame = new byte[Math.abs(length)];
+				in.readFully(frame);
+
+				crc.reset();
+				crc.update(frame, 0, frame.length);
+				if ((int) crc.getValue() != checksum)
+				{
+					damaged = true;
+					break;
+				}
+
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+				entries = batch ? readBatch(data) : Collections.singletonList(readRecord(data));
+				valid += 8 + frame.length;
+			}
+			catch (EOFException e)
+			{
+				break;
+			}
+
+			for (Entry entry : entries)
+			{
+				index(entry);
+				records++;
+				maxId = Math.max(maxId, entry.id);
+			}
+		}
+
+		long size = channel.size();
+		if (valid < size)
+		{
+			// keep what is cut off, as there may be good records after a damaged one
+			File aside = new File(file.getPath() + "." + System.currentTimeMillis() + ".discarded");
+			try (FileChannel out = FileChannel.open(aside.toPath(), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE))
+			{
+				long copied = 0L;
+				while (copied < size - valid)
+				{
+					copied += channel.transferTo(valid + copied, size - valid - copied, out);
+				}
+
+				out.force(true);
+			}
+
+			if (damaged)
+			{
+				logger.severe("The punishment log is damaged at byte " + valid + ", so the " +
+						(size - valid) + " bytes from there on, which may hold punishments, can't " +
+						"be read. They have been moved to " + aside + ", and need restoring by " +
+						"hand.");
+			}
+			else
+			{
+				logger.warning("Discarding " + (size - valid) + " bytes of incomplete punishment " +
+						"records from the end of the log; they have been moved to " + aside);
+			}
+
+			channel.truncate(valid);
+			channel.force(true);
+		}
+
+		if (version < VERSION)
+		{
+			ByteBuffer header = ByteBuffer.allocate(4).putInt(VERSION);
+			header.flip();
+			channel.write(header, 4L);
+			channel.force(true);
+		}
+
+		nextId = maxId + 1;
+	}
+
+	/**
+	 * Adds an entry to the index, replacing any earlier entry with the same id.
+	 *
+	 * @param entry The entry.
+	 */
+	private void index(Entry entry)
+	{
+		Entry previous = byId.put(entry.id, entry);
+		List<Entry> entries = byPlayer.computeIfAbsent(entry.uuid, u -> new ArrayList<>(2));
+		if (previous != null)
+		{
+			entries.remove(previous);
+		}
+
+		entries.add(entry);
+	}
+
+	/**
+	 * Checks that a punishment's strings can be written to a record.
+	 *
+	 * @param p The punishment.
+	 * @return Whether or not every string is short enough.
+	 */
+	private static boolean fits(Punishment p)
+	{
+		return utfLength(p.getPunishedName()) <= MAX_STRING_SIZE && utfLength(p.getType().getId())
+				<= MAX_STRING_SIZE && utfLength(p.getReason()) <= MAX_STRING_SIZE;
+	}
+
+	/**
+	 * @param s A string.
+	 * @return The number of bytes {@link DataOutputStream#writeUTF(String)} writes for it,
+	 *         besides its length.
+	 */
+	private static int utfLength(String s)
+	{
+		int length = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+		}
+
+		return length;
+	}
+
+	private static void writeRecord(DataOutputStream out, Entry entry) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeInt(entry.id);
+		record.writeLong(entry.uuid.getMostSignificantBits());
+		record.writeLong(entry.uuid.getLeastSignificantBits());
+		record.writeUTF(entry.punishedName);
+		record.writeUTF(entry.type);
+		record.writeLong(entry.staffUuid.getMostSignificantBits());
+		record.writeLong(entry.staffUuid.getLeastSignificantBits());
+		record.writeUTF(entry.reason);
+		record.writeLong(entry.timePunished);
+		record.writeLong(entry.duration);
+		record.writeBoolean(entry.removed);
+		if (entry.range != null)
+		{
+			record.write(entry.range.toBytes());
+			record.writeByte(entry.range.getPrefix());
+		}
+
+		writeFrame(out, bytes, false);
+	}
+
+	/**
+	 * Writes a record or a batch of records, behind its length and checksum.
+	 */
+	private static void writeFrame(DataOutputStream out, ByteArrayOutputStream bytes, boolean
+			batch) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray(), 0, bytes.size());
+
+		out.writeInt(batch ? -bytes.size() : bytes.size());
+		out.writeInt((int) crc.getValue());
+		bytes.writeTo(out);
+	}
+
+	private static List<Entry> readBatch(DataInputStream in) throws IOException
+	{
+		// the batch's checksum covers every record in it, so theirs aren't checked again
+		int count = in.readInt();
+		List<Entry> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			byte[] record = new byte[in.readInt()];
+			in.readInt();
+			in.readFully(record);
+			entries.add(readRecord(new DataInputStream(new ByteArrayInputStream(record))));
+		}
+
+		return entries;
+	}
+
+	private static Entry readRecord(DataInputStream in) throws IOException
+	{
+		Entry entry = new Entry(
+				in.readInt(),
+				new UUID(in.readLong(), in.readLong()),
+				in.readUTF(),
+				in.readUTF(),
+				new UUID(in.readLong(), in.readLong()),
+				in.readUTF(),
+				in.readLong(),
+				in.readLong(),
+				in.readBoolean(),
+				null
+		);
+
+		// only ip bans have anything after the common fields
+		if (in.available() > 0)
+		{
+			byte[] address = new byte[16];
+			in.readFully(address);
+			entry = entry.withRange(AddressRange.of(address, in.readUnsignedByte()));
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Punishments saved together, along with the future of everyone waiting on them.
+	 */
+	private static class Batch
+	{
+		private final List<Punishment> punishments;
+		private final SettableFuture<Boolean> future;
+
+		private Batch(List<Punishment> punishments)
+		{
+			this.punishments = punishments;
+			this.future = SettableFuture.create();
+		}
+	}
+
+	/**
+	 * A stored punishment, as it was when it was last saved.
+	 * <p>
+	 * The type is kept by id and only resolved when the punishment is loaded, as the log is read
+	 * before the manager's types are registered.
+	 */
+	private static class Entry
+	{
+		private final int id;
+		private final UUID uuid;
+		private final String punishedName;
+		private final String type;
+		private final UUID staffUuid;
+		private final String reason;
+		private final long timePunished;
+		private final long duration;
+		private final boolean removed;
+		private final AddressRange range; // null unless an ip ban
+
+		private Entry(int id, UUID uuid, String punishedName, String type, UUID staffUuid, String
+				reason, long timePunished, long duration, boolean removed, AddressRange range)
+		{
+			this.id = id;
+			this.uuid = uuid;
+			this.punishedName = punishedName;
+			this.type = type;
+			this.staffUuid = staffUuid;
+			this.reason = reason;
+			this.timePunished = timePunished;
+			this.duration = duration;
+			this.removed = removed;
+			this.range = range;
+		}
+
+		private Entry(Punishment p, int id)
+		{
+			this.id = id;
+			this.uuid = p.getUuid();
+			this.punishedName = p.getPunishedName();
+			this.type = p.getType().getId();
+			this.staffUuid = p.getStaffUuid();
+			this.reason = p.getReason();
+			this.timePunished = p.getTimePunished();
+			this.duration = p.getDuration();
+			this.removed = p.isRemoved();
+			this.range = p instanceof IpPunishment ? ((IpPunishment) p).getRange() : null;
+		}
+
+		private Entry withRange(AddressRange range)
+		{
+			return new Entry(id, uuid, punishedName, type, staffUuid, reason, timePunished,
+					duration, removed, range);
+		}
+
+		private Punishment toPunishment(PunishmentManager manager)
+		{
+			if (range != null)
+			{
+				return new IpPunishment(id, manager.getPunishmentType(type), uuid, punishedName,
+						staffUuid, reason, timePunished, duration, removed, range);
+			}
+
+			return new PlayerPunishment(id, manager.getPunishmentType(type), uuid, punishedName,
+					staffUuid, reason, timePunished, duration, removed);
+		}
+	}
+}
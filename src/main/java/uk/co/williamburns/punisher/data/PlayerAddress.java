@@ -0,0 +1,75 @@
+package uk.co.williamburns.punisher.data;
+
+import java.util.UUID;
+
+import uk.co.williamburns.punisher.util.AddressRange;
+
+/**
+ * An immutable record of a player logging in from an address.
+ * <p>
+ * The address is held as two <code>long</code>s in the shared 128-bit space of
+ * {@link AddressRange}, with IPv4 addresses mapped into IPv6.
+ */
+public final class PlayerAddress
+{
+	private final UUID uuid;
+	private final long high;
+	private final long low;
+	private final long lastSeen;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param uuid The UUID of the player.
+	 * @param high The first 64 bits of the address.
+	 * @param low The last 64 bits of the address.
+	 * @param lastSeen When the player last logged in from the address, as an epoch timestamp.
+	 */
+	public PlayerAddress(UUID uuid, long high, long low, long lastSeen)
+	{
+		this.uuid = uuid;
+		this.high = high;
+		this.low = low;
+		this.lastSeen = lastSeen;
+	}
+
+	/**
+	 * @return The UUID of the player.
+	 */
+	public UUID getUuid()
+	{
+		return uuid;
+	}
+
+	/**
+	 * @return The first 64 bits of the address, in the shared space.
+	 */
+	public long getHigh()
+	{
+		return high;
+	}
+
+	/**
+	 * @return The last 64 bits of the address.
+	 */
+	public long getLow()
+	{
+		return low;
+	}
+
+	/**
+	 * @return When the player last logged in from the address, as an epoch timestamp.
+	 */
+	public long getLastSeen()
+	{
+		return lastSeen;
+	}
+
+	/**
+	 * @return The address as 16 bytes, as it is stored.
+	 */
+	public byte[] toBytes()
+	{
+		return new AddressRange(high, low, 128).toBytes();
+	}
+}
@@ -0,0 +1,53 @@
+package uk.co.williamburns.punisher.data;
+
+import uk.co.williamburns.punisher.api.Punishment;
+
+/**
+ * An immutable entry of the change feed: a punishment that was added or updated, as it is now.
+ */
+public final class PunishmentChange
+{
+	private final long sequence;
+	private final boolean local;
+	private final Punishment punishment;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param sequence The position of the change in the feed.
+	 * @param local Whether or not the change was made by this server.
+	 * @param punishment The punishment that changed, as it is now.
+	 */
+	public PunishmentChange(long sequence, boolean local, Punishment punishment)
+	{
+		this.sequence = sequence;
+		this.local = local;
+		this.punishment = punishment;
+	}
+
+	/**
+	 * @return The position of the change in the feed. Later changes have higher positions, but
+	 *         there may be gaps.
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * @return Whether or not the change was made by this server, in which case it has been
+	 *         applied here already.
+	 */
+	public boolean isLocal()
+	{
+		return local;
+	}
+
+	/**
+	 * @return The punishment that changed, as it is now rather than as it was at the time.
+	 */
+	public Punishment getPunishment()
+	{
+		return punishment;
+	}
+}
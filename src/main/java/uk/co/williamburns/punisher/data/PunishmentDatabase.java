@@ -1,37 +1,110 @@
 package uk.co.williamburns.punisher.data;
 
-import javax.sql.DataSource;
-
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.ConfigurationSection;
 
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
 import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.api.HistoryQuery;
 import uk.co.williamburns.punisher.api.Punishment;
 import uk.co.williamburns.punisher.api.PunishmentManager;
+import uk.co.williamburns.punisher.base.IpPunishment;
 import uk.co.williamburns.punisher.base.PlayerPunishment;
+import uk.co.williamburns.punisher.util.AddressRange;
 import uk.co.williamburns.punisher.util.DatabaseUtil;
+import uk.co.williamburns.punisher.util.ProfileCache;
+import uk.co.williamburns.punisher.util.data.InstrumentedDataSource;
 import uk.co.williamburns.punisher.util.data.SelectQueryCallable;
-import uk.co.williamburns.punisher.util.data.UpdateQueryCallable;
+import uk.co.williamburns.punisher.util.metrics.Metrics;
 
 /**
- * Manages the loading and saving of punishments in the database.
+ * Manages the loading and saving of punishments in a MySQL database.
  */
-public class PunishmentDatabase
+public class PunishmentDatabase implements PunishmentStorage
 {
-	private static final String LOAD_PUNISHMENTS = "SELECT * FROM punishments WHERE uuid = ?";
+	// the columns read by readPunishment, in order
+	private static final String PUNISHMENT_COLUMNS = "id, uuid, punishedName, type, staff, reason, " +
+			"timePunished, duration, removed";
+
+	private static final String LOAD_PUNISHMENTS = "SELECT " + PUNISHMENT_COLUMNS + " FROM " +
+			"punishments WHERE uuid = ?";
+
+	private static final String LOAD_PUNISHMENT = "SELECT " + PUNISHMENT_COLUMNS + " FROM " +
+			"punishments WHERE id = ?";
+
+	// keyset pagination: everything before the last row of the previous page, newest first
+	private static final String LOAD_HISTORY = "SELECT " + PUNISHMENT_COLUMNS + " FROM " +
+			"punishments WHERE uuid = ? AND (timePunished < ? OR (timePunished = ? AND id < ?))";
+
+	private static final String HISTORY_TYPE = " AND type = ?";
+
+	private static final String HISTORY_ACTIVE = " AND removed = 0 AND (duration = -1 OR " +
+			"timePunished + duration > ?)";
+
+	private static final String HISTORY_ORDER = " ORDER BY timePunished DESC, id DESC LIMIT ?";
+
+	private static final String LOAD_PUNISHED_NAMES = "SELECT uuid, punishedName, timePunished FROM " +
+			"punishments ORDER BY timePunished DESC LIMIT ?";
+
+	private static final String LOAD_PUNISHED_PLAYERS = "SELECT id, uuid FROM punishments WHERE id " +
+			"> ? ORDER BY id";
+
+	// kicks are saved as permanent, but never restrict anyone, so they are left out
+	private static final String LOAD_ACTIVE_PUNISHMENTS = "SELECT " + PUNISHMENT_COLUMNS + " FROM " +
+			"punishments WHERE id > ? AND removed = 0 AND type <> 'KICK' AND (duration = -1 OR " +
+			"timePunished + duration > ?) ORDER BY id";
+
+	// the punishment columns come first, so that readPunishment can read them by position
+	private static final String LOAD_IP_BANS = "SELECT " + PUNISHMENT_COLUMNS + ", b.address, " +
+			"b.prefix FROM ip_bans b JOIN punishments p ON p.id = b.punishmentId WHERE p.removed = 0 " +
+			"AND (p.duration = -1 OR p.timePunished + p.duration > ?)";
+
+	private static final String LOAD_LATEST_CHANGE = "SELECT MAX(seq) FROM punishment_changes";
 
-	private static final String SAVE_PUNISHMENT = "INSERT INTO punishments (uuid, " +
-			"punishedName, type, staff, reason, timePunished, duration, removed) VALUES (?, ?, ?," +
-			" ?, ?, ?, ?, ?)";
+	// the punishment columns come first, so that readPunishment can read them by position
+	private static final String LOAD_CHANGES = "SELECT " + PUNISHMENT_COLUMNS + ", c.seq, c.server " +
+			"FROM punishment_changes c JOIN punishments p ON p.id = c.punishmentId WHERE c.seq > ? " +
+			"ORDER BY c.seq LIMIT ?";
 
-	private static final String UPDATE_PUNISHMENT = "UPDATE punishments SET removed = ? WHERE id " +
-			"= ?";
+	private static final String PRUNE_CHANGES = "DELETE FROM punishment_changes WHERE changedAt < ?";
+
+	private static final String SAVE_ADDRESS = "INSERT INTO player_addresses (uuid, address, " +
+			"lastSeen) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE lastSeen = GREATEST(lastSeen, " +
+			"VALUES(lastSeen))";
+
+	private static final String LOAD_ADDRESSES = "SELECT uuid, address, lastSeen FROM " +
+			"player_addresses WHERE lastSeen > ?";
+
+	// orders a batch of addresses by primary key, so that servers saving overlapping batches lock
+	// the same rows in the same order rather than deadlocking
+	private static final Comparator<PlayerAddress> ADDRESS_ORDER = Comparator.comparing((
+			PlayerAddress a) -> a.getUuid().toString()).thenComparing(PlayerAddress::getHigh, Long
+			::compareUnsigned).thenComparing(PlayerAddress::getLow, Long::compareUnsigned);
+
+	// rows fetched from the server at a time when streaming a whole table
+	private static final int STREAM_FETCH_SIZE = 1000;
 
 	private final PunishmentManager manager;
 	private final Punisher plugin;
-	private final DataSource database;
+	private final InstrumentedDataSource database;
+	private final String server;
+	private final PunishmentWriteQueue writes;
 
 	/**
 	 * Class constructor.
@@ -40,131 +113,484 @@ public class PunishmentDatabase
 	 * @param plugin The Punisher plugin instance.
 	 */
 	public PunishmentDatabase(PunishmentManager manager, Punisher plugin)
+	{
+		// generate data source from config, and bring the schema up to date
+		this(manager, plugin, migrate(DatabaseUtil.generateDataSource(plugin.getConfig()), plugin));
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param manager The punishment manager instance.
+	 * @param plugin The Punisher plugin instance.
+	 * @param database The connection pool to the database.
+	 */
+	public PunishmentDatabase(PunishmentManager manager, Punisher plugin, InstrumentedDataSource
+			database)
 	{
 		this.manager = manager;
 		this.plugin = plugin;
+		this.database = database;
 
-		// generate data source and save
-		this.database = DatabaseUtil.generateDataSource(plugin.getConfig());
+		// identifies this server's writes in the change feed, so it can skip its own
+		this.server = UUID.randomUUID().toString();
+
+		// batch up writes
+		ConfigurationSection cs = plugin.getConfig().getConfigurationSection("database.write-batch");
+		this.writes = new PunishmentWriteQueue(database, server, plugin.getLogger(), cs.getInt("size",
+				50), cs.getLong("max-delay-ms", 250L));
+
+		Metrics metrics = plugin.getMetrics();
+		metrics.register("punisher_db_borrow_seconds",
+				"Time taken to borrow a connection from the pool.", database.getBorrowTimes());
+		metrics.counter("punisher_db_borrow_failures_total",
+				"Attempts to borrow a connection that failed or timed out.", database::getFailureCount);
+		metrics.gauge("punisher_db_connections_active", "Connections borrowed from the pool.",
+				database::getActive);
+		metrics.gauge("punisher_db_connections_idle", "Connections idle in the pool.",
+				database::getIdle);
+		metrics.gauge("punisher_db_borrow_waiters", "Threads waiting to borrow a connection.",
+				database::getWaiters);
 	}
 
 	/**
-	 * Saves a punishment to the database.
+	 * {@inheritDoc}
 	 * <p>
-	 * If the id of the punishment is <code>-1</code> (it hasn't been saved before), then the
-	 * supplied object is updated with the id auto-generated from the database.
+	 * Punishments are written in batches by a {@link PunishmentWriteQueue}, off the calling
+	 * thread.
+	 */
+	@Override
+	public ListenableFuture<Boolean> savePunishment(Punishment punishment)
+	{
+		return writes.submit(punishment);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The punishments are written in one transaction, on the {@link PunishmentWriteQueue}'s
+	 * thread.
+	 */
+	@Override
+	public ListenableFuture<Boolean> savePunishments(Collection<Punishment> punishments)
+	{
+		return writes.submitAll(punishments);
+	}
+
+	/**
+	 * Writes any queued punishments, stops the write queue and closes the connection pool.
+	 */
+	@Override
+	public void shutdown()
+	{
+		writes.shutdown();
+
+		try
+		{
+			database.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The connection pool, for its live statistics.
+	 */
+	public InstrumentedDataSource getDataSource()
+	{
+		return database;
+	}
+
+	/**
+	 * Loads punishments for a player from the database, giving up if the query takes too long.
 	 * <p>
-	 * This operation runs networking on hte calling thread, and therefore is not safe to run
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
 	 * from any active gameplay threads.
 	 *
-	 * @param punishment The punishment that is saved.
-	 * @return Whether or not the query was successful.
+	 * @param uuid The UUID of the target player.
+	 * @param timeout The number of seconds the query may run for. <code>0</code> if unlimited.
+	 * @return A set of punishments for that player, if any. <code>null</code> if SQL fails.
 	 */
-	public boolean savePunishment(Punishment punishment)
+	@Override
+	public Set<Punishment> loadPunishments(UUID uuid, int timeout)
 	{
-		UpdateQueryCallable update;
+		SelectQueryCallable<Set<Punishment>> select = new SelectQueryCallable<>(
+				database,
+				LOAD_PUNISHMENTS,
+				new Object[]{ uuid.toString() },
+				results ->
+				{
+					// handle result set of loaded punishments
+					Set<Punishment> punishments = new HashSet<>();
 
-		if (punishment.getId() == -1)
-		{
-			// new punishment
-			update = new UpdateQueryCallable(
-					database, SAVE_PUNISHMENT, new Object[]
-					{
-							punishment.getUuid().toString(),
-							punishment.getPunishedName(),
-							punishment.getType().getId(),
-							punishment.getStaffUuid().toString(),
-							punishment.getReason(),
-							punishment.getTimePunished(),
-							punishment.getDuration(),
-							punishment.isRemoved()
-					},
-					results ->
+					try
 					{
-						try
+						while (results.next())
 						{
-							// retrieve auto-generated id
-							results.first();
-							punishment.setId(results.getInt(1));
+							punishments.add(readPunishment(results));
 						}
-						catch (SQLException e)
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return null;
+					}
+
+					return punishments;
+				},
+				timeout
+		);
+
+		try
+		{
+			return select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public List<Punishment> loadHistory(HistoryQuery query, int limit)
+	{
+		StringBuilder sql = new StringBuilder(LOAD_HISTORY);
+		List<Object> args = new ArrayList<>();
+		args.add(query.getPlayer().toString());
+		args.add(query.getBeforeTime());
+		args.add(query.getBeforeTime());
+		args.add(query.getBeforeId());
+
+		if (query.getType() != null)
+		{
+			sql.append(HISTORY_TYPE);
+			args.add(query.getType());
+		}
+
+		if (query.isActiveOnly())
+		{
+			sql.append(HISTORY_ACTIVE);
+			args.add(System.currentTimeMillis());
+		}
+
+		sql.append(HISTORY_ORDER);
+		args.add(limit);
+
+		SelectQueryCallable<List<Punishment>> select = new SelectQueryCallable<>(
+				database,
+				sql.toString(),
+				args.toArray(),
+				results ->
+				{
+					List<Punishment> punishments = new ArrayList<>(limit);
+
+					try
+					{
+						while (results.next())
 						{
-							e.printStackTrace();
+							punishments.add(readPunishment(results));
 						}
 					}
-			);
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return null;
+					}
+
+					return punishments;
+				}
+		);
+
+		try
+		{
+			return select.call();
 		}
-		else
+		catch (Exception e)
 		{
-			// existing punishment
-			update = new UpdateQueryCallable(
-					database, UPDATE_PUNISHMENT, new Object[]
-					{
-							punishment.isRemoved(),
-							punishment.getId()
-					},
-					results -> {}
-			);
+			e.printStackTrace();
+			return null;
 		}
+	}
+
+	/**
+	 * Loads a single punishment by id from the database.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @param id The id of the punishment.
+	 * @return The punishment, or <code>null</code> if there is none with that id or SQL fails.
+	 */
+	@Override
+	public Punishment loadPunishment(int id)
+	{
+		SelectQueryCallable<Punishment> select = new SelectQueryCallable<>(
+				database,
+				LOAD_PUNISHMENT,
+				new Object[]{ id },
+				results ->
+				{
+					try
+					{
+						return results.next() ? readPunishment(results) : null;
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return null;
+					}
+				}
+		);
 
 		try
 		{
-			update.call();
-			return true;
+			return select.call();
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
-			return false;
+			return null;
 		}
 	}
 
 	/**
-	 * Loads punishments for a player from the database.
+	 * Seeds a profile cache with the names of the most recently punished players, as they were
+	 * at the time of punishment.
 	 * <p>
 	 * This operation runs networking on the calling thread, and therefore is not safe to run
 	 * from any active gameplay threads.
 	 *
-	 * @param uuid The UUID of the target player.
-	 * @return A set of punishments for that player, if any. <code>null</code> if SQL fails.
+	 * @param limit The maximum number of punishments to read names from.
+	 * @param profiles The profile cache that is seeded.
 	 */
-	public Set<Punishment> loadPunishments(UUID uuid)
+	@Override
+	public void loadPunishedNames(int limit, ProfileCache profiles)
 	{
-		SelectQueryCallable<Set<Punishment>> select = new SelectQueryCallable<>(
+		LinkedHashMap<UUID, Map.Entry<String, Long>> names = new LinkedHashMap<>();
+		SelectQueryCallable<Void> select = new SelectQueryCallable<>(
 				database,
-				LOAD_PUNISHMENTS,
-				new Object[]{ uuid.toString() },
+				LOAD_PUNISHED_NAMES,
+				new Object[]{ limit },
 				results ->
 				{
-					// handle result set of loaded punishments
-					Set<Punishment> punishments = new HashSet<>();
-
 					try
 					{
 						while (results.next())
 						{
-							Punishment p = new PlayerPunishment(
-									results.getInt("id"),
-									manager.getPunishmentType("type"),
+							// newest first, so keep the first name seen for each player
+							names.putIfAbsent(
 									UUID.fromString(results.getString("uuid")),
-									results.getString("punishedName"),
-									UUID.fromString(results.getString("staff")),
-									results.getString("reason"),
-									results.getLong("timePunished"),
-									results.getLong("duration"),
-									results.getBoolean("removed")
+									Maps.immutableEntry(results.getString("punishedName"),
+											results.getLong("timePunished"))
 							);
+						}
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+					}
+
+					return null;
+				}
+		);
 
-							punishments.add(p);
+		try
+		{
+			select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+
+		profiles.seed(names);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Rows are streamed from the server in chunks rather than read into memory all at once.
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public int loadPunishedPlayers(int afterId, Consumer<UUID> consumer)
+	{
+		SelectQueryCallable<Integer> select = new SelectQueryCallable<>(
+				database,
+				LOAD_PUNISHED_PLAYERS,
+				new Object[]{ afterId },
+				results ->
+				{
+					int last = afterId;
+
+					try
+					{
+						while (results.next())
+						{
+							last = results.getInt("id");
+							consumer.accept(UUID.fromString(results.getString("uuid")));
 						}
 					}
 					catch (SQLException e)
 					{
 						e.printStackTrace();
-						return null;
+						return -1;
 					}
 
-					return punishments;
+					return last;
+				},
+				0,
+				STREAM_FETCH_SIZE
+		);
+
+		try
+		{
+			return select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Rows are streamed from the server in chunks rather than read into memory all at once.
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public int loadActivePunishments(int afterId, long now, Consumer<Punishment> consumer)
+	{
+		SelectQueryCallable<Integer> select = new SelectQueryCallable<>(
+				database,
+				LOAD_ACTIVE_PUNISHMENTS,
+				new Object[]{ afterId, now },
+				results ->
+				{
+					int last = afterId;
+
+					try
+					{
+						while (results.next())
+						{
+							Punishment p = readPunishment(results);
+							last = p.getId();
+							consumer.accept(p);
+						}
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return -1;
+					}
+
+					return last;
+				},
+				0,
+				STREAM_FETCH_SIZE
+		);
+
+		try
+		{
+			return select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public int loadIpBans(long now, Consumer<IpPunishment> consumer)
+	{
+		SelectQueryCallable<Integer> select = new SelectQueryCallable<>(
+				database,
+				LOAD_IP_BANS,
+				new Object[]{ now },
+				results ->
+				{
+					int count = 0;
+
+					try
+					{
+						while (results.next())
+						{
+							Punishment p = readPunishment(results);
+							consumer.accept(new IpPunishment(p.getId(), p.getType(), p.getUuid(),
+									p.getPunishedName(), p.getStaffUuid(), p.getReason(),
+									p.getTimePunished(), p.getDuration(), p.isRemoved(), AddressRange
+									.of(results.getBytes(10), results.getInt(11))));
+							count++;
+						}
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return -1;
+					}
+
+					return count;
+				},
+				0,
+				STREAM_FETCH_SIZE
+		);
+
+		try
+		{
+			return select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public long loadLatestChange()
+	{
+		SelectQueryCallable<Long> select = new SelectQueryCallable<>(
+				database,
+				LOAD_LATEST_CHANGE,
+				new Object[0],
+				results ->
+				{
+					try
+					{
+						// MAX of no rows is null, which reads as 0
+						return results.next() ? results.getLong(1) : 0L;
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return -1L;
+					}
 				}
 		);
 
@@ -175,7 +601,211 @@ public class PunishmentDatabase
 		catch (Exception e)
 		{
 			e.printStackTrace();
-			return null;
+			return -1L;
 		}
 	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public int loadChanges(long afterSequence, int limit, Consumer<PunishmentChange> consumer)
+	{
+		SelectQueryCallable<Integer> select = new SelectQueryCallable<>(
+				database,
+				LOAD_CHANGES,
+				new Object[]{ afterSequence, limit },
+				results ->
+				{
+					int count = 0;
+
+					try
+					{
+						while (results.next())
+						{
+							Punishment p = readPunishment(results);
+							consumer.accept(new PunishmentChange(results.getLong(10), server.equals(
+									results.getString(11)), p));
+							count++;
+						}
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return -1;
+					}
+
+					return count;
+				}
+		);
+
+		try
+		{
+			return select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	@Override
+	public void pruneChanges(long before)
+	{
+		try (Connection connection = database.getConnection();
+			 PreparedStatement statement = connection.prepareStatement(PRUNE_CHANGES))
+		{
+			statement.setLong(1, before);
+			statement.executeUpdate();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The addresses are written in one transaction, as a single batch.
+	 */
+	@Override
+	public boolean saveAddresses(Collection<PlayerAddress> addresses)
+	{
+		List<PlayerAddress> sorted = new ArrayList<>(addresses);
+		sorted.sort(ADDRESS_ORDER);
+
+		try (Connection connection = database.getConnection())
+		{
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(SAVE_ADDRESS))
+			{
+				for (PlayerAddress a : sorted)
+				{
+					statement.setString(1, a.getUuid().toString());
+					statement.setBytes(2, a.toBytes());
+					statement.setLong(3, a.getLastSeen());
+					statement.addBatch();
+				}
+
+				statement.executeBatch();
+				connection.commit();
+			}
+			catch (SQLException e)
+			{
+				connection.rollback();
+				throw e;
+			}
+			finally
+			{
+				connection.setAutoCommit(true);
+			}
+
+			return true;
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public int loadAddresses(long since, Consumer<PlayerAddress> consumer)
+	{
+		SelectQueryCallable<Integer> select = new SelectQueryCallable<>(
+				database,
+				LOAD_ADDRESSES,
+				new Object[]{ since },
+				results ->
+				{
+					int count = 0;
+
+					try
+					{
+						while (results.next())
+						{
+							byte[] address = results.getBytes(2);
+							consumer.accept(new PlayerAddress(UUID.fromString(results.getString(1)),
+									AddressRange.high(address), AddressRange.low(address), results
+									.getLong(3)));
+							count++;
+						}
+					}
+					catch (SQLException e)
+					{
+						e.printStackTrace();
+						return -1;
+					}
+
+					return count;
+				},
+				0,
+				STREAM_FETCH_SIZE
+		);
+
+		try
+		{
+			return select.call();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * Creates and migrates the schema, logging rather than failing if it can't, so that the
+	 * plugin still starts against a database that is down or already set up by hand.
+	 *
+	 * @param database The connection pool to the database.
+	 * @param plugin The Punisher plugin instance.
+	 * @return The connection pool.
+	 */
+	private static InstrumentedDataSource migrate(InstrumentedDataSource database, Punisher plugin)
+	{
+		try
+		{
+			new SchemaManager(database, plugin.getLogger()).migrate();
+		}
+		catch (SQLException e)
+		{
+			plugin.getLogger().log(Level.SEVERE, "Could not bring the database schema up to date", e);
+		}
+
+		return database;
+	}
+
+	/**
+	 * Maps the current row of a result set to a punishment.
+	 *
+	 * @param results The result set, positioned at a row of {@link #PUNISHMENT_COLUMNS}.
+	 * @return The punishment in that row.
+	 * @throws SQLException If a column can't be read.
+	 */
+	private Punishment readPunishment(ResultSet results) throws SQLException
+	{
+		return new PlayerPunishment(
+				results.getInt(1),
+				manager.getPunishmentType(results.getString(4)),
+				UUID.fromString(results.getString(2)),
+				results.getString(3),
+				UUID.fromString(results.getString(5)),
+				results.getString(6),
+				results.getLong(7),
+				results.getLong(8),
+				results.getBoolean(9)
+		);
+	}
 }
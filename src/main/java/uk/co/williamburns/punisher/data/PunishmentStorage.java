@@ -0,0 +1,185 @@
+package uk.co.williamburns.punisher.data;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import uk.co.williamburns.punisher.api.HistoryQuery;
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.base.IpPunishment;
+import uk.co.williamburns.punisher.util.ProfileCache;
+
+/**
+ * Somewhere that punishments are stored, such as a database.
+ * <p>
+ * The <code>load</code> methods may block, and therefore are not safe to run from any active
+ * gameplay threads. Each call returns new punishment objects; it is up to the caller to cache
+ * them.
+ */
+public interface PunishmentStorage
+{
+
+	/**
+	 * Queues a punishment to be saved.
+	 * <p>
+	 * If the id of the punishment is <code>-1</code> (it hasn't been saved before), it is added,
+	 * and the supplied object is updated with its generated id before the future completes.
+	 * Otherwise, the stored punishment is updated to match. The range of a new
+	 * {@link IpPunishment} is stored with it, and never changes after.
+	 *
+	 * @param punishment The punishment that is saved.
+	 * @return Whether or not the punishment was saved, as a future.
+	 */
+	ListenableFuture<Boolean> savePunishment(Punishment punishment);
+
+	/**
+	 * Saves several punishments together, as with {@link #savePunishment(Punishment)}.
+	 * <p>
+	 * Either every punishment is saved or none is, and new punishments are updated with their
+	 * generated ids before the future completes.
+	 *
+	 * @param punishments The punishments that are saved.
+	 * @return Whether or not the punishments were saved, as a future.
+	 */
+	ListenableFuture<Boolean> savePunishments(Collection<Punishment> punishments);
+
+	/**
+	 * Loads punishments for a player.
+	 *
+	 * @param uuid The UUID of the target player.
+	 * @return A set of punishments for that player, if any. <code>null</code> if they can't be
+	 *         loaded.
+	 */
+	default Set<Punishment> loadPunishments(UUID uuid)
+	{
+		return loadPunishments(uuid, 0);
+	}
+
+	/**
+	 * Loads punishments for a player, giving up if it takes too long.
+	 *
+	 * @param uuid The UUID of the target player.
+	 * @param timeout The number of seconds the load may take. <code>0</code> if unlimited.
+	 * @return A set of punishments for that player, if any. <code>null</code> if they can't be
+	 *         loaded.
+	 */
+	Set<Punishment> loadPunishments(UUID uuid, int timeout);
+
+	/**
+	 * Loads a page of a player's punishment history.
+	 *
+	 * @param query The query for the page.
+	 * @param limit The maximum number of punishments to load, which may be more than the query's
+	 *              own limit, such as to find out whether there is another page.
+	 * @return The punishments, newest first. <code>null</code> if they can't be loaded.
+	 */
+	List<Punishment> loadHistory(HistoryQuery query, int limit);
+
+	/**
+	 * Loads a single punishment by id.
+	 *
+	 * @param id The id of the punishment.
+	 * @return The punishment, or <code>null</code> if there is none with that id or it can't be
+	 *         loaded.
+	 */
+	Punishment loadPunishment(int id);
+
+	/**
+	 * Seeds a profile cache with the names of the most recently punished players, as they were
+	 * at the time of punishment. Players already cached are left as they are.
+	 *
+	 * @param limit The maximum number of punishments to read names from.
+	 * @param profiles The profile cache that is seeded.
+	 */
+	void loadPunishedNames(int limit, ProfileCache profiles);
+
+	/**
+	 * Streams the UUIDs of players punished by every punishment with an id above the given one.
+	 * <p>
+	 * A player is passed once for each such punishment.
+	 *
+	 * @param afterId Only punishments with a greater id are read. <code>0</code> for all.
+	 * @param consumer Accepts each punished player.
+	 * @return The highest id read, or <code>afterId</code> if there were none. <code>-1</code>
+	 *         if they can't be loaded.
+	 */
+	int loadPunishedPlayers(int afterId, Consumer<UUID> consumer);
+
+	/**
+	 * Streams every punishment with an id above the given one that is in effect: not removed,
+	 * and permanent or not yet expired. Kicks, which are saved as permanent but never restrict
+	 * anyone, are left out.
+	 *
+	 * @param afterId Only punishments with a greater id are read. <code>0</code> for all.
+	 * @param now The current time, as an epoch timestamp.
+	 * @param consumer Accepts each punishment.
+	 * @return The highest id read, or <code>afterId</code> if there were none. <code>-1</code>
+	 *         if they can't be loaded.
+	 */
+	int loadActivePunishments(int afterId, long now, Consumer<Punishment> consumer);
+
+	/**
+	 * Streams every IP ban that is in effect: not removed, and permanent or not yet expired.
+	 *
+	 * @param now The current time, as an epoch timestamp.
+	 * @param consumer Accepts each ban, with its range.
+	 * @return The number of bans read, or <code>-1</code> if they can't be loaded.
+	 */
+	int loadIpBans(long now, Consumer<IpPunishment> consumer);
+
+	/**
+	 * Finds where the change feed currently ends, so that it can be read from there.
+	 *
+	 * @return The sequence of the latest change, or <code>0</code> if there are none.
+	 *         <code>-1</code> if it can't be loaded.
+	 */
+	long loadLatestChange();
+
+	/**
+	 * Streams changes from the change feed, which records every punishment added or updated by
+	 * any server sharing this storage, in the order they were made.
+	 *
+	 * @param afterSequence Only changes with a greater sequence are read.
+	 * @param limit The maximum number of changes to read.
+	 * @param consumer Accepts each change, in order of sequence.
+	 * @return The number of changes read, or <code>-1</code> if they can't be loaded.
+	 */
+	int loadChanges(long afterSequence, int limit, Consumer<PunishmentChange> consumer);
+
+	/**
+	 * Deletes changes from the change feed that are old enough that no server will read them.
+	 *
+	 * @param before Changes made before this time, as an epoch timestamp, are deleted.
+	 */
+	void pruneChanges(long before);
+
+	/**
+	 * Records the addresses that players have logged in from, or when they were last seen there
+	 * if they have been before.
+	 * <p>
+	 * This operation may block, and therefore is not safe to run from any active gameplay
+	 * threads.
+	 *
+	 * @param addresses The addresses, all saved together.
+	 * @return Whether or not the addresses were saved.
+	 */
+	boolean saveAddresses(Collection<PlayerAddress> addresses);
+
+	/**
+	 * Streams every address that a player has logged in from since the given time.
+	 *
+	 * @param since Only addresses last seen after this time, as an epoch timestamp, are read.
+	 * @param consumer Accepts each player and address.
+	 * @return The number of addresses read, or <code>-1</code> if they can't be loaded.
+	 */
+	int loadAddresses(long since, Consumer<PlayerAddress> consumer);
+
+	/**
+	 * Saves anything still queued and releases resources.
+	 */
+	void shutdown();
+
+}
@@ -0,0 +1,399 @@
+package uk.co.williamburns.punisher.data;
+
+import javax.sql.DataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.base.IpPunishment;
+import uk.co.williamburns.punisher.util.AddressRange;
+
+/**
+ * A write-behind queue that saves punishments to the database in batches.
+ * <p>
+ * Punishments are queued until either enough have built up to fill a batch, or the oldest has
+ * waited for the maximum delay. Each flush then inserts all new punishments and updates all
+ * existing ones with JDBC batches, inside a single transaction, along with the ranges of new IP
+ * bans. Every write is recorded in the change feed in the same transaction, so that other
+ * servers sharing the database see it.
+ * <p>
+ * Queueing the same punishment object again before it is flushed doesn't write it twice; the
+ * row written reflects the punishment's state at the time of the flush.
+ */
+public class PunishmentWriteQueue
+{
+	private static final String SAVE_PUNISHMENT = "INSERT INTO punishments (uuid, " +
+			"punishedName, type, staff, reason, timePunished, duration, removed) VALUES (?, ?, ?," +
+			" ?, ?, ?, ?, ?)";
+
+	private static final String UPDATE_PUNISHMENT = "UPDATE punishments SET removed = ? WHERE id " +
+			"= ?";
+
+	private static final String SAVE_IP_BAN = "INSERT INTO ip_bans (punishmentId, address, prefix) " +
+			"VALUES (?, ?, ?)";
+
+	private static final String SAVE_CHANGE = "INSERT INTO punishment_changes (punishmentId, " +
+			"server, changedAt) VALUES (?, ?, ?)";
+
+	private final DataSource database;
+	private final String server;
+	private final Logger logger;
+	private final int batchSize;
+	private final long maxDelay;
+
+	private final ScheduledExecutorService flusher;
+
+	// guarded by this object's monitor
+	private Map<Punishment, PendingWrite> pending;
+	private ScheduledFuture<?> scheduledFlush;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param database The database source.
+	 * @param server The id of this server, which changes are recorded against.
+	 * @param logger The logger that failed writes are reported to.
+	 * @param batchSize The number of queued punishments that triggers a flush.
+	 * @param maxDelay The maximum number of milliseconds a punishment is queued for.
+	 */
+	public PunishmentWriteQueue(DataSource database, String server, Logger logger, int batchSize,
+								long maxDelay)
+	{
+		this.database = database;
+		this.server = server;
+		this.logger = logger;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxDelay = Math.max(0L, maxDelay);
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Punisher Write Queue").setDaemon(true).build());
+		this.pending = new IdentityHashMap<>();
+	}
+
+	/**
+	 * Queues a punishment to be saved.
+	 * <p>
+	 * If the id of the punishment is <code>-1</code>, it is inserted and the object is updated
+	 * with the id auto-generated from the database before the future completes. Otherwise, the
+	 * existing row is updated.
+	 *
+	 * @param punishment The punishment that is saved.
+	 * @return Whether or not the punishment was saved, as a future.
+	 */
+	public synchronized ListenableFuture<Boolean> submit(Punishment punishment)
+	{
+		SettableFuture<Boolean> fut = SettableFuture.create();
+
+		// coalesce with a write of the same punishment that is already queued
+		pending.computeIfAbsent(punishment, PendingWrite::new).futures.add(fut);
+
+		if (pending.size() >= batchSize)
+		{
+			flusher.execute(this::flush);
+		}
+		else if (scheduledFlush == null)
+		{
+			scheduledFlush = flusher.schedule(this::flush, maxDelay, TimeUnit.MILLISECONDS);
+		}
+
+		return fut;
+	}
+
+	/**
+	 * Writes several punishments in one transaction, straight away rather than with the rest of
+	 * the queue, so that either all of them are saved or none is.
+	 * <p>
+	 * New punishments are updated with their generated ids before the future completes.
+	 *
+	 * @param punishments The punishments that are saved.
+	 * @return Whether or not the punishments were saved, as a future.
+	 */
+	public ListenableFuture<Boolean> submitAll(Collection<Punishment> punishments)
+	{
+		SettableFuture<Boolean> fut = SettableFuture.create();
+		List<PendingWrite> batch = new ArrayList<>(punishments.size());
+		punishments.forEach(p -> batch.add(new PendingWrite(p)));
+
+		flusher.execute(() ->
+		{
+			try
+			{
+				write(batch);
+				fut.set(true);
+			}
+			catch (Throwable e)
+			{
+				logger.log(Level.SEVERE, "Could not save batch of " + batch.size() + " punishments",
+						e);
+				fut.set(false);
+			}
+		});
+
+		return fut;
+	}
+
+	/**
+	 * Writes every queued punishment to the database.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 */
+	public void flush()
+	{
+		List<PendingWrite> batch;
+		synchronized (this)
+		{
+			if (scheduledFlush != null)
+			{
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+
+			if (pending.isEmpty())
+			{
+				return;
+			}
+
+			batch = new ArrayList<>(pending.values());
+			pending = new IdentityHashMap<>();
+		}
+
+		try
+		{
+			write(batch);
+			batch.forEach(w -> w.complete(true));
+		}
+		catch (Throwable e)
+		{
+			// anything thrown here would be swallowed by the executor, leaving callers waiting
+			if (batch.size() == 1)
+			{
+				logger.log(Level.SEVERE, "Could not save punishment", e);
+				batch.get(0).complete(false);
+				return;
+			}
+
+			// retry one by one, so that a single bad row doesn't fail everyone else's
+			logger.log(Level.WARNING, "Could not save batch of " + batch.size() + " punishments, " +
+					"retrying individually", e);
+			for (PendingWrite w : batch)
+			{
+				try
+				{
+					write(Collections.singletonList(w));
+					w.complete(true);
+				}
+				catch (Throwable ex)
+				{
+					logger.log(Level.SEVERE, "Could not save punishment", ex);
+					w.complete(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the queue, waiting for any write in progress to finish, then writing anything still
+	 * queued on the calling thread.
+	 */
+	public void shutdown()
+	{
+		flusher.shutdown();
+		try
+		{
+			if (!flusher.awaitTermination(30L, TimeUnit.SECONDS))
+			{
+				logger.warning("Timed out waiting for punishments to be written.");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+	}
+
+	/**
+	 * Writes a batch of punishments in a single transaction.
+	 *
+	 * @param batch The queued writes.
+	 * @throws SQLException If the transaction fails, in which case nothing is written.
+	 */
+	private void write(List<PendingWrite> batch) throws SQLException
+	{
+		List<Punishment> inserts = new ArrayList<>();
+		List<Punishment> updates = new ArrayList<>();
+		for (PendingWrite w : batch)
+		{
+			(w.punishment.getId() == -1 ? inserts : updates).add(w.punishment);
+		}
+
+		int[] ids = new int[inserts.size()];
+
+		try (Connection connection = database.getConnection())
+		{
+			if (connection == null)
+			{
+				throw new SQLException("Could not connect to database.");
+			}
+
+			connection.setAutoCommit(false);
+			try
+			{
+				if (!inserts.isEmpty())
+				{
+					try (PreparedStatement statement = connection.prepareStatement(SAVE_PUNISHMENT,
+							Statement.RETURN_GENERATED_KEYS))
+					{
+						for (Punishment p : inserts)
+						{
+							statement.setString(1, p.getUuid().toString());
+							statement.setString(2, p.getPunishedName());
+							statement.setString(3, p.getType().getId());
+							statement.setString(4, p.getStaffUuid().toString());
+							statement.setString(5, p.getReason());
+							statement.setLong(6, p.getTimePunished());
+							statement.setLong(7, p.getDuration());
+							statement.setBoolean(8, p.isRemoved());
+							statement.addBatch();
+						}
+
+						statement.executeBatch();
+
+						// generated keys come back in the order the rows were added
+						try (ResultSet keys = statement.getGeneratedKeys())
+						{
+							for (int i = 0; i < ids.length; i++)
+							{
+								if (!keys.next())
+								{
+									throw new SQLException("Missing generated id for punishment.");
+								}
+
+								ids[i] = keys.getInt(1);
+							}
+						}
+					}
+				}
+
+				// ranges of new ip bans go alongside, under the generated ids
+				if (inserts.stream().anyMatch(p -> p instanceof IpPunishment))
+				{
+					try (PreparedStatement statement = connection.prepareStatement(SAVE_IP_BAN))
+					{
+						for (int i = 0; i < ids.length; i++)
+						{
+							if (inserts.get(i) instanceof IpPunishment)
+							{
+								AddressRange range = ((IpPunishment) inserts.get(i)).getRange();
+								statement.setInt(1, ids[i]);
+								statement.setBytes(2, range.toBytes());
+								statement.setInt(3, range.getPrefix());
+								statement.addBatch();
+							}
+						}
+
+						statement.executeBatch();
+					}
+				}
+
+				if (!updates.isEmpty())
+				{
+					try (PreparedStatement statement = connection.prepareStatement(UPDATE_PUNISHMENT))
+					{
+						for (Punishment p : updates)
+						{
+							statement.setBoolean(1, p.isRemoved());
+							statement.setInt(2, p.getId());
+							statement.addBatch();
+						}
+
+						statement.executeBatch();
+					}
+				}
+
+				// record every write in the change feed
+				long now = System.currentTimeMillis();
+				try (PreparedStatement statement = connection.prepareStatement(SAVE_CHANGE))
+				{
+					for (int id : ids)
+					{
+						addChange(statement, id, now);
+					}
+
+					for (Punishment p : updates)
+					{
+						addChange(statement, p.getId(), now);
+					}
+
+					statement.executeBatch();
+				}
+
+				connection.commit();
+			}
+			catch (Throwable e)
+			{
+				connection.rollback();
+				throw e;
+			}
+			finally
+			{
+				connection.setAutoCommit(true);
+			}
+		}
+
+		// only hand out ids once they are committed
+		for (int i = 0; i < ids.length; i++)
+		{
+			inserts.get(i).setId(ids[i]);
+		}
+	}
+
+	private void addChange(PreparedStatement statement, int id, long now) throws SQLException
+	{
+		statement.setInt(1, id);
+		statement.setString(2, server);
+		statement.setLong(3, now);
+		statement.addBatch();
+	}
+
+	/**
+	 * A queued write of a punishment, along with the futures of everyone waiting on it.
+	 */
+	private static class PendingWrite
+	{
+		private final Punishment punishment;
+		private final List<SettableFuture<Boolean>> futures;
+
+		private PendingWrite(Punishment punishment)
+		{
+			this.punishment = punishment;
+			this.futures = new ArrayList<>(1);
+		}
+
+		private void complete(boolean result)
+		{
+			futures.forEach(f -> f.set(result));
+		}
+	}
+}
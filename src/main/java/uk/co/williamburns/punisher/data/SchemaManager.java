@@ -0,0 +1,324 @@
+package uk.co.williamburns.punisher.data;
+
+import javax.sql.DataSource;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Creates and migrates the database schema on startup.
+ * <p>
+ * Every change to the schema is a numbered migration, and the <code>punisher_schema</code>
+ * table records which have been applied. On startup, any migrations newer than the latest applied
+ * are run in order, each in its own transaction where MySQL allows. Migrations are written so
+ * that they are safe to run against a table that an operator created by hand, so existing
+ * deployments are brought up to date rather than broken.
+ * <p>
+ * Servers sharing a database take a named lock while migrating, so that only one of them does it.
+ */
+public class SchemaManager
+{
+	private static final String LOCK_NAME = "punisher_schema";
+	private static final int LOCK_TIMEOUT = 30;
+
+	private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS punisher_schema" +
+			" (version INT NOT NULL PRIMARY KEY, description VARCHAR(255) NOT NULL, appliedAt " +
+			"BIGINT NOT NULL) ENGINE=InnoDB";
+
+	private static final String LOAD_VERSION = "SELECT MAX(version) FROM punisher_schema";
+
+	private static final String SAVE_VERSION = "INSERT INTO punisher_schema (version, description, " +
+			"appliedAt) VALUES (?, ?, ?)";
+
+	private static final Migration[] MIGRATIONS = {
+			new Migration(1, "Create punishments table", c -> execute(c,
+					"CREATE TABLE IF NOT EXISTS punishments (" +
+					"id INT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+					"uuid CHAR(36) NOT NULL, " +
+					"punishedName VARCHAR(16) NOT NULL, " +
+					"type VARCHAR(16) NOT NULL, " +
+					"staff CHAR(36) NOT NULL, " +
+					"reason VARCHAR(255) NOT NULL, " +
+					"timePunished BIGINT NOT NULL, " +
+					"duration BIGINT NOT NULL, " +
+					"removed BOOLEAN NOT NULL" +
+					") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4")),
+
+			// history pages are read newest first by player, and InnoDB appends the id to every
+			// secondary index, so this also orders ties by id; its uuid prefix serves plain lookups
+			new Migration(2, "Index punishments by player and time", c -> createIndex(c,
+					"punishments", "idx_uuid_time", "uuid, timePunished")),
+
+			// logins and active-only lookups skip removed punishments within the player's range;
+			// they read every column, so matching rows are still fetched from the table
+			new Migration(3, "Index active punishments by player", c -> createIndex(c,
+					"punishments", "idx_uuid_removed_time", "uuid, removed, timePunished")),
+
+			new Migration(4, "Index punishments by staff member", c -> createIndex(c,
+					"punishments", "idx_staff", "staff")),
+
+			// names of recently punished players are read newest first on startup
+			new Migration(5, "Index punishments by time", c -> createIndex(c,
+					"punishments", "idx_time", "timePunished")),
+
+			// every write is recorded here for other servers sharing the database to pick up; old
+			// changes are pruned by time
+			new Migration(6, "Create punishment change feed", c ->
+			{
+				execute(c, "CREATE TABLE IF NOT EXISTS punishment_changes (" +
+						"seq BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+						"punishmentId INT NOT NULL, " +
+						"server CHAR(36) NOT NULL, " +
+						"changedAt BIGINT NOT NULL" +
+						") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4");
+				createIndex(c, "punishment_changes", "idx_changed_at", "changedAt");
+			}),
+
+			// the range of each ip ban, as 16 bytes with ipv4 mapped into ipv6, and the length of
+			// its prefix in that space
+			new Migration(7, "Create IP bans table", c -> execute(c,
+					"CREATE TABLE IF NOT EXISTS ip_bans (" +
+					"punishmentId INT NOT NULL PRIMARY KEY, " +
+					"address VARBINARY(16) NOT NULL, " +
+					"prefix TINYINT UNSIGNED NOT NULL" +
+					") ENGINE=InnoDB")),
+
+			// every address that each player has logged in from, in the same 16 bytes as ip bans;
+			// recently seen addresses are read on startup
+			new Migration(8, "Create player addresses table", c ->
+			{
+				execute(c, "CREATE TABLE IF NOT EXISTS player_addresses (" +
+						"uuid CHAR(36) NOT NULL, " +
+						"address VARBINARY(16) NOT NULL, " +
+						"lastSeen BIGINT NOT NULL, " +
+						"PRIMARY KEY (uuid, address)" +
+						") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4");
+				createIndex(c, "player_addresses", "idx_last_seen", "lastSeen");
+			}),
+	};
+
+	private final DataSource database;
+	private final Logger logger;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param database The database source.
+	 * @param logger The logger that applied migrations are reported to.
+	 */
+	public SchemaManager(DataSource database, Logger logger)
+	{
+		this.database = database;
+		this.logger = logger;
+	}
+
+	/**
+	 * @return The version of the schema that this version of the plugin expects.
+	 */
+	public static int getLatestVersion()
+	{
+		return MIGRATIONS[MIGRATIONS.length - 1].version;
+	}
+
+	/**
+	 * Brings the schema up to date, applying every migration that hasn't been applied yet.
+	 * <p>
+	 * This operation runs networking on the calling thread, and therefore is not safe to run
+	 * from any active gameplay threads.
+	 *
+	 * @throws SQLException If the schema can't be read or a migration fails. Migrations applied
+	 *                      before the failure stay applied.
+	 */
+	public void migrate() throws SQLException
+	{
+		try (Connection connection = database.getConnection())
+		{
+			if (connection == null)
+			{
+				throw new SQLException("Could not connect to database.");
+			}
+
+			if (!lock(connection))
+			{
+				throw new SQLException("Timed out waiting for another server to migrate the schema.");
+			}
+
+			Throwable failure = null;
+			try
+			{
+				execute(connection, CREATE_VERSION_TABLE);
+
+				int version = loadVersion(connection);
+				if (version > getLatestVersion())
+				{
+					logger.warning("The database schema (version " + version + ") is newer than " +
+							"this version of Punisher expects (version " + getLatestVersion() + ").");
+					return;
+				}
+
+				for (Migration m : MIGRATIONS)
+				{
+					if (m.version > version)
+					{
+						apply(connection, m);
+					}
+				}
+			}
+			catch (Throwable e)
+			{
+				failure = e;
+				throw e;
+			}
+			finally
+			{
+				try
+				{
+					unlock(connection);
+				}
+				catch (SQLException e)
+				{
+					// don't hide why the migration failed
+					if (failure == null)
+					{
+						throw e;
+					}
+
+					failure.addSuppressed(e);
+				}
+			}
+		}
+	}
+
+	private void apply(Connection connection, Migration m) throws SQLException
+	{
+		logger.info("Applying database migration " + m.version + ": " + m.description);
+
+		// MySQL commits DDL implicitly, so this only keeps the version row with data changes
+		connection.setAutoCommit(false);
+		try
+		{
+			m.statements.apply(connection);
+
+			try (PreparedStatement statement = connection.prepareStatement(SAVE_VERSION))
+			{
+				statement.setInt(1, m.version);
+				statement.setString(2, m.description);
+				statement.setLong(3, System.currentTimeMillis());
+				statement.executeUpdate();
+			}
+
+			connection.commit();
+		}
+		catch (SQLException e)
+		{
+			connection.rollback();
+			throw new SQLException("Database migration " + m.version + " failed", e);
+		}
+		finally
+		{
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private static int loadVersion(Connection connection) throws SQLException
+	{
+		try (Statement statement = connection.createStatement();
+			 ResultSet results = statement.executeQuery(LOAD_VERSION))
+		{
+			// MAX of no rows is null, which reads as 0
+			return results.next() ? results.getInt(1) : 0;
+		}
+	}
+
+	private static boolean lock(Connection connection) throws SQLException
+	{
+		try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?)"))
+		{
+			statement.setString(1, LOCK_NAME);
+			statement.setInt(2, LOCK_TIMEOUT);
+			try (ResultSet results = statement.executeQuery())
+			{
+				return results.next() && results.getInt(1) == 1;
+			}
+		}
+	}
+
+	private static void unlock(Connection connection) throws SQLException
+	{
+		try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?)"))
+		{
+			statement.setString(1, LOCK_NAME);
+			statement.executeQuery().close();
+		}
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException
+	{
+		try (Statement statement = connection.createStatement())
+		{
+			statement.execute(sql);
+		}
+	}
+
+	/**
+	 * Creates an index, unless one with the same name exists already.
+	 *
+	 * @param connection The connection to the database.
+	 * @param table The name of the table.
+	 * @param name The name of the index.
+	 * @param columns The columns of the index, comma-separated.
+	 * @throws SQLException If the index can't be created.
+	 */
+	private static void createIndex(Connection connection, String table, String name, String
+			columns) throws SQLException
+	{
+		// read through jdbc metadata rather than information_schema, which not every database has
+		DatabaseMetaData meta = connection.getMetaData();
+		String stored = meta.storesUpperCaseIdentifiers() ? table.toUpperCase(Locale.ROOT) : table;
+		try (ResultSet results = meta.getIndexInfo(connection.getCatalog(), null, stored, false,
+				true))
+		{
+			while (results.next())
+			{
+				if (name.equalsIgnoreCase(results.getString("INDEX_NAME")))
+				{
+					return;
+				}
+			}
+		}
+
+		execute(connection, "CREATE INDEX " + name + " ON " + table + " (" + columns + ")");
+	}
+
+	/**
+	 * The statements of a migration, run on a single connection.
+	 */
+	@FunctionalInterface
+	private interface Statements
+	{
+		void apply(Connection connection) throws SQLException;
+	}
+
+	/**
+	 * A numbered change to the schema.
+	 */
+	private static class Migration
+	{
+		private final int version;
+		private final String description;
+		private final Statements statements;
+
+		private Migration(int version, String description, Statements statements)
+		{
+			this.version = version;
+			this.description = description;
+			this.statements = statements;
+		}
+	}
+}
@@ -1,26 +1,74 @@
 package uk.co.williamburns.punisher.type;
 
+import java.util.concurrent.TimeUnit;
+
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
-import org.joda.time.Duration;
-import org.joda.time.format.PeriodFormat;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import uk.co.williamburns.punisher.api.Punishment;
 import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.api.Restriction;
 import uk.co.williamburns.punisher.util.MessageUtil;
-import uk.co.williamburns.punisher.util.NameFetcher;
+import uk.co.williamburns.punisher.util.MessageUtil.Template;
+import uk.co.williamburns.punisher.util.ProfileCache;
 
 /**
  * A punishment type that will kick a player upon receiving the punishment, and disallow them from
  * joining until the duration of the punishment is completed.
+ * <p>
+ * The ban screen of each saved punishment is filled in once and kept while it is in use, so that a
+ * player reconnecting over and over only costs formatting the time left.
  */
 public class BanType implements PunishmentType
 {
+	private final ProfileCache profiles;
+	private final String id;
+	private final String messages;
+
+	// ban screens with everything but the time remaining filled in, by punishment id; copies of
+	// the same punishment loaded at different times share an entry
+	private final Cache<Integer, Template> screens = CacheBuilder.newBuilder()
+			.expireAfterAccess(30L, TimeUnit.MINUTES)
+			.maximumSize(10000L)
+			.build();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param profiles The profile cache used to resolve player names.
+	 */
+	public BanType(ProfileCache profiles)
+	{
+		this(profiles, "BAN", "ban");
+	}
+
+	/**
+	 * Class constructor for other kinds of ban.
+	 *
+	 * @param profiles The profile cache used to resolve player names.
+	 * @param id The unique identifier of the punishment type.
+	 * @param messages The section of the messages file that the type's messages are read from,
+	 *                 which has the same messages as the <code>ban</code> section.
+	 */
+	protected BanType(ProfileCache profiles, String id, String messages)
+	{
+		this.profiles = profiles;
+		this.id = id;
+		this.messages = messages;
+	}
+
 	@Override
 	public String getId()
 	{
-		return "BAN";
+		return id;
+	}
+
+	@Override
+	public int getRestrictions()
+	{
+		return Restriction.JOIN;
 	}
 
 	@Override
@@ -28,48 +76,37 @@ public class BanType implements PunishmentType
 	{
 		// player may not be online, as staff can punish offline players
 		Player player = Bukkit.getPlayer(punishment.getUuid());
-		String playerName = player != null && player.isOnline() ? player.getName() : NameFetcher.getNameOf(punishment.getUuid());
-
-		boolean permanent = punishment.getTimePunished() < 0;
-		long duration = punishment.getDuration();
+		Player staffPlayer = Bukkit.getPlayer(punishment.getStaffUuid());
 
 		// notify staff member
 		// e.g. SomePlayer was banned for 10 minutes with reason: fly hacking.
-		Player staffPlayer = Bukkit.getPlayer(punishment.getStaffUuid());
-		String staffPeriod = permanent ? ChatColor.YELLOW + "permanently" : "for " +
-				ChatColor.YELLOW + PeriodFormat.getDefault().print(new Duration(duration).toPeriod());
-		staffPlayer.sendMessage(MessageUtil.format(
-				ChatColor.YELLOW + playerName + ChatColor.GRAY + " was banned " + staffPeriod +
-						ChatColor.GRAY + " with reason: " + ChatColor.WHITE + punishment.getReason() +
-						ChatColor.GRAY + "."
-		));
+		if (staffPlayer != null)
+		{
+			boolean permanent = punishment.getDuration() < 0;
+			staffPlayer.sendMessage(MessageUtil.getTemplate(messages + (permanent ?
+					".staff-permanent" : ".staff"))
+					.with("player", punishment.getPunishedName())
+					.with("reason", punishment.getReason())
+					.render("duration", MessageUtil.formatDuration(punishment.getDuration())));
+		}
 
 		if (player != null && player.isOnline())
 		{
-			long remaining = duration - (System.currentTimeMillis() - punishment.getTimePunished());
-			player.kickPlayer(
-					MessageUtil.PREFIX + "\n"
-					+ ChatColor.GRAY + "You have been banned from the server.\n\n"
-					+ "Reason: " + ChatColor.WHITE + punishment.getReason() + "\n"
-					+ ChatColor.GRAY + "Staff Member: " + ChatColor.YELLOW + staffPlayer.getName() + "\n"
-					+ ChatColor.GRAY + "Time Remaining: " + ChatColor.YELLOW + (permanent ?
-							"Forever" : PeriodFormat.getDefault().print(new Duration(remaining).toPeriod()))
-			);
+			player.kickPlayer(kickMessage(punishment, staffPlayer != null ? staffPlayer.getName() :
+					null));
 		}
 	}
 
 	@Override
 	public String onJoin(Punishment punishment)
 	{
-		String time = punishment.getDuration() < 0 ? "Forever" : PeriodFormat.getDefault()
-				.print(new Duration(punishment.getDuration() - (System.currentTimeMillis() -
-						punishment.getTimePunished())).toPeriod());
-
-		return MessageUtil.PREFIX + "\n"
-				+ ChatColor.GRAY + "You are banned from the server.\n\n"
-				+ "Reason: " + ChatColor.WHITE + punishment.getReason() + "\n"
-				+ ChatColor.GRAY + "Staff Member: " + ChatColor.YELLOW + NameFetcher.getNameOf(punishment.getStaffUuid()) + "\n"
-				+ ChatColor.GRAY + "Time Remaining: " + ChatColor.YELLOW + time;
+		// unsaved punishments have no id to keep their screen under
+		Template screen = punishment.getId() < 0 ? screen(punishment) : screens.asMap()
+				.computeIfAbsent(punishment.getId(), id -> screen(punishment));
+
+		// permanent bans are filled in completely, so there's nothing left to format
+		return punishment.getDuration() < 0 ? screen.render() : screen.render("remaining",
+				remaining(punishment));
 	}
 
 	@Override
@@ -78,4 +115,58 @@ public class BanType implements PunishmentType
 		// chat is not affected by bans
 		return true;
 	}
+
+	/**
+	 * Builds the message that a player is kicked with when they are banned while online.
+	 * <p>
+	 * This may resolve the staff member's name, which may ask Mojang, so it is best built off the
+	 * main thread when the staff member isn't online.
+	 *
+	 * @param punishment The ban.
+	 * @param staffName The name of the staff member who issued the ban, or <code>null</code> to
+	 *                  resolve it.
+	 * @return The message.
+	 */
+	protected String kickMessage(Punishment punishment, String staffName)
+	{
+		return fill(MessageUtil.getTemplate(messages + ".kicked"), punishment, staffName != null ?
+				staffName : staffName(punishment)).render("remaining", remaining(punishment));
+	}
+
+	private Template screen(Punishment punishment)
+	{
+		return fill(MessageUtil.getTemplate(messages + ".screen"), punishment, staffName(
+				punishment));
+	}
+
+	private String staffName(Punishment punishment)
+	{
+		String name = profiles.getName(punishment.getStaffUuid());
+		return name == null ? punishment.getStaffUuid().toString() : name;
+	}
+
+	/**
+	 * Fills in the parts of a ban message that don't change over the life of a punishment.
+	 *
+	 * @param template The template of the message.
+	 * @param punishment The punishment.
+	 * @param staffName The name of the staff member who issued the punishment.
+	 * @return The template, with only <code>{remaining}</code> left to fill in unless the
+	 *         punishment is permanent.
+	 */
+	private static Template fill(Template template, Punishment punishment, String staffName)
+	{
+		Template filled = template
+				.with("reason", punishment.getReason())
+				.with("staff", staffName);
+
+		return punishment.getDuration() < 0 ? filled.with("remaining", MessageUtil
+				.getTemplate("permanent").render()) : filled;
+	}
+
+	private static String remaining(Punishment punishment)
+	{
+		return MessageUtil.formatDuration(punishment.getDuration() - (System.currentTimeMillis() -
+				punishment.getTimePunished()));
+	}
 }
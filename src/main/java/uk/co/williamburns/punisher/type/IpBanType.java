@@ -0,0 +1,72 @@
+package uk.co.williamburns.punisher.type;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import uk.co.williamburns.punisher.api.Punishment;
+import uk.co.williamburns.punisher.base.IpPunishment;
+import uk.co.williamburns.punisher.util.AddressRange;
+import uk.co.williamburns.punisher.util.MessageUtil;
+import uk.co.williamburns.punisher.util.ProfileCache;
+
+/**
+ * A punishment type that bans a range of IP addresses, kicking everyone connected from the range
+ * and disallowing anyone from joining from it until the duration of the punishment is completed.
+ * <p>
+ * Logins are checked against the range by the manager's IP ban index. If the ban was issued
+ * against a player, that player's account is banned too, wherever they connect from.
+ */
+public class IpBanType extends BanType
+{
+	/**
+	 * Class constructor.
+	 *
+	 * @param profiles The profile cache used to resolve player names.
+	 */
+	public IpBanType(ProfileCache profiles)
+	{
+		super(profiles, "IPBAN", "ipban");
+	}
+
+	@Override
+	public void onPunish(Punishment punishment)
+	{
+		if (!(punishment instanceof IpPunishment))
+		{
+			// only ever the case for copies loaded without their range
+			super.onPunish(punishment);
+			return;
+		}
+
+		AddressRange range = ((IpPunishment) punishment).getRange();
+		Player staffPlayer = Bukkit.getPlayer(punishment.getStaffUuid());
+
+		// notify staff member
+		// e.g. 10.0.0.0/8 was IP banned for 10 minutes with reason: ban evasion.
+		if (staffPlayer != null)
+		{
+			boolean permanent = punishment.getDuration() < 0;
+			staffPlayer.sendMessage(MessageUtil.getTemplate(permanent ? "ipban.staff-permanent" :
+					"ipban.staff")
+					.with("range", range.toString())
+					.with("reason", punishment.getReason())
+					.render("duration", MessageUtil.formatDuration(punishment.getDuration())));
+		}
+
+		// kick everyone connected from the range, and the player it was taken from
+		String message = null;
+		for (Player player : Bukkit.getOnlinePlayers())
+		{
+			if (((IpPunishment) punishment).appliesTo(player))
+			{
+				if (message == null)
+				{
+					message = kickMessage(punishment, staffPlayer != null ? staffPlayer.getName() :
+							null);
+				}
+
+				player.kickPlayer(message);
+			}
+		}
+	}
+}
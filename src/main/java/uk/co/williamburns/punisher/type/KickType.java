@@ -1,11 +1,11 @@
 package uk.co.williamburns.punisher.type;
 
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
 import uk.co.williamburns.punisher.api.Punishment;
 import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.api.Restriction;
 import uk.co.williamburns.punisher.util.MessageUtil;
 
 /**
@@ -19,6 +19,12 @@ public class KickType implements PunishmentType
 		return "KICK";
 	}
 
+	@Override
+	public int getRestrictions()
+	{
+		return Restriction.NONE;
+	}
+
 	@Override
 	public void onPunish(Punishment punishment)
 	{
@@ -27,20 +33,14 @@ public class KickType implements PunishmentType
 
 		// notify staff member
 		Player staff = Bukkit.getPlayer(punishment.getStaffUuid());
-		staff.sendMessage(MessageUtil.format(
-				ChatColor.YELLOW + player.getName()
-				+ ChatColor.GRAY + " was kicked with reason: "
-				+ ChatColor.WHITE + punishment.getReason()
-				+ ChatColor.GRAY + "."
-		));
+		staff.sendMessage(MessageUtil.getTemplate("kick.staff")
+				.with("player", player.getName())
+				.render("reason", punishment.getReason()));
 
 		// kick
-		player.kickPlayer(
-				MessageUtil.PREFIX + "\n"
-				+ ChatColor.GRAY + "You have been kicked from the server.\n\n"
-				+ "Reason: " + ChatColor.WHITE + punishment.getReason() + "\n"
-				+ ChatColor.GRAY + "Staff Member: " + ChatColor.YELLOW + staff.getName()
-		);
+		player.kickPlayer(MessageUtil.getTemplate("kick.screen")
+				.with("reason", punishment.getReason())
+				.render("staff", staff.getName()));
 	}
 
 	@Override
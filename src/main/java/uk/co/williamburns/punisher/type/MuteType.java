@@ -1,58 +1,93 @@
 package uk.co.williamburns.punisher.type;
 
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
-import org.joda.time.Duration;
-import org.joda.time.format.PeriodFormat;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import uk.co.williamburns.punisher.api.Punishment;
 import uk.co.williamburns.punisher.api.PunishmentType;
+import uk.co.williamburns.punisher.api.Restriction;
 import uk.co.williamburns.punisher.util.MessageUtil;
-import uk.co.williamburns.punisher.util.NameFetcher;
+import uk.co.williamburns.punisher.util.MessageUtil.Template;
+import uk.co.williamburns.punisher.util.ProfileCache;
 
 /**
  * A punishment type that stops the player from chatting.
+ * <p>
+ * Chat is checked on the chat thread, so enforcing a mute never blocks. The notice shown to a
+ * muted player is filled in ahead of time, when the mute is loaded, and shown at most once per
+ * cooldown however fast they type.
  */
 public class MuteType implements PunishmentType
 {
+	private final ProfileCache profiles;
+
+	// chat notices with everything but the time remaining filled in, by punishment id; copies of
+	// the same punishment loaded at different times share an entry
+	private final Cache<Integer, Template> notices = CacheBuilder.newBuilder()
+			.expireAfterAccess(30L, TimeUnit.MINUTES)
+			.maximumSize(10000L)
+			.build();
+
+	// players shown a notice within the cooldown; null if there is no cooldown
+	private final Cache<UUID, Boolean> noticed;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param profiles The profile cache used to resolve player names.
+	 * @param noticeCooldown The number of milliseconds after a muted player is told that they are
+	 *                       muted before they are told again. <code>0</code> to tell them every
+	 *                       time.
+	 */
+	public MuteType(ProfileCache profiles, long noticeCooldown)
+	{
+		this.profiles = profiles;
+		this.noticed = noticeCooldown <= 0L ? null : CacheBuilder.newBuilder()
+				.expireAfterWrite(noticeCooldown, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
 	@Override
 	public String getId()
 	{
 		return "MUTE";
 	}
 
+	@Override
+	public int getRestrictions()
+	{
+		return Restriction.CHAT;
+	}
+
 	@Override
 	public void onPunish(Punishment punishment)
 	{
 		// player may not be online, as staff can punish offline players
 		Player player = Bukkit.getPlayer(punishment.getUuid());
-		String playerName = player != null && player.isOnline() ? player.getName() : NameFetcher.getNameOf(punishment.getUuid());
-
-		boolean permanent = punishment.getTimePunished() < 0;
-		long duration = punishment.getDuration();
+		boolean permanent = punishment.getDuration() < 0;
 
 		// notify staff member
 		// e.g. SomePlayer was muted for 10 minutes with reason: fly hacking.
 		Player staffPlayer = Bukkit.getPlayer(punishment.getStaffUuid());
-		String staffPeriod = permanent ? ChatColor.YELLOW + "permanently" : "for " +
-				ChatColor.YELLOW + PeriodFormat.getDefault().print(new Duration(duration).toPeriod());
-		staffPlayer.sendMessage(MessageUtil.format(
-				ChatColor.YELLOW + playerName + ChatColor.GRAY + " was muted " + staffPeriod +
-						ChatColor.GRAY + " with reason: " + ChatColor.WHITE + punishment.getReason() +
-						ChatColor.GRAY + "."
-		));
+		if (staffPlayer != null)
+		{
+			staffPlayer.sendMessage(MessageUtil.getTemplate(permanent ? "mute.staff-permanent" :
+					"mute.staff")
+					.with("player", punishment.getPunishedName())
+					.with("reason", punishment.getReason())
+					.render("duration", MessageUtil.formatDuration(punishment.getDuration())));
+		}
 
 		if (player != null && player.isOnline())
 		{
-			long remaining = duration - (System.currentTimeMillis() - punishment.getTimePunished());
-			player.sendMessage(MessageUtil.format(
-					"You have been muted for " + ChatColor.YELLOW
-					+ PeriodFormat.getDefault().print(new Duration(remaining).toPeriod())
-					+ ChatColor.GRAY + " with reason: "
-					+ ChatColor.WHITE + punishment.getReason()
-					+ ChatColor.GRAY + "."
-			));
+			player.sendMessage(MessageUtil.getTemplate("mute.muted")
+					.with("reason", punishment.getReason())
+					.render("remaining", remaining(punishment)));
 		}
 	}
 
@@ -63,20 +98,82 @@ public class MuteType implements PunishmentType
 		return null;
 	}
 
+	@Override
+	public void onLoad(Punishment punishment)
+	{
+		// resolving the staff member may ask mojang, which is fine in the background
+		if (punishment.getId() >= 0)
+		{
+			String staffName = profiles.getName(punishment.getStaffUuid());
+			notices.put(punishment.getId(), notice(punishment, staffName));
+		}
+	}
+
 	@Override
 	public boolean onChat(Punishment punishment)
 	{
-		String time = punishment.getDuration() < 0 ? "Forever" : PeriodFormat.getDefault()
-				.print(new Duration(punishment.getDuration() - (System.currentTimeMillis() -
-						punishment.getTimePunished())).toPeriod());
+		Player player = Bukkit.getPlayer(punishment.getUuid());
+		return player != null && onChat(punishment, player);
+	}
+
+	@Override
+	public boolean onChat(Punishment punishment, Player player)
+	{
+		if (noticed != null)
+		{
+			if (noticed.getIfPresent(player.getUniqueId()) != null)
+			{
+				// told recently; just block the message
+				return false;
+			}
 
-		Bukkit.getPlayer(punishment.getUuid()).sendMessage(MessageUtil.format(
-				"You are muted by " + ChatColor.YELLOW + NameFetcher.getNameOf(punishment.getStaffUuid())
-				+ ChatColor.GRAY + " for " + ChatColor.YELLOW + time
-				+ ChatColor.GRAY + " with reason: " + ChatColor.WHITE + punishment.getReason()
-				+ ChatColor.GRAY + "."
-		));
+			noticed.put(player.getUniqueId(), Boolean.TRUE);
+		}
+
+		// only falls back to memory if the notice wasn't prepared in time
+		Template notice = punishment.getId() < 0 ? notice(punishment) : notices.asMap()
+				.computeIfAbsent(punishment.getId(), id -> notice(punishment));
+
+		player.sendMessage(punishment.getDuration() < 0 ? notice.render() : notice.render(
+				"remaining", remaining(punishment)));
 
 		return false;
 	}
+
+	private Template notice(Punishment punishment)
+	{
+		// only names already in memory, as this is on the chat thread
+		return notice(punishment, profiles.getCachedName(punishment.getStaffUuid()));
+	}
+
+	/**
+	 * Fills in the parts of a chat notice that don't change over the life of a punishment.
+	 *
+	 * @param punishment The punishment.
+	 * @param staffName The name of the staff member who issued the punishment, or
+	 *                  <code>null</code> if it isn't known.
+	 * @return The notice, with only <code>{remaining}</code> left to fill in unless the
+	 *         punishment is permanent.
+	 */
+	private static Template notice(Punishment punishment, String staffName)
+	{
+		Template filled = MessageUtil.getTemplate("mute.chat")
+				.with("reason", punishment.getReason())
+				.with("staff", staffName == null ? punishment.getStaffUuid().toString() :
+						staffName);
+
+		return punishment.getDuration() < 0 ? filled.with("remaining", MessageUtil.getTemplate(
+				"permanent").render()) : filled;
+	}
+
+	private static String remaining(Punishment punishment)
+	{
+		if (punishment.getDuration() < 0)
+		{
+			return MessageUtil.getTemplate("permanent").render();
+		}
+
+		return MessageUtil.formatDuration(punishment.getDuration() - (System.currentTimeMillis() -
+				punishment.getTimePunished()));
+	}
 }
@@ -0,0 +1,266 @@
+package uk.co.williamburns.punisher.util;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import com.google.common.net.InetAddresses;
+
+/**
+ * An immutable range of IP addresses, written in CIDR notation such as <code>10.0.0.0/8</code>
+ * or <code>2001:db8::/32</code>.
+ * <p>
+ * IPv4 and IPv6 addresses share one 128-bit space, with IPv4 addresses mapped into
+ * <code>::ffff:0:0/96</code>, so that a single index can hold both. The bits of a range after
+ * its prefix are always zero.
+ */
+public final class AddressRange
+{
+	private static final int BITS = 128;
+	private static final int IPV4_OFFSET = 96;
+	private static final long IPV4_MAPPED = 0xFFFFL << 32;
+
+	private final long high;
+	private final long low;
+	private final int prefix;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param high The first 64 bits of the address, in the shared 128-bit space.
+	 * @param low The last 64 bits of the address.
+	 * @param prefix The number of leading bits that addresses in the range share, from
+	 *               <code>0</code> to <code>128</code>.
+	 */
+	public AddressRange(long high, long low, int prefix)
+	{
+		if (prefix < 0 || prefix > BITS)
+		{
+			throw new IllegalArgumentException("Invalid prefix length " + prefix);
+		}
+
+		this.high = high & mask(prefix);
+		this.low = low & mask(prefix - 64);
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Parses a range in CIDR notation, or a single address. An IPv4 prefix length counts the
+	 * bits of the IPv4 address, as usual.
+	 * <p>
+	 * Only address literals are accepted, so this never looks up a host name.
+	 *
+	 * @param text The range, such as <code>192.168.0.0/16</code>.
+	 * @return The range.
+	 * @throws IllegalArgumentException If the text isn't a valid address or range.
+	 */
+	public static AddressRange parse(String text)
+	{
+		int slash = text.indexOf('/');
+		InetAddress address = InetAddresses.forString(slash < 0 ? text : text.substring(0, slash));
+		boolean ipv4 = address instanceof Inet4Address;
+
+		int prefix = ipv4 ? 32 : BITS;
+		if (slash >= 0)
+		{
+			try
+			{
+				prefix = Integer.parseInt(text.substring(slash + 1));
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid prefix length in " + text);
+			}
+
+			if (prefix < 0 || prefix > (ipv4 ? 32 : BITS))
+			{
+				throw new IllegalArgumentException("Invalid prefix length in " + text);
+			}
+		}
+
+		return of(address.getAddress(), ipv4 ? prefix + IPV4_OFFSET : prefix);
+	}
+
+	/**
+	 * Creates a range of a single address.
+	 *
+	 * @param address The address.
+	 * @return The range, containing only that address.
+	 */
+	public static AddressRange of(InetAddress address)
+	{
+		return of(address.getAddress(), BITS);
+	}
+
+	/**
+	 * Creates a range from the raw bytes of an address.
+	 *
+	 * @param address The 4 bytes of an IPv4 address, or the 16 bytes of an address in the
+	 *                shared space.
+	 * @param prefix The length of the prefix, in the shared 128-bit space.
+	 * @return The range.
+	 */
+	public static AddressRange of(byte[] address, int prefix)
+	{
+		return new AddressRange(high(address), low(address), prefix);
+	}
+
+	/**
+	 * Reads the first 64 bits of an address in the shared space.
+	 *
+	 * @param address The 4 bytes of an IPv4 address, or the 16 bytes of an IPv6 address.
+	 * @return The bits.
+	 */
+	public static long high(byte[] address)
+	{
+		return address.length == 4 ? 0L : read(address, 0);
+	}
+
+	/**
+	 * Reads the last 64 bits of an address in the shared space.
+	 *
+	 * @param address The 4 bytes of an IPv4 address, or the 16 bytes of an IPv6 address.
+	 * @return The bits.
+	 */
+	public static long low(byte[] address)
+	{
+		if (address.length == 4)
+		{
+			return IPV4_MAPPED | (read(address, 0) >>> 32);
+		}
+
+		return read(address, 8);
+	}
+
+	/**
+	 * @return The first 64 bits of the first address in the range.
+	 */
+	public long getHigh()
+	{
+		return high;
+	}
+
+	/**
+	 * @return The last 64 bits of the first address in the range.
+	 */
+	public long getLow()
+	{
+		return low;
+	}
+
+	/**
+	 * @return The number of leading bits that addresses in the range share, in the shared
+	 *         128-bit space.
+	 */
+	public int getPrefix()
+	{
+		return prefix;
+	}
+
+	/**
+	 * Checks whether the range contains an address.
+	 *
+	 * @param high The first 64 bits of the address, in the shared space.
+	 * @param low The last 64 bits of the address.
+	 * @return Whether or not the address is in the range.
+	 */
+	public boolean contains(long high, long low)
+	{
+		return (high & mask(prefix)) == this.high && (low & mask(prefix - 64)) == this.low;
+	}
+
+	/**
+	 * @return The first address of the range as 16 bytes, as it is stored.
+	 */
+	public byte[] toBytes()
+	{
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < 8; i++)
+		{
+			bytes[i] = (byte) (high >>> (56 - i * 8));
+			bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Builds a mask of the leading bits of a 64-bit half of an address.
+	 *
+	 * @param bits The number of leading bits set. Anything below <code>0</code> is no bits, and
+	 *             anything above <code>64</code> is every bit.
+	 * @return The mask.
+	 */
+	static long mask(int bits)
+	{
+		if (bits <= 0)
+		{
+			return 0L;
+		}
+
+		return bits >= 64 ? -1L : -1L << (64 - bits);
+	}
+
+	private static long read(byte[] bytes, int offset)
+	{
+		long value = 0L;
+		for (int i = 0; i < 8; i++)
+		{
+			value <<= 8;
+			value |= offset + i < bytes.length ? bytes[offset + i] & 0xFFL : 0L;
+		}
+
+		return value;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{
+			return true;
+		}
+
+		if (!(o instanceof AddressRange))
+		{
+			return false;
+		}
+
+		AddressRange other = (AddressRange) o;
+		return high == other.high && low == other.low && prefix == other.prefix;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int) (31L * (31L * Long.hashCode(high) + Long.hashCode(low)) + prefix);
+	}
+
+	/**
+	 * @return The range in CIDR notation, written as IPv4 if it is within the IPv4 space. Single
+	 *         addresses are written without a prefix length.
+	 */
+	@Override
+	public String toString()
+	{
+		if (high == 0L && (low >>> 32) == 0xFFFFL && prefix >= IPV4_OFFSET)
+		{
+			String address = (low >>> 24 & 0xFF) + "." + (low >>> 16 & 0xFF) + "." + (low >>> 8 &
+					0xFF) + "." + (low & 0xFF);
+			return prefix == BITS ? address : address + "/" + (prefix - IPV4_OFFSET);
+		}
+
+		String address;
+		try
+		{
+			address = InetAddresses.toAddrString(InetAddress.getByAddress(toBytes()));
+		}
+		catch (UnknownHostException e)
+		{
+			// only thrown for addresses of the wrong length
+			throw new IllegalStateException(e);
+		}
+
+		return prefix == BITS ? address : address + "/" + prefix;
+	}
+}
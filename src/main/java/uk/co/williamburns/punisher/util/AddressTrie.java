@@ -0,0 +1,274 @@
+package uk.co.williamburns.punisher.util;
+
+import java.util.function.Predicate;
+
+/**
+ * A map of address ranges to values, held in a compressed binary radix trie (a PATRICIA trie)
+ * over the shared 128-bit address space of {@link AddressRange}.
+ * <p>
+ * Each node holds a whole run of bits, so the trie has at most two nodes per range, and finding
+ * the ranges that contain an address visits at most one node per bit of the address whatever
+ * the number of ranges. Lookups don't allocate.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @param <V> The type of the values.
+ */
+public class AddressTrie<V>
+{
+	private Node<V> root;
+	private int size;
+
+	/**
+	 * Maps a range to a value, replacing any value it was mapped to before.
+	 *
+	 * @param range The range.
+	 * @param value The value.
+	 * @return The value that was replaced, or <code>null</code> if there was none.
+	 */
+	public V put(AddressRange range, V value)
+	{
+		long high = range.getHigh();
+		long low = range.getLow();
+		int prefix = range.getPrefix();
+
+		Node<V> parent = null;
+		Node<V> node = root;
+		while (node != null)
+		{
+			int common = commonPrefix(high, low, node.high, node.low, Math.min(prefix, node.prefix));
+			if (common < node.prefix)
+			{
+				// the range branches off part way through this node, so split it
+				Node<V> split;
+				if (common == prefix)
+				{
+					split = new Node<>(high, low, prefix, value);
+				}
+				else
+				{
+					split = new Node<>(high, low, common, null);
+					split.setChild(bit(high, low, common), new Node<>(high, low, prefix, value));
+				}
+
+				split.setChild(bit(node.high, node.low, common), node);
+				replace(parent, node, split);
+				size++;
+				return null;
+			}
+
+			if (node.prefix == prefix)
+			{
+				V previous = node.value;
+				node.value = value;
+				if (previous == null)
+				{
+					size++;
+				}
+				return previous;
+			}
+
+			parent = node;
+			node = node.child(bit(high, low, node.prefix));
+		}
+
+		Node<V> leaf = new Node<>(high, low, prefix, value);
+		if (parent == null)
+		{
+			root = leaf;
+		}
+		else
+		{
+			parent.setChild(bit(high, low, parent.prefix), leaf);
+		}
+
+		size++;
+		return null;
+	}
+
+	/**
+	 * Unmaps a range, if it is mapped to the given value.
+	 *
+	 * @param range The range.
+	 * @param value The value the range must be mapped to, compared by identity.
+	 * @return Whether or not the range was unmapped.
+	 */
+	public boolean remove(AddressRange range, V value)
+	{
+		long high = range.getHigh();
+		long low = range.getLow();
+		int prefix = range.getPrefix();
+
+		Node<V> grandparent = null;
+		Node<V> parent = null;
+		Node<V> node = root;
+		while (node != null && node.prefix <= prefix)
+		{
+			if (commonPrefix(high, low, node.high, node.low, node.prefix) < node.prefix)
+			{
+				return false;
+			}
+
+			if (node.prefix == prefix)
+			{
+				if (node.value != value)
+				{
+					return false;
+				}
+
+				node.value = null;
+				size--;
+
+				// keep the trie compressed: nodes without values need two children
+				prune(parent, node);
+				if (parent != null && parent.value == null)
+				{
+					prune(grandparent, parent);
+				}
+				return true;
+			}
+
+			grandparent = parent;
+			parent = node;
+			node = node.child(bit(high, low, node.prefix));
+		}
+
+		return false;
+	}
+
+	/**
+	 * Finds the most specific range containing an address whose value is accepted.
+	 *
+	 * @param high The first 64 bits of the address, in the shared space.
+	 * @param low The last 64 bits of the address.
+	 * @param filter Tests the value of each range containing the address, from the least
+	 *               specific to the most.
+	 * @return The value of the longest accepted range, or <code>null</code> if there is none.
+	 */
+	public V find(long high, long low, Predicate<? super V> filter)
+	{
+		V found = null;
+		Node<V> node = root;
+		while (node != null && commonPrefix(high, low, node.high, node.low, node.prefix) ==
+				node.prefix)
+		{
+			if (node.value != null && filter.test(node.value))
+			{
+				found = node.value;
+			}
+
+			if (node.prefix == 128)
+			{
+				break;
+			}
+
+			node = node.child(bit(high, low, node.prefix));
+		}
+
+		return found;
+	}
+
+	/**
+	 * @return The number of ranges mapped.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Removes a node without a value, if it has fewer than two children.
+	 */
+	private void prune(Node<V> parent, Node<V> node)
+	{
+		if (node.zero != null && node.one != null)
+		{
+			return;
+		}
+
+		replace(parent, node, node.zero != null ? node.zero : node.one);
+	}
+
+	private void replace(Node<V> parent, Node<V> node, Node<V> replacement)
+	{
+		if (parent == null)
+		{
+			root = replacement;
+		}
+		else if (parent.zero == node)
+		{
+			parent.zero = replacement;
+		}
+		else
+		{
+			parent.one = replacement;
+		}
+	}
+
+	/**
+	 * Reads a bit of an address.
+	 *
+	 * @param index The index of the bit, from <code>0</code> (the most significant) to
+	 *              <code>127</code>.
+	 */
+	private static int bit(long high, long low, int index)
+	{
+		return (int) (index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1;
+	}
+
+	/**
+	 * Counts the leading bits that two addresses share.
+	 *
+	 * @param max The most bits to count.
+	 */
+	private static int commonPrefix(long high1, long low1, long high2, long low2, int max)
+	{
+		long diff = high1 ^ high2;
+		if (diff != 0L)
+		{
+			return Math.min(Long.numberOfLeadingZeros(diff), max);
+		}
+
+		diff = low1 ^ low2;
+		return diff == 0L ? max : Math.min(64 + Long.numberOfLeadingZeros(diff), max);
+	}
+
+	/**
+	 * A run of bits shared by every range below it, and the value of the range that ends here,
+	 * if any. Only the bits before the prefix length are meaningful.
+	 */
+	private static class Node<V>
+	{
+		private final long high;
+		private final long low;
+		private final int prefix;
+		private V value;
+		private Node<V> zero;
+		private Node<V> one;
+
+		private Node(long high, long low, int prefix, V value)
+		{
+			this.high = high;
+			this.low = low;
+			this.prefix = prefix;
+			this.value = value;
+		}
+
+		private Node<V> child(int bit)
+		{
+			return bit == 0 ? zero : one;
+		}
+
+		private void setChild(int bit, Node<V> child)
+		{
+			if (bit == 0)
+			{
+				zero = child;
+			}
+			else
+			{
+				one = child;
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 
 import org.apache.commons.dbcp2.BasicDataSource;
+import uk.co.williamburns.punisher.util.data.InstrumentedDataSource;
 
 /**
  * A set of utility methods for database handling.
@@ -16,11 +17,14 @@ public class DatabaseUtil
 	/**
 	 * Generates a {@link DataSource} using configuration details from the config.yml file in
 	 * this plugin's data folder.
+	 * <p>
+	 * The <code>database.pool</code> section sizes the connection pool, and sets how
+	 * connections are validated, evicted and timed out.
 	 *
 	 * @param config The config from the plugin.
-	 * @return A DBCP DataSource generated with Apache's utility.
+	 * @return A DBCP DataSource generated with Apache's utility, wrapped to record pool stats.
 	 */
-	public static DataSource generateDataSource(FileConfiguration config)
+	public static InstrumentedDataSource generateDataSource(FileConfiguration config)
 	{
 		ConfigurationSection cs = config.getConfigurationSection("database");
 		BasicDataSource bds = new BasicDataSource();
@@ -32,7 +36,43 @@ public class DatabaseUtil
 		bds.setUsername(cs.getString("username"));
 		bds.setPassword(cs.getString("password"));
 
-		return bds;
+		ConfigurationSection pool = cs.getConfigurationSection("pool");
+
+		// sizing
+		bds.setInitialSize(pool.getInt("initial-size", 2));
+		bds.setMinIdle(pool.getInt("min-idle", 2));
+		bds.setMaxIdle(pool.getInt("max-idle", 8));
+		bds.setMaxTotal(pool.getInt("max-total", 16));
+		bds.setMaxWaitMillis(pool.getLong("max-wait-ms", 2000L));
+
+		// validation
+		bds.setValidationQuery(pool.getString("validation-query", "SELECT 1"));
+		bds.setValidationQueryTimeout(pool.getInt("validation-timeout-seconds", 2));
+		bds.setTestOnBorrow(pool.getBoolean("test-on-borrow", true));
+		bds.setTestWhileIdle(pool.getBoolean("test-while-idle", true));
+
+		// eviction of idle connections
+		bds.setTimeBetweenEvictionRunsMillis(pool.getLong("eviction-interval-ms", 30000L));
+		bds.setMinEvictableIdleTimeMillis(pool.getLong("min-evictable-idle-ms", 300000L));
+		bds.setMaxConnLifetimeMillis(pool.getLong("max-lifetime-ms", 1800000L));
+
+		// reclaiming connections that were never returned; off by default, since the pool only
+		// counts executing a statement as use, not reading its rows, and the startup loads stream
+		// the whole table through one statement
+		boolean removeAbandoned = pool.getBoolean("remove-abandoned", false);
+		bds.setRemoveAbandonedOnBorrow(removeAbandoned);
+		bds.setRemoveAbandonedOnMaintenance(removeAbandoned);
+		bds.setRemoveAbandonedTimeout(pool.getInt("remove-abandoned-timeout-seconds", 1800));
+		bds.setLogAbandoned(removeAbandoned);
+
+		// driver timeouts; batched statements are rewritten into multi-row inserts, and queries with
+		// a fetch size read through a server-side cursor
+		bds.addConnectionProperty("connectTimeout", String.valueOf(pool.getInt("connect-timeout-ms", 3000)));
+		bds.addConnectionProperty("socketTimeout", String.valueOf(pool.getInt("socket-timeout-ms", 10000)));
+		bds.addConnectionProperty("rewriteBatchedStatements", "true");
+		bds.addConnectionProperty("useCursorFetch", "true");
+
+		return new InstrumentedDataSource(bds);
 	}
 
 }
@@ -0,0 +1,209 @@
+package uk.co.williamburns.punisher.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive <code>int</code> keys to objects, using open addressing with linear
+ * probing.
+ * <p>
+ * Unlike a <code>HashMap&lt;Integer, V&gt;</code>, keys are never boxed and there are no entry
+ * objects, so lookups don't allocate. <code>null</code> values are not permitted.
+ * <p>
+ * This class is not thread safe; callers must synchronise access themselves.
+ *
+ * @param <V> The type of the values.
+ */
+public class IntObjectMap<V>
+{
+	private static final int MIN_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.5F;
+
+	private int[] keys;
+	private Object[] values; // a null value marks an empty slot
+	private int size;
+	private int mask;
+	private int threshold;
+
+	/**
+	 * Class constructor.
+	 */
+	public IntObjectMap()
+	{
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param key The key.
+	 * @return The value mapped to the key, or <code>null</code> if none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask)
+		{
+			if (keys[i] == key)
+			{
+				return (V) values[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any existing value.
+	 *
+	 * @param key The key.
+	 * @param value The value; must not be <code>null</code>.
+	 * @return The previous value mapped to the key, or <code>null</code> if none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (value == null)
+		{
+			throw new NullPointerException("value");
+		}
+
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask)
+		{
+			if (keys[i] == key)
+			{
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		if (++size > threshold)
+		{
+			rehash(keys.length << 1);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes the mapping for a key.
+	 *
+	 * @param key The key.
+	 * @return The value that was mapped to the key, or <code>null</code> if none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask)
+		{
+			if (keys[i] == key)
+			{
+				V previous = (V) values[i];
+				delete(i);
+				return previous;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes the mapping for a key, only if it is currently mapped to the supplied value.
+	 *
+	 * @param key The key.
+	 * @param value The value expected to be mapped to the key, compared by identity.
+	 * @return Whether or not the mapping was removed.
+	 */
+	public boolean remove(int key, V value)
+	{
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask)
+		{
+			if (keys[i] == key)
+			{
+				if (values[i] != value)
+				{
+					return false;
+				}
+
+				delete(i);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The number of mappings.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Removes every mapping.
+	 */
+	public void clear()
+	{
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private int slot(int key)
+	{
+		// spread the bits, as ids are often sequential
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void delete(int i)
+	{
+		// shift following entries back so that probe chains stay unbroken
+		int gap = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask)
+		{
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask))
+			{
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+
+		values[gap] = null;
+		size--;
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void rehash(int capacity)
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] != null)
+			{
+				int j = slot(oldKeys[i]);
+				while (values[j] != null)
+				{
+					j = (j + 1) & mask;
+				}
+
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
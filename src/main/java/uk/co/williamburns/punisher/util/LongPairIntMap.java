@@ -0,0 +1,141 @@
+package uk.co.williamburns.punisher.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map of 128-bit keys, given as two <code>long</code>s, to non-negative <code>int</code>
+ * values, such as UUIDs or addresses to ids.
+ * <p>
+ * Keys and values are held in flat primitive arrays with open addressing, so an entry costs
+ * around 30 bytes rather than the hundred or so of a {@link java.util.HashMap} entry with its
+ * boxed key and value, and lookups don't allocate. Entries can't be removed.
+ * <p>
+ * This class is not thread safe.
+ */
+public class LongPairIntMap
+{
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys; // two per slot
+	private int[] values; // -1 where the slot is empty
+	private int size;
+
+	/**
+	 * Class constructor.
+	 */
+	public LongPairIntMap()
+	{
+		this.keys = new long[MIN_CAPACITY * 2];
+		this.values = new int[MIN_CAPACITY];
+		Arrays.fill(values, -1);
+	}
+
+	/**
+	 * Retrieves the value of a key.
+	 *
+	 * @param high The first half of the key.
+	 * @param low The second half of the key.
+	 * @return The value, or <code>-1</code> if the key isn't mapped.
+	 */
+	public int get(long high, long low)
+	{
+		int mask = values.length - 1;
+		for (int slot = hash(high, low) & mask; values[slot] >= 0; slot = (slot + 1) & mask)
+		{
+			if (keys[slot * 2] == high && keys[slot * 2 + 1] == low)
+			{
+				return values[slot];
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any value it was mapped to before.
+	 *
+	 * @param high The first half of the key.
+	 * @param low The second half of the key.
+	 * @param value The value, which must not be negative.
+	 */
+	public void put(long high, long low, int value)
+	{
+		if (value < 0)
+		{
+			throw new IllegalArgumentException("Values must not be negative");
+		}
+
+		// keep at most two thirds of the slots full, so that probes stay short
+		if ((size + 1) * 3 > values.length * 2)
+		{
+			resize(values.length * 2);
+		}
+
+		int mask = values.length - 1;
+		int slot = hash(high, low) & mask;
+		while (values[slot] >= 0)
+		{
+			if (keys[slot * 2] == high && keys[slot * 2 + 1] == low)
+			{
+				values[slot] = value;
+				return;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot * 2] = high;
+		keys[slot * 2 + 1] = low;
+		values[slot] = value;
+		size++;
+	}
+
+	/**
+	 * @return The number of keys mapped.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+
+		keys = new long[capacity * 2];
+		values = new int[capacity];
+		Arrays.fill(values, -1);
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++)
+		{
+			if (oldValues[i] < 0)
+			{
+				continue;
+			}
+
+			int slot = hash(oldKeys[i * 2], oldKeys[i * 2 + 1]) & mask;
+			while (values[slot] >= 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			keys[slot * 2] = oldKeys[i * 2];
+			keys[slot * 2 + 1] = oldKeys[i * 2 + 1];
+			values[slot] = oldValues[i];
+		}
+	}
+
+	private static int hash(long high, long low)
+	{
+		// murmur3's finaliser, so that keys differing only in a few bits spread out
+		long h = high * 0x9E3779B97F4A7C15L ^ low;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+}
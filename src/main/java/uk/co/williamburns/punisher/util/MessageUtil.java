@@ -1,12 +1,29 @@
 package uk.co.williamburns.punisher.util;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.bukkit.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
 
 /**
  * A set of utility methods for displaying messages.
  * <p>
  * As a general standard for each message, the body content should be gray, and any elements
  * highlighted in yellow or white.
+ * <p>
+ * Longer messages, such as ban screens, are {@link Template templates} read from the
+ * <code>messages.yml</code> file. Each is compiled once when loaded, so that rendering one only
+ * joins its pieces together.
  */
 public class MessageUtil
 {
@@ -15,6 +32,14 @@ public class MessageUtil
 	public static final String PREFIX = ChatColor.DARK_GRAY + "[" + ChatColor.RED + "Punisher" +
 			ChatColor.DARK_GRAY + "]";
 
+	private static final String MESSAGES_FILE = "messages.yml";
+
+	private static final long[] UNIT_MILLIS = { 86400000L, 3600000L, 60000L, 1000L };
+	private static final String[] UNIT_NAMES = { "day", "hour", "minute", "second" };
+
+	// compiled templates by key; null until loaded
+	private static volatile Map<String, Template> templates;
+
 	/**
 	 * Formats a string to the standardised message style.
 	 *
@@ -37,4 +62,307 @@ public class MessageUtil
 		return PREFIX + " " + ChatColor.RED + content;
 	}
 
+	/**
+	 * Formats a length of time in words, such as <code>2 days, 1 hour and 5 seconds</code>.
+	 * <p>
+	 * Units of zero are left out, and any part of a second is rounded up, so that a punishment
+	 * with time left never shows as having none.
+	 *
+	 * @param millis The length of time, in milliseconds.
+	 * @return The formatted length of time.
+	 */
+	public static String formatDuration(long millis)
+	{
+		long remaining = millis <= 0L ? 0L : (millis + 999L) / 1000L * 1000L;
+
+		StringBuilder sb = new StringBuilder(48);
+		int last = -1;
+		for (int i = 0; i < UNIT_MILLIS.length; i++)
+		{
+			long amount = remaining / UNIT_MILLIS[i];
+			if (amount == 0L)
+			{
+				continue;
+			}
+
+			remaining -= amount * UNIT_MILLIS[i];
+			if (last >= 0)
+			{
+				// "and" goes before the last unit shown, commas before the rest
+				sb.append(remaining == 0L ? " and " : ", ");
+			}
+
+			sb.append(amount).append(' ').append(UNIT_NAMES[i]);
+			if (amount != 1L)
+			{
+				sb.append('s');
+			}
+			last = i;
+		}
+
+		return last < 0 ? "0 seconds" : sb.toString();
+	}
+
+	/**
+	 * Loads and compiles the templates in the plugin's <code>messages.yml</code> file, creating it
+	 * first if need be. Templates missing from the file fall back to the bundled ones.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 */
+	public static void loadMessages(Plugin plugin)
+	{
+		File file = new File(plugin.getDataFolder(), MESSAGES_FILE);
+		if (!file.exists())
+		{
+			plugin.saveResource(MESSAGES_FILE, false);
+		}
+
+		YamlConfiguration defaults = loadBundled();
+		YamlConfiguration messages = YamlConfiguration.loadConfiguration(file);
+		if (defaults != null)
+		{
+			messages.setDefaults(defaults);
+		}
+
+		templates = compile(messages, defaults != null ? defaults : messages);
+	}
+
+	/**
+	 * Retrieves a compiled template.
+	 * <p>
+	 * If {@link #loadMessages(Plugin)} hasn't been called, the bundled templates are used.
+	 *
+	 * @param key The key of the template in the messages file, such as <code>ban.screen</code>.
+	 * @return The template.
+	 * @throws IllegalArgumentException If there is no template with that key.
+	 */
+	public static Template getTemplate(String key)
+	{
+		Map<String, Template> loaded = templates;
+		if (loaded == null)
+		{
+			synchronized (MessageUtil.class)
+			{
+				if (templates == null)
+				{
+					YamlConfiguration defaults = loadBundled();
+					templates = defaults == null ? new HashMap<>() : compile(defaults, defaults);
+				}
+
+				loaded = templates;
+			}
+		}
+
+		Template template = loaded.get(key);
+		if (template == null)
+		{
+			throw new IllegalArgumentException("Unknown message: " + key);
+		}
+
+		return template;
+	}
+
+	private static YamlConfiguration loadBundled()
+	{
+		InputStream in = MessageUtil.class.getClassLoader().getResourceAsStream(MESSAGES_FILE);
+		if (in == null)
+		{
+			return null;
+		}
+
+		return YamlConfiguration.loadConfiguration(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	private static Map<String, Template> compile(ConfigurationSection messages,
+												 ConfigurationSection keys)
+	{
+		Map<String, Template> compiled = new HashMap<>();
+		for (String key : keys.getKeys(true))
+		{
+			if (!keys.isConfigurationSection(key))
+			{
+				compiled.put(key, Template.compile(messages.getString(key)));
+			}
+		}
+
+		return compiled;
+	}
+
+	/**
+	 * An immutable message with named placeholders, such as <code>{reason}</code>, split into its
+	 * literal text and placeholders once so that it can be rendered cheaply.
+	 * <p>
+	 * Colour codes written with <code>&amp;</code> are translated, and <code>{prefix}</code> is
+	 * replaced with the message prefix, when the template is compiled. Values filled into
+	 * placeholders are used as they are.
+	 * <p>
+	 * Values that don't change, such as the reason for a punishment, can be filled in ahead of
+	 * time with {@link #with(String, String)}, leaving only those that do, such as the time
+	 * remaining, for each render.
+	 */
+	public static final class Template
+	{
+		private final String[] literals; // one more than there are placeholders
+		private final String[] keys;
+
+		private Template(String[] literals, String[] keys)
+		{
+			this.literals = literals;
+			this.keys = keys;
+		}
+
+		/**
+		 * Compiles a template.
+		 *
+		 * @param text The text of the template.
+		 * @return The compiled template.
+		 */
+		public static Template compile(String text)
+		{
+			String translated = ChatColor.translateAlternateColorCodes('&', text == null ? "" : text);
+
+			List<String> literals = new ArrayList<>();
+			List<String> keys = new ArrayList<>();
+			StringBuilder literal = new StringBuilder();
+
+			int i = 0;
+			while (i < translated.length())
+			{
+				char c = translated.charAt(i);
+				int end = c == '{' ? translated.indexOf('}', i) : -1;
+				if (end < 0 || !isKey(translated, i + 1, end))
+				{
+					literal.append(c);
+					i++;
+					continue;
+				}
+
+				String key = translated.substring(i + 1, end);
+				if (key.equals("prefix"))
+				{
+					literal.append(PREFIX);
+				}
+				else
+				{
+					literals.add(literal.toString());
+					keys.add(key);
+					literal.setLength(0);
+				}
+
+				i = end + 1;
+			}
+
+			literals.add(literal.toString());
+			return new Template(literals.toArray(new String[0]), keys.toArray(new String[0]));
+		}
+
+		/**
+		 * Fills in a placeholder ahead of time.
+		 *
+		 * @param key The name of the placeholder.
+		 * @param value The value of the placeholder.
+		 * @return A template with every occurrence of the placeholder filled in, or this
+		 *         template if it has no such placeholder.
+		 */
+		public Template with(String key, String value)
+		{
+			if (!Arrays.asList(keys).contains(key))
+			{
+				return this;
+			}
+
+			List<String> newLiterals = new ArrayList<>(literals.length);
+			List<String> newKeys = new ArrayList<>(keys.length);
+			String literal = literals[0];
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i].equals(key))
+				{
+					// merge the value and the text either side of it
+					literal = literal + value + literals[i + 1];
+				}
+				else
+				{
+					newLiterals.add(literal);
+					newKeys.add(keys[i]);
+					literal = literals[i + 1];
+				}
+			}
+
+			newLiterals.add(literal);
+			return new Template(newLiterals.toArray(new String[0]), newKeys.toArray(new String[0]));
+		}
+
+		/**
+		 * Renders the template, leaving any placeholders that haven't been filled in as they
+		 * were written.
+		 *
+		 * @return The rendered message.
+		 */
+		public String render()
+		{
+			return render(null, null);
+		}
+
+		/**
+		 * Renders the template with one placeholder filled in, leaving any others that haven't
+		 * been filled in as they were written.
+		 *
+		 * @param key The name of the placeholder.
+		 * @param value The value of the placeholder.
+		 * @return The rendered message.
+		 */
+		public String render(String key, String value)
+		{
+			if (keys.length == 0)
+			{
+				// fully filled in, so there is nothing to join
+				return literals[0];
+			}
+
+			int length = literals[0].length();
+			for (int i = 0; i < keys.length; i++)
+			{
+				length += literals[i + 1].length() + (value == null ? 0 : value.length());
+			}
+
+			StringBuilder sb = new StringBuilder(length + 16);
+			sb.append(literals[0]);
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i].equals(key))
+				{
+					sb.append(value);
+				}
+				else
+				{
+					sb.append('{').append(keys[i]).append('}');
+				}
+
+				sb.append(literals[i + 1]);
+			}
+
+			return sb.toString();
+		}
+
+		private static boolean isKey(String text, int from, int to)
+		{
+			if (from == to)
+			{
+				return false;
+			}
+
+			for (int i = from; i < to; i++)
+			{
+				char c = text.charAt(i);
+				if (!(c >= 'a' && c <= 'z') && c != '-')
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
 }
@@ -0,0 +1,585 @@
+package uk.co.williamburns.punisher.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import uk.co.williamburns.punisher.Punisher;
+import uk.co.williamburns.punisher.util.concurrent.TaskPriority;
+import uk.co.williamburns.punisher.util.metrics.Histogram;
+import uk.co.williamburns.punisher.util.metrics.Metrics;
+
+/**
+ * A cache of Minecraft profiles (UUID to name and name to UUID) that sits in front of
+ * {@link NameFetcher} and {@link UUIDFetcher}.
+ * <p>
+ * Profiles are held in a bounded, least-recently-used in-memory cache which is written to a file
+ * in the plugin's data folder, so that it survives restarts. The cache is seeded from the
+ * server's <code>usercache.json</code>, from names stored with punishments and from players as
+ * they join.
+ * <p>
+ * Entries older than the configured time-to-live are refreshed from Mojang when next looked up.
+ * If Mojang can't be reached, the stale entry is returned instead. Mojang is otherwise only
+ * contacted when a profile isn't cached at all.
+ * <p>
+ * Lookups that miss the cache make a network request on the calling thread, and therefore are
+ * not safe to run from any active gameplay threads.
+ */
+public class ProfileCache implements Listener
+{
+	private static final String STORE_FILE = "profiles.dat";
+	private static final String USER_CACHE_FILE = "usercache.json";
+
+	// the most names mojang resolves in one request, and the pause between requests
+	private static final int UUIDS_PER_REQUEST = 100;
+	private static final long REQUEST_INTERVAL = 100L;
+
+	private final Punisher plugin;
+	private final File store;
+	private final int capacity;
+	private final long ttl;
+
+	// both maps are access ordered, and guarded by this object's monitor
+	private final LinkedHashMap<UUID, Profile> byUuid;
+	private final LinkedHashMap<String, Profile> byName;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final Histogram lookupTimes;
+	private final LongAdder lookupFailures;
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * The cache is empty until {@link #load()} and any of the seeding methods are called.
+	 *
+	 * @param plugin The Punisher plugin instance.
+	 */
+	public ProfileCache(Punisher plugin)
+	{
+		this.plugin = plugin;
+		this.store = new File(plugin.getDataFolder(), STORE_FILE);
+
+		ConfigurationSection cs = plugin.getConfig().getConfigurationSection("profiles");
+		this.capacity = cs.getInt("cache-size", 10000);
+		this.ttl = TimeUnit.HOURS.toMillis(cs.getInt("ttl-hours", 24));
+
+		this.byUuid = new LinkedHashMap<UUID, Profile>(16, 0.75F, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UUID, Profile> eldest)
+			{
+				if (size() <= capacity)
+				{
+					return false;
+				}
+
+				// keep the name index in step with evictions
+				byName.remove(eldest.getValue().key(), eldest.getValue());
+				return true;
+			}
+		};
+		this.byName = new LinkedHashMap<>(16, 0.75F, true);
+
+		Metrics metrics = plugin.getMetrics();
+		this.lookupTimes = metrics.histogram("punisher_mojang_lookup_seconds",
+				"Time taken to look up a profile from Mojang.");
+		this.lookupFailures = metrics.counter("punisher_mojang_lookup_failures_total",
+				"Lookups of a profile from Mojang that failed.");
+		metrics.counter("punisher_profile_cache_hits_total", "Profile lookups answered from memory.",
+				hits::sum);
+		metrics.counter("punisher_profile_cache_misses_total",
+				"Profile lookups that were missing or out of date.", misses::sum);
+	}
+
+	/**
+	 * Retrieves the current name of a player.
+	 *
+	 * @param uuid The UUID of the player.
+	 * @return The name of the player, or <code>null</code> if it can't be resolved.
+	 */
+	public String getName(UUID uuid)
+	{
+		Profile cached;
+		synchronized (this)
+		{
+			cached = byUuid.get(uuid);
+		}
+
+		if (cached != null && isFresh(cached))
+		{
+			hits.increment();
+			return cached.name;
+		}
+
+		// miss or stale; ask mojang
+		misses.increment();
+		long start = System.nanoTime();
+		try
+		{
+			String name = new NameFetcher(Collections.singletonList(uuid)).call().get(uuid);
+			lookupTimes.recordSince(start);
+			if (name != null)
+			{
+				put(uuid, name, System.currentTimeMillis());
+				return name;
+			}
+		}
+		catch (Exception e)
+		{
+			lookupTimes.recordSince(start);
+			lookupFailures.increment();
+			plugin.getLogger().log(Level.WARNING, "Could not resolve name of " + uuid, e);
+		}
+
+		return cached == null ? null : cached.name;
+	}
+
+	/**
+	 * Retrieves the name of a player from memory, without ever asking Mojang.
+	 *
+	 * @param uuid The UUID of the player.
+	 * @return The cached name of the player, which may be out of date, or <code>null</code> if
+	 *         it isn't cached.
+	 */
+	public synchronized String getCachedName(UUID uuid)
+	{
+		Profile cached = byUuid.get(uuid);
+		return cached == null ? null : cached.name;
+	}
+
+	/**
+	 * Retrieves the current names of several players, looking each distinct player up once.
+	 *
+	 * @param uuids The UUIDs of the players, which may repeat.
+	 * @return The names of the players that could be resolved, by UUID.
+	 */
+	public Map<UUID, String> getNames(Collection<UUID> uuids)
+	{
+		Map<UUID, String> names = new HashMap<>();
+		for (UUID uuid : new LinkedHashSet<>(uuids))
+		{
+			String name = getName(uuid);
+			if (name != null)
+			{
+				names.put(uuid, name);
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Retrieves the current names of several players in the background, looking each distinct
+	 * player up once.
+	 * <p>
+	 * If every player is cached already, the names are returned straight away, without handing
+	 * off to another thread.
+	 *
+	 * @param uuids The UUIDs of the players, which may repeat.
+	 * @return The names of the players that could be resolved, by UUID, as a future.
+	 */
+	public ListenableFuture<Map<UUID, String>> loadNames(Collection<UUID> uuids)
+	{
+		Map<UUID, String> names = new HashMap<>();
+		synchronized (this)
+		{
+			for (UUID uuid : uuids)
+			{
+				Profile cached = byUuid.get(uuid);
+				if (cached == null || !isFresh(cached))
+				{
+					// at least one needs mojang, so resolve them all off this thread
+					return plugin.getExecutor().submit(TaskPriority.COMMAND, () -> getNames(uuids));
+				}
+
+				names.put(uuid, cached.name);
+			}
+		}
+
+		return Futures.immediateFuture(names);
+	}
+
+	/**
+	 * Retrieves the UUID of a player by name.
+	 *
+	 * @param name The name of the player, in any case.
+	 * @return The UUID of the player, or <code>null</code> if it can't be resolved.
+	 */
+	public UUID getUuid(String name)
+	{
+		String key = name.toLowerCase(Locale.ROOT);
+
+		Profile cached;
+		synchronized (this)
+		{
+			cached = byName.get(key);
+		}
+
+		if (cached != null && isFresh(cached))
+		{
+			hits.increment();
+			return cached.uuid;
+		}
+
+		// miss or stale; ask mojang
+		misses.increment();
+		long start = System.nanoTime();
+		try
+		{
+			Map<String, UUID> result = new UUIDFetcher(Collections.singletonList(name)).call();
+			lookupTimes.recordSince(start);
+			for (Map.Entry<String, UUID> entry : result.entrySet())
+			{
+				// mojang returns the name in its proper case
+				if (entry.getKey().equalsIgnoreCase(name))
+				{
+					put(entry.getValue(), entry.getKey(), System.currentTimeMillis());
+					return entry.getValue();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			lookupTimes.recordSince(start);
+			lookupFailures.increment();
+			plugin.getLogger().log(Level.WARNING, "Could not resolve UUID of " + name, e);
+		}
+
+		return cached == null ? null : cached.uuid;
+	}
+
+	/**
+	 * Retrieves the UUIDs of several players by name, looking each distinct name up once.
+	 * <p>
+	 * Names that aren't cached are resolved from Mojang in batches of up to 100, the most it
+	 * takes in one request, with a short pause between requests. If a batch fails, whatever was
+	 * cached for its names is returned instead.
+	 *
+	 * @param names The names of the players, in any case, which may repeat. Each must be a valid
+	 *              Minecraft name, or Mojang refuses the whole batch.
+	 * @return The UUIDs of the players that could be resolved, by name in its proper case.
+	 */
+	public Map<String, UUID> getUuids(Collection<String> names)
+	{
+		Map<String, String> distinct = new LinkedHashMap<>();
+		names.forEach(name -> distinct.putIfAbsent(name.toLowerCase(Locale.ROOT), name));
+
+		Map<String, UUID> uuids = new HashMap<>();
+		Map<String, Profile> stale = new HashMap<>();
+		List<String> missing = new ArrayList<>();
+		synchronized (this)
+		{
+			for (Map.Entry<String, String> name : distinct.entrySet())
+			{
+				Profile cached = byName.get(name.getKey());
+				if (cached != null && isFresh(cached))
+				{
+					hits.increment();
+					uuids.put(cached.name, cached.uuid);
+					continue;
+				}
+
+				misses.increment();
+				missing.add(name.getValue());
+				if (cached != null)
+				{
+					stale.put(name.getKey(), cached);
+				}
+			}
+		}
+
+		List<List<String>> batches = Lists.partition(missing, UUIDS_PER_REQUEST);
+		for (int i = 0; i < batches.size(); i++)
+		{
+			if (i > 0)
+			{
+				try
+				{
+					// stay well inside mojang's rate limit
+					Thread.sleep(REQUEST_INTERVAL);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			long start = System.nanoTime();
+			try
+			{
+				Map<String, UUID> result = new UUIDFetcher(batches.get(i), false).call();
+				lookupTimes.recordSince(start);
+
+				long now = System.currentTimeMillis();
+				for (Map.Entry<String, UUID> entry : result.entrySet())
+				{
+					// mojang returns names in their proper case
+					put(entry.getValue(), entry.getKey(), now);
+					uuids.put(entry.getKey(), entry.getValue());
+					stale.remove(entry.getKey().toLowerCase(Locale.ROOT));
+				}
+			}
+			catch (Exception e)
+			{
+				lookupTimes.recordSince(start);
+				lookupFailures.increment();
+				plugin.getLogger().log(Level.WARNING, "Could not resolve UUIDs of " + batches.get(i)
+						.size() + " players", e);
+			}
+		}
+
+		// names that mojang didn't answer for keep what was cached, as with single lookups
+		stale.values().forEach(p -> uuids.putIfAbsent(p.name, p.uuid));
+		return uuids;
+	}
+
+	/**
+	 * Adds a profile to the cache, unless a profile that was resolved more recently is already
+	 * cached for that UUID.
+	 *
+	 * @param uuid The UUID of the player.
+	 * @param name The name of the player.
+	 * @param resolvedAt The time at which the name was known to be correct as an epoch timestamp.
+	 */
+	public synchronized void put(UUID uuid, String name, long resolvedAt)
+	{
+		Profile existing = byUuid.get(uuid);
+		if (existing != null)
+		{
+			if (existing.resolvedAt > resolvedAt)
+			{
+				return;
+			}
+
+			byName.remove(existing.key(), existing);
+		}
+
+		Profile profile = new Profile(uuid, name, resolvedAt);
+		byUuid.put(uuid, profile);
+		byName.put(profile.key(), profile);
+	}
+
+	/**
+	 * Adds profiles for players that aren't cached yet, such as from the names stored with
+	 * punishments, as though they were resolved when they were stored. Names stored longer ago
+	 * than the time to live are only used to show players, and never to look them up by name.
+	 * <p>
+	 * Profiles are added in reverse order, so that the first names given are the last to be
+	 * evicted.
+	 *
+	 * @param names The names of players by UUID, along with when they were stored as an epoch
+	 *              timestamp, most recent first.
+	 */
+	public synchronized void seed(LinkedHashMap<UUID, Map.Entry<String, Long>> names)
+	{
+		List<Map.Entry<UUID, Map.Entry<String, Long>>> entries = new ArrayList<>(names.entrySet());
+		for (Map.Entry<UUID, Map.Entry<String, Long>> entry : Lists.reverse(entries))
+		{
+			// anything cached already was resolved more recently than the name was stored
+			if (!byUuid.containsKey(entry.getKey()))
+			{
+				put(entry.getKey(), entry.getValue().getKey(), entry.getValue().getValue());
+			}
+		}
+	}
+
+	/**
+	 * Adds every online player to the cache.
+	 */
+	public void seedOnlinePlayers()
+	{
+		long now = System.currentTimeMillis();
+		for (Player player : plugin.getServer().getOnlinePlayers())
+		{
+			put(player.getUniqueId(), player.getName(), now);
+		}
+	}
+
+	/**
+	 * Adds every entry of the server's <code>usercache.json</code> file to the cache, if it
+	 * exists.
+	 * <p>
+	 * Entries are treated as having been resolved a month before they expire, which is how long
+	 * the server keeps them for.
+	 */
+	public void seedUserCache()
+	{
+		// the user cache lives in the server root, two levels above our data folder
+		File root = plugin.getDataFolder().getAbsoluteFile().getParentFile().getParentFile();
+		File file = new File(root, USER_CACHE_FILE);
+		if (!file.isFile())
+		{
+			return;
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.ROOT);
+		try (Reader reader = new FileReader(file))
+		{
+			JSONArray array = (JSONArray) new JSONParser().parse(reader);
+			for (Object o : array)
+			{
+				JSONObject entry = (JSONObject) o;
+				long resolvedAt;
+				try
+				{
+					resolvedAt = format.parse((String) entry.get("expiresOn")).getTime()
+							- TimeUnit.DAYS.toMillis(30);
+				}
+				catch (ParseException | NullPointerException e)
+				{
+					resolvedAt = file.lastModified();
+				}
+
+				put(UUID.fromString((String) entry.get("uuid")), (String) entry.get("name"),
+						resolvedAt);
+			}
+		}
+		catch (Exception e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not read " + USER_CACHE_FILE, e);
+		}
+	}
+
+	/**
+	 * Loads the cache from the file in the plugin's data folder, if it exists.
+	 */
+	public void load()
+	{
+		if (!store.isFile())
+		{
+			return;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(store.toPath(), StandardCharsets.UTF_8))
+		{
+			// entries are stored least recently used first, so that recency is kept
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.split("\t");
+				if (parts.length != 3)
+				{
+					continue;
+				}
+
+				put(UUID.fromString(parts[0]), parts[1], Long.parseLong(parts[2]));
+			}
+		}
+		catch (IOException | IllegalArgumentException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not load " + STORE_FILE, e);
+		}
+	}
+
+	/**
+	 * Saves the cache to the file in the plugin's data folder.
+	 * <p>
+	 * This operation writes to disk on the calling thread.
+	 */
+	public void save()
+	{
+		List<Profile> profiles;
+		synchronized (this)
+		{
+			profiles = new ArrayList<>(byUuid.values());
+		}
+
+		try
+		{
+			// write to a temporary file first so that a crash can't leave half a store behind
+			File temp = new File(store.getPath() + ".tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+			{
+				for (Profile p : profiles)
+				{
+					writer.write(p.uuid + "\t" + p.name + "\t" + p.resolvedAt);
+					writer.newLine();
+				}
+			}
+
+			Files.move(temp.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not save " + STORE_FILE, e);
+		}
+	}
+
+	/**
+	 * @return The number of profiles currently cached.
+	 */
+	public synchronized int size()
+	{
+		return byUuid.size();
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onJoin(PlayerJoinEvent event)
+	{
+		// a joining player's profile is always up to date
+		put(event.getPlayer().getUniqueId(), event.getPlayer().getName(), System.currentTimeMillis());
+	}
+
+	private boolean isFresh(Profile profile)
+	{
+		return System.currentTimeMillis() - profile.resolvedAt < ttl;
+	}
+
+	/**
+	 * An immutable cached profile.
+	 */
+	private static class Profile
+	{
+		private final UUID uuid;
+		private final String name;
+		private final long resolvedAt;
+
+		private Profile(UUID uuid, String name, long resolvedAt)
+		{
+			this.uuid = uuid;
+			this.name = name;
+			this.resolvedAt = resolvedAt;
+		}
+
+		private String key()
+		{
+			return name.toLowerCase(Locale.ROOT);
+		}
+	}
+}
@@ -0,0 +1,427 @@
+package uk.co.williamburns.punisher.util.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import uk.co.williamburns.punisher.util.metrics.Histogram;
+
+/**
+ * A fixed pool of worker threads that runs blocking I/O tasks by priority.
+ * <p>
+ * Each {@link TaskPriority} has its own bounded queue. Workers always take the oldest task of the
+ * highest priority that is waiting, so a burst of staff commands or background jobs can't hold up
+ * a login check. Command and background tasks are limited to all but one of the workers, so that
+ * a worker is always free for logins, and background tasks to all but one of those, so that a
+ * worker is also free for commands where there are enough. There are always at least two
+ * workers.
+ * <p>
+ * When a queue is full, further tasks of that priority are rejected rather than queued without
+ * bound, so that callers find out about overload straight away. Jobs run by timers are queued
+ * through {@link #periodic(TaskPriority, Runnable)}, which skips a run instead.
+ */
+public class PriorityExecutor
+{
+	private static final TaskPriority[] PRIORITIES = TaskPriority.values();
+
+	private final Logger logger;
+	private final Thread[] workers;
+	private final int[] capacities;
+	private final int maxOther; // the most workers running anything but logins
+	private final int maxBackground;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	// guarded by lock
+	private final ArrayDeque<Task>[] queues;
+	private int runningOther;
+	private int runningBackground;
+	private boolean shutdown;
+
+	private final LongAdder[] completed;
+	private final LongAdder[] rejected;
+	private final Histogram[] waits;
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Worker threads are started immediately.
+	 *
+	 * @param name The name used as a prefix for worker threads.
+	 * @param logger The logger that task failures are reported to.
+	 * @param threads The number of worker threads, of which there are at least two.
+	 * @param capacities The maximum number of queued tasks for each priority, indexed by
+	 *                   {@link TaskPriority#ordinal()}.
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityExecutor(String name, Logger logger, int threads, int[] capacities)
+	{
+		if (capacities.length != PRIORITIES.length)
+		{
+			throw new IllegalArgumentException("Expected " + PRIORITIES.length + " capacities");
+		}
+
+		this.logger = logger;
+		this.capacities = capacities.clone();
+		this.workers = new Thread[Math.max(2, threads)];
+		this.maxOther = workers.length - 1;
+		this.maxBackground = Math.max(1, maxOther - 1);
+
+		this.queues = new ArrayDeque[PRIORITIES.length];
+		this.completed = new LongAdder[PRIORITIES.length];
+		this.rejected = new LongAdder[PRIORITIES.length];
+		this.waits = new Histogram[PRIORITIES.length];
+		for (int i = 0; i < PRIORITIES.length; i++)
+		{
+			queues[i] = new ArrayDeque<>();
+			completed[i] = new LongAdder();
+			rejected[i] = new LongAdder();
+			waits[i] = new Histogram();
+		}
+
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Thread(this::work, name + " #" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a task to be run.
+	 *
+	 * @param priority The priority of the task.
+	 * @param task The task.
+	 * @throws RejectedExecutionException If the queue for the priority is full, or the executor
+	 *                                    has been shut down.
+	 */
+	public void execute(TaskPriority priority, Runnable task)
+	{
+		int p = priority.ordinal();
+
+		lock.lock();
+		try
+		{
+			if (shutdown || queues[p].size() >= capacities[p])
+			{
+				rejected[p].increment();
+				throw new RejectedExecutionException("Too many " + priority + " tasks queued (" +
+						queues[p].size() + ")");
+			}
+
+			queues[p].addLast(new Task(priority, task, System.nanoTime()));
+			available.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a task to be run, returning its result as a future.
+	 * <p>
+	 * If the task is rejected, the future fails with a {@link RejectedExecutionException} rather
+	 * than the exception being thrown.
+	 *
+	 * @param priority The priority of the task.
+	 * @param task The task.
+	 * @param <V> The type of the result.
+	 * @return The result of the task, as a future.
+	 */
+	public <V> ListenableFuture<V> submit(TaskPriority priority, Callable<V> task)
+	{
+		ListenableFutureTask<V> future = ListenableFutureTask.create(task);
+		try
+		{
+			execute(priority, future);
+		}
+		catch (RejectedExecutionException e)
+		{
+			return Futures.immediateFailedFuture(e);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Wraps a job that is run over and over, such as by a timer, so that it is only queued when
+	 * its last run has finished. A run that finds the job still queued or running, or the queue
+	 * full, is skipped, and the job is queued again on the next run instead.
+	 *
+	 * @param priority The priority of the job.
+	 * @param job The job.
+	 * @return A task that queues the job, which never throws.
+	 */
+	public Runnable periodic(TaskPriority priority, Runnable job)
+	{
+		AtomicBoolean queued = new AtomicBoolean();
+		return () ->
+		{
+			if (!queued.compareAndSet(false, true))
+			{
+				// the last run hasn't finished, such as while the database is slow
+				return;
+			}
+
+			try
+			{
+				execute(priority, () ->
+				{
+					try
+					{
+						job.run();
+					}
+					finally
+					{
+						queued.set(false);
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				// counted as rejected; tried again next time
+				queued.set(false);
+			}
+		};
+	}
+
+	/**
+	 * Retrieves a view of this executor that queues everything at one priority, for use with
+	 * APIs that take an {@link Executor}, such as future listeners.
+	 *
+	 * @param priority The priority of tasks.
+	 * @return An executor for the priority.
+	 */
+	public Executor executor(TaskPriority priority)
+	{
+		return task -> execute(priority, task);
+	}
+
+	/**
+	 * @param priority A priority class.
+	 * @return The number of tasks of that priority waiting to run.
+	 */
+	public int getQueueDepth(TaskPriority priority)
+	{
+		lock.lock();
+		try
+		{
+			return queues[priority.ordinal()].size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority A priority class.
+	 * @return The number of tasks of that priority that have run.
+	 */
+	public long getCompletedCount(TaskPriority priority)
+	{
+		return completed[priority.ordinal()].sum();
+	}
+
+	/**
+	 * @param priority A priority class.
+	 * @return The number of tasks of that priority that were rejected.
+	 */
+	public long getRejectedCount(TaskPriority priority)
+	{
+		return rejected[priority.ordinal()].sum();
+	}
+
+	/**
+	 * @param priority A priority class.
+	 * @return The times tasks of that priority waited in the queue before running.
+	 */
+	public Histogram getWaitTimes(TaskPriority priority)
+	{
+		return waits[priority.ordinal()];
+	}
+
+	/**
+	 * Stops accepting tasks, and waits for the tasks already queued to finish.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return Whether or not every worker finished within the timeout.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			shutdown = true;
+			available.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread worker : workers)
+		{
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining > 0)
+			{
+				worker.join(remaining);
+			}
+
+			if (worker.isAlive())
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void work()
+	{
+		while (true)
+		{
+			Task task;
+			try
+			{
+				task = take();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			if (task == null)
+			{
+				// shut down and drained
+				return;
+			}
+
+			try
+			{
+				task.runnable.run();
+			}
+			catch (Throwable t)
+			{
+				logger.log(Level.SEVERE, "Uncaught exception in " + task.priority + " task", t);
+			}
+			finally
+			{
+				completed[task.priority.ordinal()].increment();
+				if (task.priority != TaskPriority.LOGIN)
+				{
+					lock.lock();
+					try
+					{
+						runningOther--;
+						if (task.priority == TaskPriority.BACKGROUND)
+						{
+							runningBackground--;
+						}
+						available.signal();
+					}
+					finally
+					{
+						lock.unlock();
+					}
+				}
+			}
+		}
+	}
+
+	private Task take() throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (true)
+			{
+				for (TaskPriority priority : PRIORITIES)
+				{
+					ArrayDeque<Task> queue = queues[priority.ordinal()];
+					if (queue.isEmpty())
+					{
+						continue;
+					}
+
+					if (priority != TaskPriority.LOGIN)
+					{
+						// keep a worker free for logins, and one for commands over background work
+						if (runningOther >= maxOther || priority == TaskPriority.BACKGROUND &&
+								runningBackground >= maxBackground)
+						{
+							continue;
+						}
+
+						runningOther++;
+						if (priority == TaskPriority.BACKGROUND)
+						{
+							runningBackground++;
+						}
+					}
+
+					Task task = queue.pollFirst();
+					waits[priority.ordinal()].recordSince(task.queuedAt);
+					return task;
+				}
+
+				if (shutdown && isDrained())
+				{
+					return null;
+				}
+
+				available.await();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private boolean isDrained()
+	{
+		for (ArrayDeque<Task> queue : queues)
+		{
+			if (!queue.isEmpty())
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * A queued task.
+	 */
+	private static class Task
+	{
+		private final TaskPriority priority;
+		private final Runnable runnable;
+		private final long queuedAt;
+
+		private Task(TaskPriority priority, Runnable runnable, long queuedAt)
+		{
+			this.priority = priority;
+			this.runnable = runnable;
+			this.queuedAt = queuedAt;
+		}
+	}
+}
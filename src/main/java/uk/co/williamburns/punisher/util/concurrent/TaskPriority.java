@@ -0,0 +1,24 @@
+package uk.co.williamburns.punisher.util.concurrent;
+
+/**
+ * The priority classes of tasks run by a {@link PriorityExecutor}, from highest to lowest.
+ */
+public enum TaskPriority
+{
+
+	/**
+	 * Checks that decide whether a player may join the server.
+	 */
+	LOGIN,
+
+	/**
+	 * Work on behalf of a staff member's command.
+	 */
+	COMMAND,
+
+	/**
+	 * Maintenance work that nobody is waiting on, such as warming caches or exports.
+	 */
+	BACKGROUND
+
+}
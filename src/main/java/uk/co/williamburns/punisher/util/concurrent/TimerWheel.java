@@ -0,0 +1,186 @@
+package uk.co.williamburns.punisher.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel, which keeps track of a large number of deadlines cheaply.
+ * <p>
+ * Time is split into ticks, and the wheel into a ring of slots, one per tick. A deadline goes
+ * into the slot of its tick, wrapping round the ring, so scheduling and cancelling are constant
+ * time. Each call to {@link #advance(long, Consumer)} only visits the slots of the ticks that
+ * have passed since the last call, so the cost of advancing is proportional to the number of
+ * deadlines in those slots rather than the number scheduled overall.
+ * <p>
+ * Deadlines are rounded up to the next tick, so values fire up to one tick late, but never
+ * early. This class is thread-safe.
+ *
+ * @param <T> The type of values scheduled.
+ */
+public class TimerWheel<T>
+{
+	private final long tickMillis;
+	private final Node<T>[] slots; // sentinel of each slot's circular list
+	private final int mask;
+
+	// guarded by this object's monitor
+	private long currentTick;
+	private int size;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param tickMillis The length of a tick, in milliseconds.
+	 * @param slots The number of slots, rounded up to a power of two.
+	 * @param now The current time, as an epoch timestamp.
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tickMillis, int slots, long now)
+	{
+		int capacity = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+
+		this.tickMillis = tickMillis;
+		this.slots = new Node[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < capacity; i++)
+		{
+			this.slots[i] = new Node<>(this, null, 0L);
+		}
+
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Schedules a value to fire at a deadline.
+	 *
+	 * @param deadline The time at which the value fires, as an epoch timestamp. If it has passed
+	 *                 already, the value fires on the next advance.
+	 * @param value The value.
+	 * @return A handle that can be used to cancel the value.
+	 */
+	public synchronized Timeout schedule(long deadline, T value)
+	{
+		// round up, so that nothing fires before its deadline
+		long tick = (deadline + tickMillis - 1) / tickMillis;
+		tick = Math.max(currentTick + 1, tick);
+
+		Node<T> node = new Node<>(this, value, tick);
+		Node<T> head = slots[(int) (tick & mask)];
+		node.prev = head.prev;
+		node.next = head;
+		head.prev.next = node;
+		head.prev = node;
+		size++;
+		return node;
+	}
+
+	/**
+	 * Fires every value whose deadline has passed, in no particular order.
+	 * <p>
+	 * Values are passed to the consumer on the calling thread, outside of any lock, so the
+	 * consumer may schedule further values.
+	 *
+	 * @param now The current time, as an epoch timestamp.
+	 * @param expired Accepts each value that fires.
+	 */
+	public void advance(long now, Consumer<T> expired)
+	{
+		List<T> fired = new ArrayList<>();
+
+		synchronized (this)
+		{
+			long target = now / tickMillis;
+			long steps = Math.min(target - currentTick, slots.length);
+			for (long i = 1; i <= steps; i++)
+			{
+				Node<T> head = slots[(int) ((currentTick + i) & mask)];
+				for (Node<T> node = head.next; node != head; )
+				{
+					Node<T> next = node.next;
+					if (node.tick <= target)
+					{
+						node.unlink();
+						size--;
+						fired.add(node.value);
+					}
+
+					node = next;
+				}
+			}
+
+			currentTick = Math.max(currentTick, target);
+		}
+
+		fired.forEach(expired);
+	}
+
+	/**
+	 * @return The number of values waiting to fire.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Removes a value from its slot, if it hasn't fired or been cancelled already.
+	 *
+	 * @param node The value's node.
+	 */
+	private synchronized void cancel(Node<T> node)
+	{
+		if (node.next != node)
+		{
+			node.unlink();
+			size--;
+		}
+	}
+
+	/**
+	 * A handle to a scheduled value.
+	 */
+	public interface Timeout
+	{
+
+		/**
+		 * Stops the value from firing, if it hasn't already.
+		 */
+		void cancel();
+
+	}
+
+	/**
+	 * A scheduled value, in a slot's list.
+	 */
+	private static final class Node<T> implements Timeout
+	{
+		private final TimerWheel<T> wheel;
+		private final T value;
+		private final long tick;
+
+		private Node<T> prev = this;
+		private Node<T> next = this;
+
+		private Node(TimerWheel<T> wheel, T value, long tick)
+		{
+			this.wheel = wheel;
+			this.value = value;
+			this.tick = tick;
+		}
+
+		@Override
+		public void cancel()
+		{
+			wheel.cancel(this);
+		}
+
+		private void unlink()
+		{
+			prev.next = next;
+			next.prev = prev;
+			prev = this;
+			next = this;
+		}
+	}
+}
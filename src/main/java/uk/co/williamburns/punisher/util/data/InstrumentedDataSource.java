@@ -0,0 +1,204 @@
+package uk.co.williamburns.punisher.util.data;
+
+import javax.sql.DataSource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import uk.co.williamburns.punisher.util.metrics.Histogram;
+
+/**
+ * A connection pool that records how long connections take to borrow.
+ * <p>
+ * Connections come from a DBCP {@link BasicDataSource}; this class only adds bookkeeping around
+ * {@link #getConnection()}, so that the pool can be sized from live numbers rather than guesses.
+ */
+public class InstrumentedDataSource implements DataSource
+{
+	private final BasicDataSource pool;
+
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final LongAdder borrows = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder borrowNanos = new LongAdder();
+	private final AtomicLong maxBorrowNanos = new AtomicLong();
+	private final Histogram borrowTimes = new Histogram();
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param pool The configured connection pool.
+	 */
+	public InstrumentedDataSource(BasicDataSource pool)
+	{
+		this.pool = pool;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		waiters.incrementAndGet();
+		long start = System.nanoTime();
+		try
+		{
+			Connection connection = pool.getConnection();
+			record(System.nanoTime() - start);
+			return connection;
+		}
+		catch (SQLException | RuntimeException e)
+		{
+			failures.increment();
+			throw e;
+		}
+		finally
+		{
+			waiters.decrementAndGet();
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		throw new SQLFeatureNotSupportedException("The pool's credentials are fixed.");
+	}
+
+	/**
+	 * @return The number of connections currently borrowed from the pool.
+	 */
+	public int getActive()
+	{
+		return pool.getNumActive();
+	}
+
+	/**
+	 * @return The number of connections sitting idle in the pool.
+	 */
+	public int getIdle()
+	{
+		return pool.getNumIdle();
+	}
+
+	/**
+	 * @return The maximum number of connections the pool will open.
+	 */
+	public int getMaxTotal()
+	{
+		return pool.getMaxTotal();
+	}
+
+	/**
+	 * @return The number of threads currently waiting to borrow a connection.
+	 */
+	public int getWaiters()
+	{
+		return waiters.get();
+	}
+
+	/**
+	 * @return The number of connections successfully borrowed.
+	 */
+	public long getBorrowCount()
+	{
+		return borrows.sum();
+	}
+
+	/**
+	 * @return The number of attempts to borrow a connection that failed or timed out.
+	 */
+	public long getFailureCount()
+	{
+		return failures.sum();
+	}
+
+	/**
+	 * @return The mean time taken to borrow a connection, in milliseconds.
+	 */
+	public double getAverageBorrowTime()
+	{
+		long count = borrows.sum();
+		return count == 0 ? 0D : borrowNanos.sum() / (double) count / 1e6;
+	}
+
+	/**
+	 * @return The longest time taken to borrow a connection, in milliseconds.
+	 */
+	public double getMaxBorrowTime()
+	{
+		return maxBorrowNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return The distribution of times taken to borrow a connection.
+	 */
+	public Histogram getBorrowTimes()
+	{
+		return borrowTimes;
+	}
+
+	/**
+	 * Closes the pool and every idle connection in it.
+	 *
+	 * @throws SQLException If the pool can't be closed.
+	 */
+	public void close() throws SQLException
+	{
+		pool.close();
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException
+	{
+		return pool.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException
+	{
+		pool.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException
+	{
+		pool.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException
+	{
+		return pool.getLoginTimeout();
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		return pool.getParentLogger();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException
+	{
+		return iface.isInstance(pool) ? iface.cast(pool) : pool.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException
+	{
+		return iface.isInstance(pool) || pool.isWrapperFor(iface);
+	}
+
+	private void record(long nanos)
+	{
+		borrows.increment();
+		borrowNanos.add(nanos);
+		maxBorrowNanos.accumulateAndGet(nanos, Math::max);
+		borrowTimes.record(nanos);
+	}
+}
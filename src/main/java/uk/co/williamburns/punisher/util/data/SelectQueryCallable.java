@@ -19,6 +19,8 @@ public class SelectQueryCallable<V> implements Callable<V>
 	private final String query;
 	private final Object[] args;
 	private final Function<ResultSet, V> function;
+	private final int timeout;
+	private final int fetchSize;
 
 	/**
 	 * Class constructor.
@@ -27,13 +29,51 @@ public class SelectQueryCallable<V> implements Callable<V>
 	 * @param query The select query that is run.
 	 * @param args Any arguments applied to the prepared statement.
 	 * @param function The function to which the {@link ResultSet} is applied.
+	 * @param timeout The number of seconds the query may run for. <code>0</code> if unlimited.
+	 * @param fetchSize The number of rows fetched from the database at a time, for results too
+	 *                  large to hold in memory at once. <code>0</code> to fetch every row up front.
 	 */
-	public SelectQueryCallable(DataSource source, String query, Object[] args, Function<ResultSet, V> function)
+	public SelectQueryCallable(DataSource source, String query, Object[] args, Function<ResultSet, V>
+			function, int timeout, int fetchSize)
 	{
 		this.source = source;
 		this.query = query;
 		this.args = args;
 		this.function = function;
+		this.timeout = timeout;
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Every row is fetched up front.
+	 *
+	 * @param source The database source.
+	 * @param query The select query that is run.
+	 * @param args Any arguments applied to the prepared statement.
+	 * @param function The function to which the {@link ResultSet} is applied.
+	 * @param timeout The number of seconds the query may run for. <code>0</code> if unlimited.
+	 */
+	public SelectQueryCallable(DataSource source, String query, Object[] args, Function<ResultSet, V>
+			function, int timeout)
+	{
+		this(source, query, args, function, timeout, 0);
+	}
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * The query may run for an unlimited amount of time.
+	 *
+	 * @param source The database source.
+	 * @param query The select query that is run.
+	 * @param args Any arguments applied to the prepared statement.
+	 * @param function The function to which the {@link ResultSet} is applied.
+	 */
+	public SelectQueryCallable(DataSource source, String query, Object[] args, Function<ResultSet, V> function)
+	{
+		this(source, query, args, function, 0);
 	}
 
 	@Override
@@ -53,6 +93,8 @@ public class SelectQueryCallable<V> implements Callable<V>
 			}
 
 			statement = connection.prepareStatement(query);
+			statement.setQueryTimeout(timeout);
+			statement.setFetchSize(fetchSize);
 			for (int i = 0; i < args.length; i++)
 			{
 				statement.setObject(i + 1, args[i]);
@@ -0,0 +1,181 @@
+package uk.co.williamburns.punisher.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of how long something takes, which many threads can record into without
+ * contention.
+ * <p>
+ * Times are counted into fixed buckets in steps of 1, 2.5 and 5 from 10 microseconds up to a
+ * minute, so that percentiles can be estimated to within a bucket and the buckets exported
+ * as they are. Everything is counted from when the histogram was created.
+ */
+public class Histogram
+{
+	// upper bounds of the buckets, in nanoseconds; anything longer goes in one last bucket
+	private static final long[] BOUNDS = bounds(10000L, 60000000000L);
+
+	private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Class constructor.
+	 */
+	public Histogram()
+	{
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records how long something took.
+	 *
+	 * @param nanos The time it took, in nanoseconds.
+	 */
+	public void record(long nanos)
+	{
+		int i = 0;
+		while (i < BOUNDS.length && nanos > BOUNDS[i])
+		{
+			i++;
+		}
+
+		counts[i].increment();
+		total.add(nanos);
+		if (nanos > max.get())
+		{
+			max.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	/**
+	 * Records how long something has taken so far.
+	 *
+	 * @param startNanos When it started, from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return The number of times recorded.
+	 */
+	public long getCount()
+	{
+		long count = 0L;
+		for (LongAdder c : counts)
+		{
+			count += c.sum();
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return The sum of every time recorded, in nanoseconds.
+	 */
+	public long getTotal()
+	{
+		return total.sum();
+	}
+
+	/**
+	 * @return The longest time recorded, in nanoseconds.
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Estimates a percentile of the times recorded, interpolating within the bucket it falls in.
+	 *
+	 * @param percentile The percentile, from <code>0</code> to <code>1</code>.
+	 * @return The estimate, in nanoseconds. <code>0</code> if nothing has been recorded.
+	 */
+	public double getPercentile(double percentile)
+	{
+		long[] snapshot = new long[counts.length];
+		long count = 0L;
+		for (int i = 0; i < counts.length; i++)
+		{
+			snapshot[i] = counts[i].sum();
+			count += snapshot[i];
+		}
+
+		if (count == 0L)
+		{
+			return 0D;
+		}
+
+		double rank = Math.max(1D, Math.ceil(percentile * count));
+		long seen = 0L;
+		for (int i = 0; i < BOUNDS.length; i++)
+		{
+			if (seen + snapshot[i] >= rank)
+			{
+				long lower = i == 0 ? 0L : BOUNDS[i - 1];
+				double estimate = lower + (BOUNDS[i] - lower) * ((rank - seen) / snapshot[i]);
+				return Math.min(estimate, max.get());
+			}
+
+			seen += snapshot[i];
+		}
+
+		// past the last bound, so the longest is as good a guess as any
+		return max.get();
+	}
+
+	/**
+	 * @return The number of times recorded in each bucket, by the index of its upper bound in
+	 *         {@link #getBounds()}, followed by those longer than every bound.
+	 */
+	public long[] getBucketCounts()
+	{
+		long[] snapshot = new long[counts.length];
+		for (int i = 0; i < counts.length; i++)
+		{
+			snapshot[i] = counts[i].sum();
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @return The upper bounds of the buckets, in nanoseconds, in ascending order.
+	 */
+	public static long[] getBounds()
+	{
+		return BOUNDS.clone();
+	}
+
+	private static long[] bounds(long from, long to)
+	{
+		int n = 0;
+		long[] bounds = new long[64];
+		for (long decade = from; decade <= to; decade *= 10L)
+		{
+			for (long step : new long[]{ decade, decade * 5L / 2L, decade * 5L })
+			{
+				if (step <= to)
+				{
+					bounds[n++] = step;
+				}
+			}
+		}
+
+		if (bounds[n - 1] < to)
+		{
+			bounds[n++] = to;
+		}
+
+		long[] result = new long[n];
+		System.arraycopy(bounds, 0, result, 0, n);
+		return result;
+	}
+}
@@ -0,0 +1,355 @@
+package uk.co.williamburns.punisher.util.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * A registry of the plugin's metrics, by name, in the order they were registered.
+ * <p>
+ * Metrics are named and exported in the style of Prometheus: counters end in
+ * <code>_total</code> and times are in seconds. The same metrics can be read as a Prometheus
+ * text file, as attributes of a JMX bean, or summarised for staff in game.
+ */
+public class Metrics
+{
+	private static final double NANOS_PER_SECOND = 1000000000D;
+	private static final double NANOS_PER_MILLI = 1000000D;
+
+	private final Map<String, Metric> metrics = new LinkedHashMap<>(); // guarded by this
+
+	/**
+	 * Creates and registers a histogram of how long something takes.
+	 *
+	 * @param name The name of the histogram, ending in <code>_seconds</code>.
+	 * @param help A description of what is being timed.
+	 * @return The histogram, or the one already registered under the name.
+	 */
+	public Histogram histogram(String name, String help)
+	{
+		return register(name, help, new Histogram());
+	}
+
+	/**
+	 * Registers a histogram created elsewhere.
+	 *
+	 * @param name The name of the histogram, ending in <code>_seconds</code>.
+	 * @param help A description of what is being timed.
+	 * @param histogram The histogram.
+	 * @return The histogram, or the one already registered under the name.
+	 */
+	public synchronized Histogram register(String name, String help, Histogram histogram)
+	{
+		return (Histogram) metrics.computeIfAbsent(name, n -> new Metric(Kind.HISTOGRAM, help,
+				histogram)).value;
+	}
+
+	/**
+	 * Creates and registers a counter.
+	 *
+	 * @param name The name of the counter, ending in <code>_total</code>.
+	 * @param help A description of what is being counted.
+	 * @return The counter, or the one already registered under the name.
+	 */
+	public synchronized LongAdder counter(String name, String help)
+	{
+		return (LongAdder) metrics.computeIfAbsent(name, n -> new Metric(Kind.COUNTER, help,
+				new LongAdder())).value;
+	}
+
+	/**
+	 * Registers a counter that is counted elsewhere.
+	 *
+	 * @param name The name of the counter, ending in <code>_total</code>.
+	 * @param help A description of what is being counted.
+	 * @param count Reads the count, which must only ever go up.
+	 */
+	public synchronized void counter(String name, String help, LongSupplier count)
+	{
+		metrics.putIfAbsent(name, new Metric(Kind.COUNTER, help, count));
+	}
+
+	/**
+	 * Registers a gauge, a value that can go up and down.
+	 *
+	 * @param name The name of the gauge.
+	 * @param help A description of the value.
+	 * @param value Reads the value. It must be safe to call from any thread.
+	 */
+	public synchronized void gauge(String name, String help, DoubleSupplier value)
+	{
+		metrics.putIfAbsent(name, new Metric(Kind.GAUGE, help, value));
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text format.
+	 *
+	 * @param out The writer that the metrics are written to.
+	 * @throws IOException If the metrics could not be written.
+	 */
+	public void writePrometheus(Writer out) throws IOException
+	{
+		long[] bounds = Histogram.getBounds();
+		for (Map.Entry<String, Metric> entry : snapshot())
+		{
+			String name = entry.getKey();
+			Metric metric = entry.getValue();
+
+			out.write("# HELP " + name + " " + metric.help + "\n");
+			out.write("# TYPE " + name + " " + metric.kind.name().toLowerCase(Locale.ROOT) + "\n");
+			if (metric.kind == Kind.HISTOGRAM)
+			{
+				Histogram histogram = (Histogram) metric.value;
+				long[] counts = histogram.getBucketCounts();
+				long cumulative = 0L;
+				for (int i = 0; i < bounds.length; i++)
+				{
+					cumulative += counts[i];
+					out.write(name + "_bucket{le=\"" + bounds[i] / NANOS_PER_SECOND + "\"} " +
+							cumulative + "\n");
+				}
+
+				cumulative += counts[bounds.length];
+				out.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+				out.write(name + "_sum " + histogram.getTotal() / NANOS_PER_SECOND + "\n");
+				out.write(name + "_count " + cumulative + "\n");
+			}
+			else
+			{
+				out.write(name + " " + metric.read() + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Writes every metric to a file in the Prometheus text format, replacing it in one step so
+	 * that a collector never reads half a file.
+	 *
+	 * @param file The file that the metrics are written to.
+	 * @throws IOException If the file could not be written.
+	 */
+	public void writePrometheus(File file) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+		{
+			writePrometheus(writer);
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Summarises every metric in a line of text each, with times in milliseconds.
+	 *
+	 * @return The summaries, in the order the metrics were registered.
+	 */
+	public List<String> summarise()
+	{
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, Metric> entry : snapshot())
+		{
+			Metric metric = entry.getValue();
+			if (metric.kind == Kind.HISTOGRAM)
+			{
+				Histogram histogram = (Histogram) metric.value;
+				lines.add(String.format("%s: n=%d p50=%.2fms p99=%.2fms max=%.2fms", entry.getKey(),
+						histogram.getCount(), histogram.getPercentile(0.5D) / NANOS_PER_MILLI,
+						histogram.getPercentile(0.99D) / NANOS_PER_MILLI,
+						histogram.getMax() / NANOS_PER_MILLI));
+			}
+			else
+			{
+				lines.add(entry.getKey() + ": " + metric.read());
+			}
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Creates a JMX bean with an attribute for each counter and gauge, and attributes for the
+	 * count, median, 99th percentile and maximum of each histogram, in milliseconds.
+	 *
+	 * @return The bean, which reads the metrics whenever it is asked.
+	 */
+	public DynamicMBean toMBean()
+	{
+		return new MetricsBean();
+	}
+
+	private synchronized List<Map.Entry<String, Metric>> snapshot()
+	{
+		return new ArrayList<>(metrics.entrySet());
+	}
+
+	private synchronized Metric get(String name)
+	{
+		return metrics.get(name);
+	}
+
+	private enum Kind
+	{
+		COUNTER, GAUGE, HISTOGRAM
+	}
+
+	private static class Metric
+	{
+		private final Kind kind;
+		private final String help;
+		private final Object value;
+
+		private Metric(Kind kind, String help, Object value)
+		{
+			this.kind = kind;
+			this.help = help;
+			this.value = value;
+		}
+
+		private Object read()
+		{
+			if (value instanceof LongAdder)
+			{
+				return ((LongAdder) value).sum();
+			}
+			else if (value instanceof LongSupplier)
+			{
+				return ((LongSupplier) value).getAsLong();
+			}
+
+			return ((DoubleSupplier) value).getAsDouble();
+		}
+	}
+
+	/**
+	 * A read only bean over the metrics. Histograms are split into an attribute per statistic,
+	 * named after the histogram followed by <code>_count</code>, <code>_p50_ms</code>,
+	 * <code>_p99_ms</code> and <code>_max_ms</code>.
+	 */
+	private class MetricsBean implements DynamicMBean
+	{
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Metric metric = get(attribute);
+			if (metric != null && metric.kind != Kind.HISTOGRAM)
+			{
+				return metric.read();
+			}
+
+			int split = attribute.lastIndexOf('_', attribute.endsWith("_ms") ? attribute.length()
+					- 4 : attribute.length());
+			metric = split < 0 ? null : get(attribute.substring(0, split));
+			if (metric == null || metric.kind != Kind.HISTOGRAM)
+			{
+				throw new AttributeNotFoundException(attribute);
+			}
+
+			Histogram histogram = (Histogram) metric.value;
+			switch (attribute.substring(split))
+			{
+				case "_count":
+					return histogram.getCount();
+				case "_p50_ms":
+					return histogram.getPercentile(0.5D) / NANOS_PER_MILLI;
+				case "_p99_ms":
+					return histogram.getPercentile(0.99D) / NANOS_PER_MILLI;
+				case "_max_ms":
+					return histogram.getMax() / NANOS_PER_MILLI;
+				default:
+					throw new AttributeNotFoundException(attribute);
+			}
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes)
+			{
+				try
+				{
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				}
+				catch (AttributeNotFoundException e)
+				{
+					// left out, as the contract allows
+				}
+			}
+
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException("metrics are read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws
+				ReflectionException
+		{
+			// wrapped as the contract expects, so clients see it rather than an internal error
+			throw new ReflectionException(new NoSuchMethodException(actionName), "metrics have no " +
+					"operations");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (Map.Entry<String, Metric> entry : snapshot())
+			{
+				String name = entry.getKey();
+				Metric metric = entry.getValue();
+				if (metric.kind == Kind.HISTOGRAM)
+				{
+					attributes.add(attribute(name + "_count", Long.class, metric.help));
+					attributes.add(attribute(name + "_p50_ms", Double.class, metric.help));
+					attributes.add(attribute(name + "_p99_ms", Double.class, metric.help));
+					attributes.add(attribute(name + "_max_ms", Double.class, metric.help));
+				}
+				else
+				{
+					attributes.add(attribute(name, metric.value instanceof DoubleSupplier ?
+							Double.class : Long.class, metric.help));
+				}
+			}
+
+			return new MBeanInfo(Metrics.class.getName(), "Punisher metrics",
+					attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+
+		private MBeanAttributeInfo attribute(String name, Class<?> type, String help)
+		{
+			return new MBeanAttributeInfo(name, type.getName(), help, true, false, false);
+		}
+	}
+}